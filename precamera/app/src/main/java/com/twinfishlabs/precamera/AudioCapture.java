@@ -0,0 +1,321 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Debug;
+import android.util.Log;
+
+/**
+ * Records PCM and has the audio encoder encode it, in two stages on threads of their own, so
+ * that neither polls: the capture thread blocks in read(), a frame of PCM at a time, into one
+ * of a few direct buffers allocated up front; the encoder thread blocks until a frame is
+ * there, hands it to the encoder and takes out what that produced.  Nothing runs between
+ * frames, and a slow encoder doesn't hold up the recording, which would lose samples.
+ * The PCM is time stamped as it's read, by an {@link AudioClock}.
+ * <p>
+ * If the encoder falls behind by more than FRAME_COUNT frames, the oldest are dropped.
+ * <p>
+ * With setPcmRing(), it's lazy: the encoder thread only keeps the PCM in the ring, and the
+ * encoder idles until startEncoding().  Then it encodes what the ring has from the time asked
+ * for on, as fast as the encoder goes, and keeps up with the recording after that until
+ * stopEncoding().  What was encoded once isn't again, so the output's time stamps only ever
+ * go forward.
+ */
+class AudioCapture {
+    private static final String TAG = Utilities.TAG;
+
+    // Frames of PCM the capture stage can be ahead of the encoder.
+    private static final int FRAME_COUNT = 8;
+    // How long the encoder thread waits for an input buffer before draining the output, which
+    // may be what's holding it up.
+    private static final long INPUT_TIMEOUT_USEC = 10000;
+
+    /**
+     * Gets what the encoder puts out, on the encoder thread.
+     */
+    interface Listener {
+        /**
+         * The encoder's format, with csd-0, before any data.
+         */
+        void onFormatChanged(MediaFormat format);
+
+        /**
+         * An encoded frame, with "buf" positioned over it.  Only valid during the call.
+         */
+        void onEncodedData(ByteBuffer buf, MediaCodec.BufferInfo info);
+    }
+
+    /**
+     * A frame of PCM, and when it was recorded.
+     */
+    private static class Frame {
+        final ByteBuffer data;
+        int size;
+        long ptsUsec;
+
+        Frame(int bytes) {
+            data = ByteBuffer.allocateDirect(bytes);
+        }
+    }
+
+    private final PcmSource mPcmSource;
+    private final AudioClock mClock;
+    private final EncoderSource mEncoder;
+    private final Listener mListener;
+    private final int mFrameBytes;
+    private final ArrayBlockingQueue<Frame> mFree = new ArrayBlockingQueue<Frame>(FRAME_COUNT);
+    private final ArrayBlockingQueue<Frame> mFilled = new ArrayBlockingQueue<Frame>(FRAME_COUNT);
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private final Thread mCaptureThread;
+    private final Thread mEncoderThread;
+    private PcmRing mRing;
+    private volatile int mRingFrames;
+    // The lazy encoder thread's: where to start encoding, -1 for not, and the next frame to.
+    private volatile long mEncodeFromUsec = -1;
+    private boolean mEncoding;
+    private long mNextFrame;
+    private volatile boolean mStopped;
+    private volatile int mDroppedFrames;
+    private volatile long mCaptureCpuNsec;
+    private volatile long mEncoderCpuNsec;
+
+    /**
+     * @param clock Time stamps the PCM as it's read.
+     * @param frameBytes How much PCM to read at a time, and hand the encoder: an AAC frame's.
+     */
+    AudioCapture(PcmSource pcmSource, AudioClock clock, EncoderSource encoder, int frameBytes,
+            Listener listener) {
+        mPcmSource = pcmSource;
+        mClock = clock;
+        mEncoder = encoder;
+        mFrameBytes = frameBytes;
+        mListener = listener;
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            mFree.add(new Frame(frameBytes));
+        }
+        mCaptureThread = new Thread("AudioCaptureThread") {
+            @Override
+            public void run() {
+                capture();
+                mCaptureCpuNsec = Debug.threadCpuTimeNanos();
+            }
+        };
+        mEncoderThread = new Thread("AudioEncoderThread") {
+            @Override
+            public void run() {
+                encode();
+                mEncoderCpuNsec = Debug.threadCpuTimeNanos();
+            }
+        };
+    }
+
+    /**
+     * Keeps "ring" frames of PCM and encodes them only once startEncoding() is called.  Call
+     * before start().
+     */
+    void setPcmRing(PcmRing ring) {
+        mRing = ring;
+        mRingFrames = ring.getFrameCount();
+    }
+
+    /**
+     * Has a lazy AudioCapture keep this many frames, from the next one on.
+     */
+    void setPcmRingFrames(int frameCount) {
+        mRingFrames = frameCount;
+    }
+
+    boolean isLazy() {
+        return mRing != null;
+    }
+
+    /**
+     * Has a lazy AudioCapture encode the PCM from "fromUsec" on, or from where it stopped
+     * encoding last if that's later, and what's recorded from now on.
+     */
+    void startEncoding(long fromUsec) {
+        mEncodeFromUsec = fromUsec;
+    }
+
+    /**
+     * Has a lazy AudioCapture go back to only keeping the PCM.
+     */
+    void stopEncoding() {
+        mEncodeFromUsec = -1;
+    }
+
+    void start() {
+        mEncoderThread.start();
+        mCaptureThread.start();
+    }
+
+    /**
+     * Stops both threads and waits for them.  The encoder and PCM source are left as they are.
+     */
+    void stop() {
+        mStopped = true;
+        mCaptureThread.interrupt();
+        mEncoderThread.interrupt();
+        try {
+            mCaptureThread.join();
+            mEncoderThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "Audio thread join() was interrupted", ie);
+        }
+    }
+
+    /**
+     * Frames dropped because the encoder was behind.
+     */
+    int getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * The CPU time both threads took, once stopped.
+     */
+    long getCpuTimeNsec() {
+        return mCaptureCpuNsec + mEncoderCpuNsec;
+    }
+
+    private void capture() {
+        mPcmSource.startRecording();
+        while (!mStopped) {
+            Frame frame = mFree.poll();
+            if (frame == null) {
+                frame = mFilled.poll();
+                if (frame != null) {
+                    mDroppedFrames++;
+                } else {
+                    try {
+                        frame = mFree.take();
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                }
+            }
+
+            frame.data.clear();
+            int size = mPcmSource.read(frame.data, mFrameBytes);
+            if (size <= 0) {
+                mFree.offer(frame);
+                if (size < 0) {
+                    Log.e(TAG, "AudioRecord.read() failed: " + size);
+                    break;
+                }
+                continue;
+            }
+            frame.size = size;
+            frame.ptsUsec = mClock.onRead(size, System.nanoTime() / 1000);
+            mFilled.offer(frame);
+        }
+    }
+
+    private void encode() {
+        while (!mStopped) {
+            Frame frame;
+            try {
+                frame = mFilled.take();
+            } catch (InterruptedException ie) {
+                break;
+            }
+            if (mRing == null) {
+                try {
+                    queueInput(frame.data, frame.size, frame.ptsUsec);
+                } finally {
+                    mFree.offer(frame);
+                }
+                drain();
+            } else {
+                keep(frame);
+                encodeRing();
+            }
+        }
+    }
+
+    private void keep(Frame frame) {
+        if (mRing.getFrameCount() != mRingFrames) {
+            mRing.resize(mRingFrames);
+        }
+        mRing.put(frame.data, frame.size, frame.ptsUsec);
+        mFree.offer(frame);
+    }
+
+    /**
+     * Encodes what the ring has that should be, keeping what's recorded meanwhile.
+     */
+    private void encodeRing() {
+        long fromUsec = mEncodeFromUsec;
+        if (fromUsec < 0) {
+            mEncoding = false;
+            return;
+        }
+        if (!mEncoding) {
+            mNextFrame = Math.max(mNextFrame, mRing.find(fromUsec));
+            mEncoding = true;
+        }
+        while (mNextFrame < mRing.getEnd() && !mStopped) {
+            // Only if the encoder can't keep up with the recording at all.
+            mNextFrame = Math.max(mNextFrame, mRing.getStart());
+            ByteBuffer pcm = mRing.get(mNextFrame);
+            queueInput(pcm, pcm.remaining(), mRing.getPtsUsec(mNextFrame));
+            mNextFrame++;
+            drain();
+
+            Frame frame;
+            while ((frame = mFilled.poll()) != null) {
+                keep(frame);
+            }
+        }
+    }
+
+    /**
+     * Queues "size" bytes of PCM, from data's position on.
+     */
+    private void queueInput(ByteBuffer data, int size, long ptsUsec) {
+        int index;
+        while ((index = mEncoder.dequeueInputBuffer(INPUT_TIMEOUT_USEC)) < 0) {
+            if (mStopped) {
+                return;
+            }
+            drain();
+        }
+        ByteBuffer input = mEncoder.getInputBuffer(index);
+        input.clear();
+        data.limit(data.position() + size);
+        input.put(data);
+        mEncoder.queueInputBuffer(index, 0, size, ptsUsec, 0);
+    }
+
+    /**
+     * Hands the listener whatever the encoder has ready, without waiting for more.
+     */
+    private void drain() {
+        while (true) {
+            int status = mEncoder.dequeueOutputBuffer(mBufferInfo, 0);
+            if (status == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                break;
+            } else if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                // the source gets the new buffers itself
+            } else if (status == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                mListener.onFormatChanged(mEncoder.getOutputFormat());
+            } else if (status < 0) {
+                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + status);
+            } else {
+                ByteBuffer encodedData = mEncoder.getOutputBuffer(status);
+                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    mBufferInfo.size = 0;
+                }
+                if (mBufferInfo.size != 0) {
+                    encodedData.position(mBufferInfo.offset);
+                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
+                    mListener.onEncodedData(encodedData, mBufferInfo);
+                }
+                mEncoder.releaseOutputBuffer(status);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.twinfishlabs.precamera;
+
+import android.util.Log;
+
+/**
+ * Time stamps recorded audio by counting its samples, so every AAC frame lasts exactly 1024
+ * samples and the muxer's stts stays a single entry, instead of by when read() returned,
+ * which jitters with scheduling.
+ * <p>
+ * The count is anchored to System.nanoTime(), the clock the video time stamps come from, at
+ * the first read.  The microphone's clock runs a little fast or slow against it, though, so
+ * on a long recording the count drifts away from the video.  To follow it, each read
+ * compares where the count says the samples end with when read() returned, and averages that
+ * over the last second or so, which takes out the scheduling.  Once the average is off by more
+ * than DEADBAND_USEC, the time stamps are moved towards it by at most a sample per read
+ * until they're close again; the frames in between come out a sample longer or shorter.
+ * <p>
+ * A read more than RESYNC_USEC off is left out of the average, it's the scheduler.  If
+ * RESYNC_READS in a row are, samples were lost, to an overrun say, and the time stamps jump.
+ * <p>
+ * Not thread safe; used by the capture thread only.
+ */
+class AudioClock {
+    private static final String TAG = Utilities.TAG;
+
+    // How much of each new difference goes into the average: about a second's worth of reads.
+    private static final double AVERAGE_WEIGHT = 1.0 / 32;
+    private static final long DEADBAND_USEC = 5000;
+    // Close enough to stop moving.
+    private static final long SETTLED_USEC = DEADBAND_USEC / 4;
+    private static final long RESYNC_USEC = 40000;
+    private static final int RESYNC_READS = 4;
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    // How far one read may move the time stamps: a sample, about 1000 ppm of an AAC frame,
+    // more than any microphone drifts.
+    private final long mMaxSlewUsec;
+    private long mAnchorUsec = -1;
+    private long mSamples;
+    private long mOffsetUsec;           // the correction applied so far
+    private double mAverageUsec;        // averaged difference, from the anchor
+    private boolean mSlewing;
+    private int mOffReads;              // reads in a row more than RESYNC_USEC off
+    private long mLastPtsUsec = -1;
+
+    /**
+     * @param bytesPerFrame PCM bytes per sample frame: 2 per channel for 16 bit.
+     */
+    AudioClock(int sampleRate, int bytesPerFrame) {
+        mSampleRate = sampleRate;
+        mBytesPerFrame = bytesPerFrame;
+        mMaxSlewUsec = 1000000 / sampleRate;
+    }
+
+    /**
+     * Counts "bytes" that read() just returned.
+     *
+     * @param nowUsec When read() returned, on System.nanoTime()'s clock.
+     * @return The time stamp of the first of them.
+     */
+    long onRead(int bytes, long nowUsec) {
+        int samples = bytes / mBytesPerFrame;
+        if (mAnchorUsec < 0) {
+            mAnchorUsec = nowUsec - toUsec(samples);
+        }
+        // Never backwards, should a resync go back in time.
+        long ptsUsec = Math.max(mAnchorUsec + mOffsetUsec + toUsec(mSamples), mLastPtsUsec + 1);
+        mLastPtsUsec = ptsUsec;
+        mSamples += samples;
+
+        long differenceUsec = nowUsec - (mAnchorUsec + toUsec(mSamples));
+        if (Math.abs(differenceUsec - mOffsetUsec) > RESYNC_USEC) {
+            if (++mOffReads == RESYNC_READS) {
+                Log.w(TAG, "Audio clock off by " + (differenceUsec - mOffsetUsec) / 1000
+                        + " ms, resyncing");
+                mOffsetUsec = differenceUsec;
+                mAverageUsec = differenceUsec;
+                mSlewing = false;
+                mOffReads = 0;
+            }
+            return ptsUsec;
+        }
+        mOffReads = 0;
+
+        mAverageUsec += (differenceUsec - mAverageUsec) * AVERAGE_WEIGHT;
+        long errorUsec = (long) mAverageUsec - mOffsetUsec;
+        if (mSlewing || Math.abs(errorUsec) > DEADBAND_USEC) {
+            mOffsetUsec += Math.max(-mMaxSlewUsec, Math.min(mMaxSlewUsec, errorUsec));
+            mSlewing = Math.abs(errorUsec) > SETTLED_USEC;
+        }
+        return ptsUsec;
+    }
+
+    /**
+     * How far the time stamps have been moved off the sample count so far.
+     */
+    long getCorrectionUsec() {
+        return mOffsetUsec;
+    }
+
+    /**
+     * Rounded up, so the muxer, which rounds down, gets the sample count back exactly.
+     */
+    private long toUsec(long samples) {
+        return (samples * 1000000 + mSampleRate - 1) / mSampleRate;
+    }
+}
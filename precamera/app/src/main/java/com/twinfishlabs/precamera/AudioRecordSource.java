@@ -0,0 +1,27 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+import android.media.AudioRecord;
+
+/**
+ * An AudioRecord as a {@link PcmSource}.  Whoever created the AudioRecord still stops and
+ * releases it.
+ */
+class AudioRecordSource implements PcmSource {
+    private final AudioRecord mAudioRecord;
+
+    AudioRecordSource(AudioRecord audioRecord) {
+        mAudioRecord = audioRecord;
+    }
+
+    @Override
+    public void startRecording() {
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(ByteBuffer buf, int sizeInBytes) {
+        return mAudioRecord.read(buf, sizeInBytes);
+    }
+}
@@ -0,0 +1,122 @@
+package com.twinfishlabs.precamera;
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+/**
+ * Keeps the video encoder's output inside what the pre-record buffer can hold for its span.
+ * The buffer has room for the span at MAX_BIT_RATE_OVERSHOOT times the bit rate asked for,
+ * but a busy scene can make the encoder miss its target by more than that, and then the
+ * buffer evicts by size before the span is up: the pre-roll gets shorter, and nothing says so.
+ * <p>
+ * So the bit rate the encoder delivers is measured, from the sizes and time stamps of its
+ * packets, over whole GOPs, at least WINDOW_USEC of them: a window that caught the big sync
+ * frames a varying number of times would be off by more than the deadband.  The budget is the
+ * buffer's capacity over the seconds it has to hold, less what the audio takes if it shares
+ * the buffer.  If a window comes out above TARGET_FILL of that, the target is lowered by as
+ * much as it missed by, on the assumption that the encoder misses the new target by the same
+ * factor; if a window comes out below, because the scene has calmed down, it's raised again
+ * the same way, but never above the bit rate configured, nor below the minimum.  Moves of less
+ * than DEADBAND aren't made, and the window after one is skipped, while the encoder's rate
+ * control follows.
+ * <p>
+ * Used by the video encoder thread, except setBudget(), which any thread may call.
+ */
+class BitRateController {
+    private static final String TAG = Utilities.TAG;
+
+    private static final long WINDOW_USEC = 2000000;
+    // How much of the budget to aim for, leaving room for page ends and the next scene change.
+    private static final double TARGET_FILL = 0.8;
+    private static final double DEADBAND = 0.1;
+    // The most one window may move the target by, either way.
+    private static final double MAX_STEP = 2;
+
+    private final int mMaxBitRate;
+    private final int mMinBitRate;
+    private final int mReservedBitRate;
+    private volatile long mBudgetBitRate;
+    private int mBitRate;
+    private int mDeliveredBitRate;
+    private long mWindowStartUsec = -1;
+    private long mWindowBytes;
+    private boolean mSettling;
+
+    /**
+     * @param bitRate The encoder's bit rate to start with, and the most it's set to.
+     * @param reservedBitRate What else goes into the buffer: the audio, if it shares it.
+     */
+    BitRateController(int bitRate, int minBitRate, int reservedBitRate) {
+        mBitRate = mMaxBitRate = bitRate;
+        mMinBitRate = minBitRate;
+        mReservedBitRate = reservedBitRate;
+    }
+
+    /**
+     * Sets what the buffer can hold: "capacityBytes" for "holdSec" seconds of packets.  Call
+     * again whenever the span changes.
+     */
+    void setBudget(long capacityBytes, int holdSec) {
+        mBudgetBitRate = capacityBytes * 8 / Math.max(holdSec, 1) - mReservedBitRate;
+    }
+
+    /**
+     * Counts a video packet.
+     *
+     * @param flags MediaCodec.BufferInfo flags.
+     * @return The bit rate to set the encoder to, or 0 to leave it.
+     */
+    int onPacket(int size, int flags, long ptsUsec) {
+        boolean sync = (flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (mWindowStartUsec < 0 || ptsUsec < mWindowStartUsec) {
+            if (!sync) {
+                return 0;
+            }
+            mWindowStartUsec = ptsUsec;
+            mWindowBytes = 0;
+        }
+        long elapsedUsec = ptsUsec - mWindowStartUsec;
+        if (!sync || elapsedUsec < WINDOW_USEC) {
+            mWindowBytes += size;
+            return 0;
+        }
+        // This packet is the next window's first.
+        mDeliveredBitRate = (int) (mWindowBytes * 8 * 1000000 / elapsedUsec);
+        mWindowStartUsec = ptsUsec;
+        mWindowBytes = size;
+        if (mSettling) {
+            mSettling = false;
+            return 0;
+        }
+
+        long budget = mBudgetBitRate;
+        if (budget <= 0 || mDeliveredBitRate == 0) {
+            return 0;
+        }
+        double step = budget * TARGET_FILL / mDeliveredBitRate;
+        step = Math.max(1 / MAX_STEP, Math.min(MAX_STEP, step));
+        int bitRate = (int) Math.max(mMinBitRate, Math.min(mMaxBitRate, mBitRate * step));
+        if (Math.abs(bitRate - mBitRate) < mBitRate * DEADBAND) {
+            return 0;
+        }
+        Log.d(TAG, "Video came out at " + mDeliveredBitRate + " for a budget of " + budget
+                + ", bit rate " + mBitRate + " -> " + bitRate);
+        mBitRate = bitRate;
+        mSettling = true;
+        return bitRate;
+    }
+
+    /**
+     * The encoder's bit rate, as last returned by onPacket().
+     */
+    int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * What the encoder delivered over the last window.
+     */
+    int getDeliveredBitRate() {
+        return mDeliveredBitRate;
+    }
+}
@@ -0,0 +1,39 @@
+package com.twinfishlabs.precamera;
+
+/**
+ * A snapshot of how a {@link CircularEncoderBuffer} is doing, see
+ * {@link CircularEncoderBuffer#getMetrics(BufferMetrics)}.  Reuse one instance when polling,
+ * filling it in doesn't allocate.
+ * <p>
+ * The counters run from when the buffer was created.
+ */
+public class BufferMetrics {
+	/** Data bytes between the oldest and newest packet, including skipped page ends. */
+	public long bytesUsed;
+	/** The most data bytes the buffer will hold at its current span. */
+	public long bytesCapacity;
+	public int metaSlotsUsed;
+	public int metaSlotCount;
+	/** Time between the first sync frame and the newest packet. */
+	public long spanUsec;
+
+	/** Packets dropped from the tail to make room or to keep to the span. */
+	public long evictedPackets;
+	public long evictedBytes;
+	/** Time the producer spent waiting for room, while a save was reading the buffer, up to now. */
+	public long waitUsec;
+	public int largestPacket;
+	/** Bit rate over the last second's worth of packets, by their time stamps. */
+	public int measuredBitRate;
+
+	@Override
+	public String toString() {
+		return "used=" + bytesUsed / 1024 + "/" + bytesCapacity / 1024 + "KB"
+				+ " meta=" + metaSlotsUsed + "/" + metaSlotCount
+				+ " span=" + spanUsec / 1000 + "ms"
+				+ " evicted=" + evictedPackets + "/" + evictedBytes / 1024 + "KB"
+				+ " wait=" + waitUsec / 1000 + "ms"
+				+ " largest=" + largestPacket
+				+ " bitRate=" + measuredBitRate;
+	}
+}
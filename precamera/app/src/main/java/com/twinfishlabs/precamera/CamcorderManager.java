@@ -4,8 +4,10 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 
 import android.graphics.Bitmap;
@@ -69,6 +71,10 @@ public class CamcorderManager implements PreviewCallback {
 	PreviewImageData mShootImage;
 	volatile boolean mIsTakingShootImage;
 	boolean mIsShooting;
+	// Encoder time, in microseconds, of the shutter presses exportMoments() hasn't taken yet.
+	private final ArrayList<Long> mMoments = new ArrayList<Long>();
+	// Presses past this many, waiting for their clips, drop the oldest.
+	private static final int MAX_MOMENTS = 16;
 
 	private Runnable mOnPreviewParamsChanged;
 
@@ -80,6 +86,7 @@ public class CamcorderManager implements PreviewCallback {
 		static final int MSG_SEND_THUMBNAIL = 3;
 		static final int MSG_ON_STOPED = 4;
 		static final int MSG_PICTURE_SAVE_FINISHED = 5;
+		static final int MSG_EXPORT_MOMENTS = 6;
 		@Override
 		public void handleMessage(Message msg) {
 			switch (msg.what) {
@@ -105,6 +112,9 @@ public class CamcorderManager implements PreviewCallback {
 					MainActivity.Instance.onPictureSaveFinished();
 				}
 				break;
+			case MSG_EXPORT_MOMENTS:
+				exportMoments();
+				break;
 			}
 		}
 	}
@@ -194,6 +204,23 @@ public class CamcorderManager implements PreviewCallback {
 		CamcorderManager.Instance.setupEncode(mSurface, mCallback, mPreviewViewWidth, mPreviewViewHeight);
     }
 
+    /**
+     * Changes the pre-record time.  While we're caching that doesn't need a reset(), the
+     * buffers just grow or shrink and keep what they hold; only switching between direct
+     * and pre-recording does.
+     */
+    public void setPreRecordTime(int preRecordSec) {
+    	boolean wasDirectRecord = PrefUtils.isDirectRecord();
+    	PrefUtils.setPreRecordTime(preRecordSec);
+    	if (mCircEncoder == null || isSaving()) return;
+
+    	if (wasDirectRecord != PrefUtils.isDirectRecord()) {
+    		reset();
+    	} else if (!wasDirectRecord) {
+    		mCircEncoder.setPreRecordTime(PrefUtils.getPreRecordTime());
+    	}
+    }
+
     public void setupAudioRecord(){
         int min_buffer_size = AudioRecord.getMinBufferSize(Configs.SAMPLE_RATE, Configs.CHANNEL_CONFIG, Configs.AUDIO_FORMAT);
         int buffer_size = Configs.SAMPLES_PER_FRAME * 10;
@@ -478,6 +505,19 @@ public class CamcorderManager implements PreviewCallback {
     public void shoot() {
     	if (mIsShooting) return;
     	mIsShooting = true;
+    	if (Configs.MOMENT_CLIPS) {
+    		long nowUsec = System.nanoTime() / 1000;
+    		synchronized (mMoments) {
+    			dropStaleMomentsLocked(nowUsec);
+    			if (mMoments.size() == MAX_MOMENTS) {
+    				mMoments.remove(0);
+    			}
+    			mMoments.add(nowUsec);
+    		}
+    		if (!mHandler.hasMessages(H.MSG_EXPORT_MOMENTS)) {
+    			mHandler.sendEmptyMessageDelayed(H.MSG_EXPORT_MOMENTS, Configs.MOMENT_CLIP_AFTER_MS);
+    		}
+    	}
 
     	flushAllPreviewImage();
     	if (mShootImage == null) {
@@ -488,6 +528,62 @@ public class CamcorderManager implements PreviewCallback {
     	mCamera.addCallbackBuffer(mShootImage.mData);
     }
 
+    /**
+     * Writes a clip out of the pre-record buffer around each shutter press whose
+     * MOMENT_CLIP_AFTER_MS is up, all at once, in the background.  Each clip takes
+     * MOMENT_CLIP_BEFORE_MS before the press, or as much of it as is still buffered, and
+     * MOMENT_CLIP_AFTER_MS after it.  shoot() has it called once the first press is due, and it
+     * has itself called again for the rest.
+     *
+     * @return How many clips are being written.
+     */
+    public int exportMoments() {
+    	List<ClipExporter.Clip> clips = new ArrayList<ClipExporter.Clip>();
+    	long nowUsec = System.nanoTime() / 1000;
+    	long afterUsec = Configs.MOMENT_CLIP_AFTER_MS * 1000L;
+    	long nextDueUsec = -1;
+    	synchronized (mMoments) {
+    		dropStaleMomentsLocked(nowUsec);
+    		for (Iterator<Long> it = mMoments.iterator(); it.hasNext(); ) {
+    			long momentUsec = it.next();
+    			if (momentUsec + afterUsec > nowUsec) {
+    				if (nextDueUsec < 0) nextDueUsec = momentUsec + afterUsec;
+    				continue;
+    			}
+    			Date date = new Date(System.currentTimeMillis() - (nowUsec - momentUsec) / 1000);
+    			clips.add(new ClipExporter.Clip(momentUsec - Configs.MOMENT_CLIP_BEFORE_MS * 1000L,
+    					momentUsec + afterUsec, Utilities.getVideoFile(date)));
+    			it.remove();
+    		}
+    	}
+    	mHandler.removeMessages(H.MSG_EXPORT_MOMENTS);
+    	if (nextDueUsec >= 0) {
+    		mHandler.sendEmptyMessageDelayed(H.MSG_EXPORT_MOMENTS, (nextDueUsec - nowUsec) / 1000 + 1);
+    	}
+    	if (clips.isEmpty() || mCircEncoder == null) return 0;
+
+    	List<?> futures = mCircEncoder.exportClips(clips, new ClipExporter.Listener() {
+    		@Override
+    		public void onClipExported(ClipExporter.Clip clip, IOException error) {
+    			if (error == null) {
+    				Utilities.sendBroadcastScanFile(clip.file);
+    			}
+    		}
+    	});
+    	return futures == null ? 0 : futures.size();
+    }
+
+    /**
+     * Drops the presses whose clips have already left the pre-record buffer.
+     */
+    private void dropStaleMomentsLocked(long nowUsec) {
+    	long oldestUsec = nowUsec - PrefUtils.getPreRecordTime() * 1000000L;
+    	while (!mMoments.isEmpty()
+    			&& mMoments.get(0) + Configs.MOMENT_CLIP_AFTER_MS * 1000L < oldestUsec) {
+    		mMoments.remove(0);
+    	}
+    }
+
     public boolean isSaving() {
     	return mIsSaving;
     }
@@ -508,7 +604,12 @@ public class CamcorderManager implements PreviewCallback {
     }
 
 	public void stopSaving() {
-    	mCircEncoder.waitState(CircularEncoder.STATE_SAVE_DIRECT);
+		if (Configs.INSTANT_SAVE) {
+			// The rest of the pre-roll is written after we've stopped.
+			mCircEncoder.waitSaveStarted();
+		} else {
+			mCircEncoder.waitState(CircularEncoder.STATE_SAVE_DIRECT);
+		}
     	mIsStoping = true;
     	mGlThread.signalEndOfStream();
     }
@@ -535,6 +636,12 @@ public class CamcorderManager implements PreviewCallback {
     	if (mGlThread == null) return;
 
     	mHandler.removeMessages(H.MSG_SET_PREVIEW_BUFFER);
+    	// The presses whose clips aren't due yet are dropped, and the encoder cancels the ones
+    	// being written in shutdown().
+    	mHandler.removeMessages(H.MSG_EXPORT_MOMENTS);
+    	synchronized (mMoments) {
+    		mMoments.clear();
+    	}
 
         mGlThread.finish();
         mGlThread = null;
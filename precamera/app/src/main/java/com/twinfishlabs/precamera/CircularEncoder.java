@@ -20,13 +20,14 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import android.media.AudioRecord;
 import android.media.MediaCodec;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
@@ -58,20 +59,40 @@ public class CircularEncoder {
     private static final String VIDEO_MIME_TYPE = "video/avc";    // H.264 Advanced Video Coding
     private static final String AUDIO_MIME_TYPE = "audio/mp4a-latm";    // H.264 Advanced Video Coding
     private static final int IFRAME_INTERVAL = 1;           // sync frame every second
+    // How much more PCM to keep than the pre-record time, see Configs.LAZY_AUDIO_ENCODING.
+    private static final int PCM_RING_MARGIN_SEC = 2;
 
     private CircularEncoder.Callback mCallback;
 
     private VideoEncoderThread mVideoEncoderThread;
-    private Surface mInputSurface;
-    private MediaCodec mVideoEncoder;
-    private MediaMuxer mMediaMuxer;
+    private EncoderSource mVideoSource;
+    private SampleSink mSampleSink;             // MediaMuxer, or FragmentedMp4Writer, see Configs
+    private RingMp4Writer mRingWriter;          // instead of mSampleSink, likewise
     final private Object mMediaMuxerLock = new Object();
     private int mVideoWidth, mVideoHeight;
     private int mFrameRate;
 
-    private AudioEncoderThread mAudioEncoderThread;
-    private MediaCodec mAudioEncoder;
-    AudioRecord mAudioRecord;
+    private SlabPool mSlabPool;             // shared by the video and audio buffers
+    // Where the file being saved has got to in each buffer.  Only used by the muxer thread,
+    // with mMediaMuxerLock held.
+    private CircularEncoderBuffer.Cursor mVideoCursor;
+    private CircularEncoderBuffer.Cursor mAudioCursor;
+    // stopSaving() has ended the cursors, the muxer thread finishes the file.
+    private volatile boolean mStopPending;
+
+    private AudioEncoder mAudioEncoder;
+    private AudioCapture mAudioCapture;
+    private MuxerThread mMuxerThread;
+    // How many packets the muxer thread writes per acquisition of mMediaMuxerLock.
+    private static final int MUXER_BATCH_PACKETS = 64;
+    // How much RingMp4Writer may take in one go; keeps stopSaving() from waiting long.
+    private static final int RING_WRITER_BATCH_BYTES = 4 * 1024 * 1024;
+    private EncoderSource mAudioSource;
+    private PcmSource mPcmSource;
+    // Writes exportClips()' clips; made on the first call, released in shutdown().
+    private ClipExporter mClipExporter;
+    // Lowers the video bit rate when the scene is too busy for the buffer; null if not.
+    private volatile BitRateController mBitRateController;
 
     private long mStartUsec = -1;
 
@@ -100,6 +121,12 @@ public class CircularEncoder {
          * @param totalTimeMsec Total length, in milliseconds, of buffered video.
          */
         void bufferStatus(long totalTimeMsec);
+
+        /**
+         * Called about once a second while there are buffers, on the video encoder thread.
+         * The objects are reused, copy what's needed before returning.
+         */
+        void bufferMetrics(BufferMetrics video, BufferMetrics audio);
     }
 
     /**
@@ -113,9 +140,20 @@ public class CircularEncoder {
      */
     public CircularEncoder(int width, int height, int frameRate, AudioRecord audioRecord, Callback cb)
     		throws IOException {
-        // The goal is to size the buffer so that we can accumulate N seconds worth of video,
-        // where N is passed in as "desiredSpanSec".  If the codec generates data at roughly
-        // the requested bit rate, we can compute it as time * bitRate / bitsPerByte.
+    	this(width, height, frameRate,
+    			new MediaCodecSource(createVideoFormat(width, height, frameRate), true),
+    			new MediaCodecSource(createAudioFormat(), false), new AudioRecordSource(audioRecord),
+    			cb);
+    }
+
+    /**
+     * Runs on the encoders and PCM given, which it releases in shutdown(), all but the PCM.
+     */
+    CircularEncoder(int width, int height, int frameRate, EncoderSource videoSource,
+    		EncoderSource audioSource, PcmSource pcmSource, Callback cb) throws IOException {
+        // The goal is to accumulate N seconds worth of video, where N is the pre-record time.
+        // The buffers go by the presentation time stamps for that, and only use the requested
+        // bit rate to put a limit on their memory use.
         //
         // Sync frames will appear every (frameRate * IFRAME_INTERVAL) frames.  If the frame
         // rate is higher or lower than expected, various calculations may not work out right.
@@ -127,58 +165,80 @@ public class CircularEncoder {
 //        }
         mVideoWidth = width;
         mVideoHeight = height;
-        mAudioRecord = audioRecord;
+        mVideoSource = videoSource;
+        mAudioSource = audioSource;
+        mPcmSource = pcmSource;
         mCallback = cb;
         mFrameRate = frameRate;
         mState = PrefUtils.isDirectRecord() ? STATE_IDLE : STATE_CACHE_CIRCULAR;
 
-        CircularEncoderBuffer videoEncBuffer = PrefUtils.isDirectRecord() ? null :
-        		new CircularEncoderBuffer(Configs.VIDEO_BIT_RATE, mFrameRate, PrefUtils.getPreRecordRealTime(), true);
-        CircularEncoderBuffer audioEncBuffer = PrefUtils.isDirectRecord() ? null :
-        	new CircularEncoderBuffer(Configs.AUDIO_BIT_RATE, mFrameRate, PrefUtils.getPreRecordRealTime(), false);
-
-        mVideoEncoder = createVideoEncoder();
-        mInputSurface = mVideoEncoder.createInputSurface();
-        mVideoEncoder.start();
+        CircularEncoderBuffer videoEncBuffer = null;
+        CircularEncoderBuffer audioEncBuffer = null;
+        if (!PrefUtils.isDirectRecord()) {
+        	mSlabPool = new SlabPool(Utilities.getBufferSpillFile(), Configs.INSTANT_SAVE,
+        			SlabPool.computeSlabSize(CircularEncoderBuffer.getMaxPacketSize(Configs.VIDEO_BIT_RATE, mFrameRate)));
+        	int heapSpanSec = Configs.INSTANT_SAVE ? 0 : Configs.HEAP_BUFFER_SEC;
+        	if (Configs.INTERLEAVED_ENCODER_BUFFER && !Configs.LAZY_AUDIO_ENCODING) {
+        		videoEncBuffer = audioEncBuffer = new CircularEncoderBuffer(mSlabPool,
+        				Configs.VIDEO_BIT_RATE + Configs.AUDIO_BIT_RATE, mFrameRate + getAudioFrameRate(),
+        				PrefUtils.getPreRecordTime(), PrefUtils.MAX_PRE_RECORD_TIME, true, heapSpanSec);
+        	} else {
+	        	videoEncBuffer = new CircularEncoderBuffer(mSlabPool, Configs.VIDEO_BIT_RATE, mFrameRate,
+	        			PrefUtils.getPreRecordTime(), PrefUtils.MAX_PRE_RECORD_TIME, true, heapSpanSec);
+	        	audioEncBuffer = new CircularEncoderBuffer(mSlabPool, Configs.AUDIO_BIT_RATE, getAudioFrameRate(),
+	        			PrefUtils.getPreRecordTime(), PrefUtils.MAX_PRE_RECORD_TIME, false, PrefUtils.MAX_PRE_RECORD_TIME);
+        	}
+        	if (Configs.ADAPTIVE_BIT_RATE) {
+        		mBitRateController = new BitRateController(Configs.VIDEO_BIT_RATE,
+        				Configs.VIDEO_BIT_RATE / 4, videoEncBuffer == audioEncBuffer ? Configs.AUDIO_BIT_RATE : 0);
+        		updateBitRateBudget(videoEncBuffer, PrefUtils.getPreRecordTime());
+        	}
+        }
 
         // Start the encoder thread last. That way we're sure it can see all of the state we've initialized.
-        mVideoEncoderThread = new VideoEncoderThread(mVideoEncoder, videoEncBuffer);
-        mVideoEncoderThread.start();
+        // Before the encoder threads, which wake it up when their formats arrive.
+        mMuxerThread = new MuxerThread();
+        mMuxerThread.start();
 
+        mVideoEncoderThread = new VideoEncoderThread(videoEncBuffer);
+        mVideoEncoderThread.start();
 
-        MediaFormat audioFormat = new MediaFormat();
-        audioFormat.setString(MediaFormat.KEY_MIME, AUDIO_MIME_TYPE);
-        audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
-        audioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
-        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
-        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, Configs.AUDIO_BIT_RATE);
-        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
-
-        mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
-        mAudioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mAudioEncoder.start();
-
-        mAudioEncoderThread = new AudioEncoderThread(audioEncBuffer);
-        mAudioEncoderThread.start();
+        mAudioEncoder = new AudioEncoder(audioEncBuffer);
+        mAudioCapture = new AudioCapture(mPcmSource, new AudioClock(Configs.SAMPLE_RATE, 2),
+        		mAudioSource, Configs.SAMPLES_PER_FRAME * 2, mAudioEncoder);
+        if (Configs.LAZY_AUDIO_ENCODING && !PrefUtils.isDirectRecord()) {
+        	mAudioCapture.setPcmRing(new PcmRing(Configs.SAMPLES_PER_FRAME * 2,
+        			getPcmRingFrames(PrefUtils.getPreRecordTime())));
+        }
+        mAudioCapture.start();
 
         mVideoEncoderThread.waitUntilReady();
     }
 
-	private MediaCodec createVideoEncoder() {
-		MediaFormat videoFormat = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, mVideoWidth, mVideoHeight);
+	/**
+	 * The video encoder's format.  MediaCodecSource creates the encoder with a Surface for
+	 * input, which gets wrapped with a class that handles the EGL work.
+	 */
+	private static MediaFormat createVideoFormat(int width, int height, int frameRate) {
+		MediaFormat videoFormat = MediaFormat.createVideoFormat(VIDEO_MIME_TYPE, width, height);
 
         videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, Configs.VIDEO_BIT_RATE);
-        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, mFrameRate);
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+        return videoFormat;
+	}
 
-        // Create a MediaCodec encoder, and configure it with our format.  Get a Surface
-        // we can use for input and wrap it with a class that handles the EGL work.
-        MediaCodec videoEncoder = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
-        videoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-
-        return videoEncoder;
+	private static MediaFormat createAudioFormat() {
+        MediaFormat audioFormat = new MediaFormat();
+        audioFormat.setString(MediaFormat.KEY_MIME, AUDIO_MIME_TYPE);
+        audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        audioFormat.setInteger(MediaFormat.KEY_SAMPLE_RATE, 44100);
+        audioFormat.setInteger(MediaFormat.KEY_CHANNEL_COUNT, 1);
+        audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, Configs.AUDIO_BIT_RATE);
+        audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, 16384);
+        return audioFormat;
 	}
 
 	private void changeState(int state) {
@@ -203,27 +263,37 @@ public class CircularEncoder {
     	}
 	}
 
+	/**
+	 * Waits until the muxer has started on the file, caught up with the pre-record buffer
+	 * or not.
+	 */
+	public void waitSaveStarted() {
+    	while (mState != STATE_SAVE_AND_CACHE && mState != STATE_SAVE_DIRECT) {
+        	synchronized (mStateLock) {
+        		try {
+					mStateLock.wait();
+				} catch (InterruptedException e) { }
+        	}
+    	}
+	}
+
     /**
      * Returns the encoder's input surface.
      */
     public Surface getInputSurface() {
-        return mInputSurface;
-    }
-
-    public MediaCodec getVideoEncoder() {
-    	return mVideoEncoder;
+        return mVideoSource.getInputSurface();
     }
 
     /**
      * Shuts down the encoder thread, and releases encoder resources.
      * <p>
-     * Does not return until the encoder thread has stopped.
+     * Does not return until the encoder thread has stopped.  The buffers are released by the
+     * muxer thread, once it has finished the clip it may be in the middle of; that isn't
+     * waited for.
      */
     public void shutdown() {
         if (VERBOSE) Log.d(TAG, "releasing encoder objects");
 
-        mAudioEncoderThread.mShutdown = true;
-
         if (mVideoEncoderThread.getId() != Thread.currentThread().getId()) {
 	        Handler handler = mVideoEncoderThread.getHandler();
 	        handler.sendEmptyMessage(VideoEncoderHandler.MSG_SHUTDOWN);
@@ -234,21 +304,39 @@ public class CircularEncoder {
         	mVideoEncoderThread.shutdown();
         }
 
-        try {
-        	mAudioEncoderThread.join();
-        } catch (InterruptedException ie) {
-            Log.w(TAG, "Encoder thread join() was interrupted", ie);
-        }
+        mAudioCapture.stop();
 
-        if (mInputSurface != null) {
-        	mInputSurface.release();
-        	mInputSurface = null;
+        if (mClipExporter != null) {
+        	mClipExporter.release();
+        	mClipExporter = null;
         }
 
-        if (mVideoEncoder != null) {
-            mVideoEncoder.stop();
-            mVideoEncoder.release();
-            mVideoEncoder = null;
+        final CircularEncoderBuffer videoEncBuffer = mVideoEncoderThread.mEncBuffer;
+        final CircularEncoderBuffer audioEncBuffer = isInterleaved() ? null : mAudioEncoder.mEncBuffer;
+        final SlabPool slabPool = mSlabPool;
+        mSlabPool = null;
+        mMuxerThread.shutdown(new Runnable() {
+			@Override
+			public void run() {
+		        if (videoEncBuffer != null) {
+		        	videoEncBuffer.release();
+		        }
+		        if (audioEncBuffer != null) {
+		        	audioEncBuffer.release();
+		        }
+		        if (slabPool != null) {
+		        	slabPool.release();
+		        }
+			}
+		});
+
+        if (mVideoSource != null) {
+            mVideoSource.release();
+            mVideoSource = null;
+        }
+        if (mAudioSource != null) {
+            mAudioSource.release();
+            mAudioSource = null;
         }
     }
 
@@ -271,106 +359,517 @@ public class CircularEncoder {
         handler.sendMessage(handler.obtainMessage(VideoEncoderHandler.MSG_FRAME_AVAILABLE_SOON));
     }
 
+    /**
+     * Fills in the current state of the video and audio buffers.  Cheap enough to call every
+     * frame.  With one interleaved buffer, both get its numbers.
+     *
+     * @return False if we're recording directly, without buffers.
+     */
+    public boolean getBufferMetrics(BufferMetrics video, BufferMetrics audio) {
+    	CircularEncoderBuffer videoEncBuffer = mVideoEncoderThread.mEncBuffer;
+    	CircularEncoderBuffer audioEncBuffer = mAudioEncoder.mEncBuffer;
+    	if (videoEncBuffer == null || audioEncBuffer == null) return false;
+
+    	videoEncBuffer.getMetrics(video);
+    	audioEncBuffer.getMetrics(audio);
+    	return true;
+    }
+
+    /**
+     * Changes how many seconds of pre-record video to keep, without losing what's already
+     * buffered.  Only meant for when we're caching.
+     */
+    public void setPreRecordTime(int preRecordSec) {
+    	if (mVideoEncoderThread.mEncBuffer != null) {
+    		mVideoEncoderThread.mEncBuffer.setSpan(preRecordSec);
+    	}
+    	if (mAudioEncoder.mEncBuffer != null && !isInterleaved()) {
+    		mAudioEncoder.mEncBuffer.setSpan(preRecordSec);
+    	}
+    	if (mAudioCapture.isLazy()) {
+    		mAudioCapture.setPcmRingFrames(getPcmRingFrames(preRecordSec));
+    	}
+    	if (mVideoEncoderThread.mEncBuffer != null) {
+    		updateBitRateBudget(mVideoEncoderThread.mEncBuffer, preRecordSec);
+    	}
+    }
+
     /**
      * Initiates saving the currently-buffered frames to the specified output file.  The
      * data will be written as a .mp4 file.  The call returns immediately.  When the file
      * save completes, the callback will be notified.
      * <p>
-     * The file generation is performed on the encoder thread, which means we won't be
-     * draining the output buffers while this runs.  It would be wise to stop submitting
-     * frames during this time.
+     * The file is written by the muxer thread, so the encoders keep running meanwhile.
      */
     public void startSaveVideo() {
 		mStartUsec = System.nanoTime()/1000;
     	if (!PrefUtils.isDirectRecord()) {
     		mStartUsec -= mVideoEncoderThread.mEncBuffer.computeTimeSpanUsec();
     	}
-
-    	new Thread("SaveAllBuffer") {
-    		@Override
-    		public void run() {
-				tryStartMuxer();
+    	if (mAudioCapture.isLazy()) {
+    		synchronized (mMediaMuxerLock) {
+    			// The pre-roll's audio is encoded now, from a GOP before the video's; the muxer
+    			// waits for it to catch up.
+    			mAudioEncoder.mCatchUpUsec = System.nanoTime() / 1000;
+    			mAudioCapture.startEncoding(mStartUsec - IFRAME_INTERVAL * 1000000L);
     		}
-    	}.start();
+    	}
+
+    	mMuxerThread.wakeUp();
 
 //        Handler handler = mVideoEncoderThread.getHandler();
 //        handler.sendMessage(handler.obtainMessage(VideoEncoderHandler.MSG_SAVE_BUFFER_TO_FILE, outputFile));
     }
 
-    void tryStartMuxer() {
+    /**
+     * Writes a file per clip out of the pre-record buffer, several at once, while the encoders
+     * keep going; see {@link ClipExporter}.  Needs the interleaved buffer, and both encoders
+     * to have reported their formats.  Call on the thread that calls shutdown().
+     *
+     * @return A future per clip that gets its file, or null if there's nothing to export from.
+     */
+    List<Future<File>> exportClips(List<ClipExporter.Clip> clips, ClipExporter.Listener listener) {
+    	if (!isInterleaved() || mVideoEncoderThread.mEncodedFormat == null
+    			|| mAudioEncoder.mEncodedFormat == null) {
+    		return null;
+    	}
+    	if (mClipExporter == null) {
+    		Mp4Track videoFormat = new Mp4Track();
+    		videoFormat.setFormat(mVideoEncoderThread.mEncodedFormat);
+    		Mp4Track audioFormat = new Mp4Track();
+    		audioFormat.setFormat(mAudioEncoder.mEncodedFormat);
+    		mClipExporter = new ClipExporter(mVideoEncoderThread.mEncBuffer, videoFormat,
+    				audioFormat);
+    		if (Configs.MUXER_CHUNK_MS > 0) {
+    			mClipExporter.setChunkDuration(Configs.MUXER_CHUNK_MS * 1000L);
+    		}
+    	}
+    	mClipExporter.setOrientationHint(getOrientationHint());
+    	mClipExporter.setListener(listener);
+    	return mClipExporter.export(clips);
+    }
+
+    /**
+     * The rotation to play the video with, for the way the device is held now.
+     */
+    private int getOrientationHint() {
+    	int orientation = 360 - MainActivity.Instance.mOrientation - 90;
+    	if (orientation < 0) orientation += 360;
+    	if (orientation == 90) orientation = 270;
+    	else if (orientation == 270) orientation = 90;
+    	return orientation;
+    }
+
+    /**
+     * Creates and starts the muxer once we're asked to save and both encoders have reported
+     * their formats.  Runs on the muxer thread.
+     */
+    private void tryStartMuxer() {
     	if (mStartUsec == -1) return;
-    	if (mMediaMuxer != null) return;
-		if (mVideoEncoderThread.mEncodedFormat == null || mAudioEncoderThread.mEncodedFormat == null) return;
+    	if (hasMuxer()) return;
+		if (mVideoEncoderThread.mEncodedFormat == null || mAudioEncoder.mEncodedFormat == null) return;
+		if (mAudioCapture.isLazy() && !mAudioEncoder.mCaughtUp) return;
 
 		synchronized (CircularEncoder.class) {
-			if (mMediaMuxer != null) return;
+			if (hasMuxer()) return;
 
 	    	try {
-				mMediaMuxer = new MediaMuxer(CamcorderManager.Instance.mOutputFile.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+	    		if (Configs.RING_MP4_WRITER && isInterleaved() && !PrefUtils.isDirectRecord()) {
+	    			mRingWriter = new RingMp4Writer(CamcorderManager.Instance.mOutputFile);
+	    		} else if (Configs.FRAGMENTED_MP4_WRITER) {
+	    			mSampleSink = new FragmentedMp4Writer(CamcorderManager.Instance.mOutputFile);
+	    		} else {
+	    			mSampleSink = new MediaMuxerSink(CamcorderManager.Instance.mOutputFile);
+	    		}
 			} catch (IOException e) {
 				e.printStackTrace();
 				return;
 			}
 		}
 
-    	int orientation = 360 - MainActivity.Instance.mOrientation - 90;
-    	if (orientation < 0) orientation += 360;
-    	if (orientation == 90) orientation = 270;
-    	else if (orientation == 270) orientation = 90;
-
-    	mMediaMuxer.setOrientationHint(orientation);
-
-		mVideoEncoderThread.mVideoTrack = mMediaMuxer.addTrack(mVideoEncoderThread.mEncodedFormat);
-		mAudioEncoderThread.mAudioTrack = mMediaMuxer.addTrack(mAudioEncoderThread.mEncodedFormat);
+    	int orientation = getOrientationHint();
 
-		mMediaMuxer.start();
+    	if (mRingWriter != null) {
+    		mRingWriter.setOrientationHint(orientation);
+    		if (Configs.MUXER_CHUNK_MS > 0) {
+    			mRingWriter.setChunkDuration(Configs.MUXER_CHUNK_MS * 1000L);
+    		}
+    		if (Configs.RECORDING_JOURNAL) {
+    			mRingWriter.setJournal(Mp4Journal.getFile(Utilities.getJournalFolder(),
+    					CamcorderManager.Instance.mOutputFile));
+    		}
+    		if (Configs.FASTSTART_LIVE_SEC > 0) {
+    			BufferMetrics metrics = new BufferMetrics();
+    			mVideoEncoderThread.mEncBuffer.getMetrics(metrics);
+    			mRingWriter.setFaststart(metrics.metaSlotsUsed
+    					+ Configs.FASTSTART_LIVE_SEC * (mFrameRate + getAudioFrameRate()));
+    		}
+    		mVideoEncoderThread.mVideoTrack = mRingWriter.addTrack(mVideoEncoderThread.mEncodedFormat);
+    		mAudioEncoder.mAudioTrack = mRingWriter.addTrack(mAudioEncoder.mEncodedFormat);
+    		try {
+    			mRingWriter.start();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    			mRingWriter.release();
+    			mRingWriter = null;
+    			return;
+    		}
+    	} else {
+    		mSampleSink.setOrientationHint(orientation);
+    		mVideoEncoderThread.mVideoTrack = mSampleSink.addTrack(mVideoEncoderThread.mEncodedFormat);
+    		mAudioEncoder.mAudioTrack = mSampleSink.addTrack(mAudioEncoder.mEncodedFormat);
+    		try {
+    			mSampleSink.start();
+    		} catch (IOException e) {
+    			e.printStackTrace();
+    			mSampleSink.release();
+    			mSampleSink = null;
+    			return;
+    		}
+    	}
 
 		if (PrefUtils.isDirectRecord()) {
 			changeState(STATE_SAVE_DIRECT);
 		} else {
+			// Reading through cursors leaves the buffers as they are, so they keep caching
+			// while we save and the next save gets its full pre-record time as well.
+			synchronized (mMediaMuxerLock) {
+				mVideoCursor = mVideoEncoderThread.mEncBuffer.openCursor();
+				if (!isInterleaved()) {
+					mAudioCursor = mAudioEncoder.mEncBuffer.openCursor();
+				}
+			}
 			changeState(STATE_SAVE_AND_CACHE);
-			saveAllBufferToFile();
 		}
 	}
 
-    public void saveAllBufferToFile() {
-    	BufferInfo info = new BufferInfo();
-    	boolean first = true;
-    	long presentationTime = 0;
-    	do {
+    /**
+     * Writes up to MUXER_BATCH_PACKETS packets the save's cursors haven't got to yet.
+     *
+     * @return How many were written; 0 once we've caught up with the encoders.
+     */
+    private int writeBatchLocked(BufferInfo info) {
+    	int count = 0;
+    	if (mRingWriter != null) {
+    		// Whole runs of the buffer at a time, no packet by packet muxing.
+    		count = mRingWriter.writeFromBuffer(mVideoEncoderThread.mEncBuffer, mVideoCursor,
+    				mVideoEncoderThread.mVideoTrack, mAudioEncoder.mAudioTrack,
+    				RING_WRITER_BATCH_BYTES);
+    	} else if (isInterleaved()) {
+    		// The packets are in the order the muxer wants them already.
+    		while (count < MUXER_BATCH_PACKETS
+    				&& saveOneChunkToFileLocked(mVideoEncoderThread.mEncBuffer, mVideoCursor, info)) {
+    			count++;
+    		}
+    	} else {
+    		while (count < MUXER_BATCH_PACKETS && saveOneFrameToFileLocked(info) > 0) {
+    			count++;
+    		}
+    	}
+    	return count;
+    }
+
+    private long saveOneFrameToFileLocked(BufferInfo info) {
+    	long presentationTime = mVideoEncoderThread.saveOneFrameToFileLocked(info);
+    	mAudioEncoder.saveOneFrameToFileLocked(info, presentationTime);
+    	mVideoCursor.advance();
+    	return presentationTime;
+    }
+
+    /**
+     * Writes the packet at the cursor to the muxer, on the track it came from.
+     *
+     * @return False if the cursor had nothing left.
+     */
+    private boolean saveOneChunkToFileLocked(CircularEncoderBuffer encBuffer,
+    		CircularEncoderBuffer.Cursor cursor, BufferInfo info) {
+    	int index = cursor.getIndex();
+    	if (index < 0) {
+    		return false;
+    	}
+    	ByteBuffer buf = encBuffer.getChunk(index, info);
+    	writeSampleDataLocked(getMuxerTrack(encBuffer.getTrack(index)), buf, info);
+    	cursor.advance();
+    	return true;
+    }
+
+    private void writeSampleDataLocked(int track, ByteBuffer buf, BufferInfo info) {
+    	mSampleSink.writeSampleData(track, buf, info);
+    }
+
+    private int getMuxerTrack(int track) {
+    	return track == CircularEncoderBuffer.TRACK_VIDEO ? mVideoEncoderThread.mVideoTrack
+    			: mAudioEncoder.mAudioTrack;
+    }
+
+    /**
+     * Tells the bit rate controller how much the video buffer holds now, for the span plus the
+     * GOP it keeps at the start.
+     */
+    private void updateBitRateBudget(CircularEncoderBuffer encBuffer, int preRecordSec) {
+    	BitRateController controller = mBitRateController;
+    	if (controller != null) {
+    		BufferMetrics metrics = new BufferMetrics();
+    		encBuffer.getMetrics(metrics);
+    		controller.setBudget(metrics.bytesCapacity, preRecordSec + IFRAME_INTERVAL);
+    	}
+    }
+
+    /**
+     * How many frames of PCM to keep for a lazy AudioCapture.
+     */
+    private static int getPcmRingFrames(int preRecordSec) {
+    	return (preRecordSec + PCM_RING_MARGIN_SEC) * getAudioFrameRate();
+    }
+
+    /**
+     * AAC packets per second, rounded up.
+     */
+    private static int getAudioFrameRate() {
+    	return (Configs.SAMPLE_RATE + Configs.SAMPLES_PER_FRAME - 1) / Configs.SAMPLES_PER_FRAME;
+    }
+
+    private boolean hasMuxer() {
+    	return mSampleSink != null || mRingWriter != null;
+    }
+
+    /**
+     * Returns true if video and audio share one buffer.
+     */
+    private boolean isInterleaved() {
+    	return mVideoEncoderThread.mEncBuffer != null
+    			&& mVideoEncoderThread.mEncBuffer == mAudioEncoder.mEncBuffer;
+    }
+
+    /**
+     * Hands one encoded packet to the buffer or the muxer, depending on the current state.
+     * Called from the encoder threads.
+     * <p>
+     * With pre-recording everything goes through the buffer, saving or not; the muxer thread
+     * picks it up from there.
+     *
+     * @param track CircularEncoderBuffer.TRACK_VIDEO or TRACK_AUDIO.
+     */
+    private void writeEncodedData(CircularEncoderBuffer encBuffer, int track, ByteBuffer encodedData,
+    		BufferInfo bufferInfo) {
+    	if (encBuffer == null) {
     		synchronized (mMediaMuxerLock) {
-        		presentationTime = mVideoEncoderThread.saveOneFrameToFileLocked(info, first);
-        		mAudioEncoderThread.saveOneFrameToFileLocked(info, presentationTime);
-        		mVideoEncoderThread.mEncBuffer.removeTail();
-        		first = false;
-        		if (presentationTime <= 0) {
-        			changeState(STATE_SAVE_DIRECT);
-        		}
-			}
-		} while (presentationTime > 0);
+    			if (mState == STATE_SAVE_DIRECT) {
+    				writeSampleDataLocked(getMuxerTrack(track), encodedData, bufferInfo);
+    			}
+    		}
+    		return;
+    	}
+
+    	encBuffer.add(encodedData, bufferInfo.flags, bufferInfo.presentationTimeUs, track);
+    	if (mState != STATE_CACHE_CIRCULAR) {
+    		// Something new for the muxer thread to write.
+    		mMuxerThread.wakeUp();
+    	}
     }
 
     public void stopSaving() {
-		changeState(PrefUtils.isDirectRecord() ? STATE_IDLE : STATE_CACHE_CIRCULAR);
         mStartUsec = -1;
     	synchronized (mMediaMuxerLock) {
-	        if (mMediaMuxer != null) {
-	        	try {
-	        		mMediaMuxer.stop();
-		        	mMediaMuxer.release();
-	        	} catch (IllegalStateException ex) {
-	        		ex.printStackTrace();
-	        	}
-	        	mMediaMuxer = null;
-
-	            mCallback.fileSaveComplete(0);
-	        } else {
-	            mCallback.fileSaveComplete(3);
-	        }
+    		// Changed with the lock held, so the muxer thread can't switch to STATE_SAVE_DIRECT
+    		// after us.
+	    	boolean live = mState == STATE_SAVE_DIRECT;
+			changeState(PrefUtils.isDirectRecord() ? STATE_IDLE : STATE_CACHE_CIRCULAR);
+			if (mStopPending) {
+				// Stopped already, the muxer thread is finishing the file.
+				return;
+			}
+			if (Configs.INSTANT_SAVE && mVideoCursor != null) {
+				// The clip ends with what's in the buffer now.  The muxer thread writes what it
+				// hasn't got to yet, pre-roll and all, and finishes the file in the background.
+				mVideoCursor.stopAtHead();
+				if (mAudioCursor != null) {
+					mAudioCursor.stopAtHead();
+				}
+				mStopPending = true;
+				mMuxerThread.wakeUp();
+				return;
+			}
+        	if (live && mVideoCursor != null) {
+        		// The few packets the muxer thread hasn't got to yet.
+        		BufferInfo info = new BufferInfo();
+        		while (writeBatchLocked(info) > 0) { }
+        	}
+        	finishSavingLocked();
     	}
     	CamcorderManager.Instance.onStoped();
     }
 
+    /**
+     * Stops the muxer, if there is one, and reports how the save went.  Call with
+     * mMediaMuxerLock held.
+     */
+    private void finishSavingLocked() {
+    	if (hasMuxer()) {
+    		try {
+    			if (mRingWriter != null) {
+    				if (mVideoCursor != null) {
+    					// Including what's waiting for the rest of its chunk.
+    					mRingWriter.flush(mVideoEncoderThread.mEncBuffer, mVideoCursor,
+    							mVideoEncoderThread.mVideoTrack, mAudioEncoder.mAudioTrack);
+    				}
+    				mRingWriter.stop();
+    			} else {
+    				mSampleSink.stop();
+    			}
+    		} catch (IllegalStateException ex) {
+    			ex.printStackTrace();
+    		} catch (IOException ex) {
+    			ex.printStackTrace();
+    		}
+    		mSampleSink = null;
+    		mRingWriter = null;
+
+    		if (mVideoCursor != null) {
+    			mVideoCursor.close();
+    			mVideoCursor = null;
+    		}
+    		if (mAudioCursor != null) {
+    			mAudioCursor.close();
+    			mAudioCursor = null;
+    		}
+
+    	    mCallback.fileSaveComplete(0);
+    	} else {
+    	    mCallback.fileSaveComplete(3);
+    	}
+    	mStopPending = false;
+
+    	if (mAudioCapture.isLazy() && mStartUsec == -1) {
+    		// No other save waiting for the encoder, back to keeping the PCM.
+    		mAudioCapture.stopEncoding();
+    		mAudioEncoder.mCatchUpUsec = -1;
+    		mAudioEncoder.mCaughtUp = false;
+    	}
+    }
+
+    /**
+     * Writes the file while we're saving, so neither the encoder threads nor the caller of
+     * startSaveVideo() have to.  Lives as long as the encoder.
+     * <p>
+     * Starts the muxer, then drains the pre-record backlog from the buffers in batches, as
+     * fast as the muxer takes them.  Once it has caught up it switches to STATE_SAVE_DIRECT
+     * and follows the encoders, which wake it up whenever they add a packet.
+     * <p>
+     * With Configs.INSTANT_SAVE, stopSaving() leaves the rest of the file to it as well, and
+     * it doesn't quit before that's done.  Nor if it's shut down in the middle of a save: the
+     * clip then ends with what's buffered, as if stopSaving() had been called, so it doesn't
+     * get left without a moov.  Only then does it release the buffers, see shutdown().
+     */
+    private class MuxerThread extends Thread {
+        private final Object mLock = new Object();
+        private boolean mWakeUp;
+        private volatile boolean mShutdown;
+        // Run on the way out; set before mShutdown.
+        private Runnable mRelease;
+
+        public MuxerThread() {
+            setName("MuxerThread");
+        }
+
+        @Override
+        public void run() {
+            BufferInfo info = new BufferInfo();
+            long catchUpStartNsec = 0;
+            while (true) {
+                if (mShutdown && !mStopPending && !stopSavingForShutdown()) {
+                    break;
+                }
+                tryStartMuxer();
+
+                int written = 0;
+                boolean stopped = false;
+                synchronized (mMediaMuxerLock) {
+                    if (mVideoCursor != null) {
+                        if (catchUpStartNsec == 0) {
+                            catchUpStartNsec = System.nanoTime();
+                        }
+                        written = writeBatchLocked(info);
+                        if (written == 0 && mState == STATE_SAVE_AND_CACHE) {
+                            Log.d(TAG, "caught up with the pre-record buffer in "
+                                    + (System.nanoTime() - catchUpStartNsec) / 1000000 + "ms");
+                            changeState(STATE_SAVE_DIRECT);
+                        }
+                        if (written == 0 && mStopPending) {
+                            finishSavingLocked();
+                            stopped = true;
+                        }
+                    } else {
+                        catchUpStartNsec = 0;
+                    }
+                }
+                if (stopped) {
+                    CamcorderManager.Instance.onStoped();
+                } else if (written == 0) {
+                    waitForWork();
+                }
+            }
+            if (mRelease != null) {
+                mRelease.run();
+            }
+        }
+
+        /**
+         * Ends the save in progress, if the muxer has started on it, at the head of the
+         * buffers, for the loop to finish.
+         *
+         * @return false if there's nothing to finish.
+         */
+        private boolean stopSavingForShutdown() {
+            synchronized (mMediaMuxerLock) {
+                if (mVideoCursor == null) {
+                    return false;
+                }
+                Log.w(TAG, "shut down while saving, ending the clip here");
+                mStartUsec = -1;
+                changeState(PrefUtils.isDirectRecord() ? STATE_IDLE : STATE_CACHE_CIRCULAR);
+                mVideoCursor.stopAtHead();
+                if (mAudioCursor != null) {
+                    mAudioCursor.stopAtHead();
+                }
+                mStopPending = true;
+                return true;
+            }
+        }
+
+        /**
+         * Tells the thread there may be something to do.  Cheap; the encoder threads call it
+         * for every packet while we're saving.
+         */
+        public void wakeUp() {
+            synchronized (mLock) {
+                mWakeUp = true;
+                mLock.notify();
+            }
+        }
+
+        private void waitForWork() {
+            synchronized (mLock) {
+                while (!mWakeUp && !mShutdown) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException ie) { }
+                }
+                mWakeUp = false;
+            }
+        }
+
+        /**
+         * Has the thread quit once the save in progress, if any, is written, and run "release"
+         * on its way out.  Doesn't wait for it.
+         */
+        public void shutdown(Runnable release) {
+            mRelease = release;
+            mShutdown = true;
+            wakeUp();
+        }
+    }
+
 	/**
      * Object that encapsulates the encoder thread.
      * <p>
@@ -394,12 +893,13 @@ public class CircularEncoder {
         private VideoEncoderHandler mHandler;
         private CircularEncoderBuffer mEncBuffer;
         private int mFrameNum;
+        private final BufferMetrics mVideoMetrics = new BufferMetrics();
+        private final BufferMetrics mAudioMetrics = new BufferMetrics();
 
         private final Object mLock = new Object();
         private volatile boolean mReady = false;
 
-        public VideoEncoderThread(MediaCodec mediaCodec, CircularEncoderBuffer encBuffer) {
-            mVideoEncoder = mediaCodec;
+        public VideoEncoderThread(CircularEncoderBuffer encBuffer) {
             mEncBuffer = encBuffer;
             mBufferInfo = new MediaCodec.BufferInfo();
             setName("VideoEncoderThread");
@@ -428,15 +928,14 @@ public class CircularEncoder {
             Log.d(TAG, "video looper quit");
         }
 
-        public long saveOneFrameToFileLocked(MediaCodec.BufferInfo info, boolean firstFrame) {
-            int index = firstFrame ? mEncBuffer.getFirstSyncIndex() : mEncBuffer.getCurrentIndex();
+        public long saveOneFrameToFileLocked(MediaCodec.BufferInfo info) {
+            int index = mVideoCursor.getIndex();
             if (index < 0) {
             	return -1;
             }
-            mEncBuffer.setTail(index);
             ByteBuffer buf = mEncBuffer.getChunk(index, info);
 //        	Log.d(TAG, "Video.writeSampleData.saveOneFrameToFileLocked:"+info.presentationTimeUs+", index:"+index);
-            mMediaMuxer.writeSampleData(mVideoTrack, buf, info);
+            writeSampleDataLocked(mVideoTrack, buf, info);
 
             return info.presentationTimeUs;
         }
@@ -475,29 +974,27 @@ public class CircularEncoder {
         public void drainVideoEncoder() {
             final int TIMEOUT_USEC = 0;     // no timeout -- check for buffers, bail if none
 
-            ByteBuffer[] encoderOutputBuffers = mVideoEncoder.getOutputBuffers();
             while (true) {
-                int encoderStatus = mVideoEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
+                int encoderStatus = mVideoSource.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
                 if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                     break;
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    // not expected for an encoder
-                    encoderOutputBuffers = mVideoEncoder.getOutputBuffers();
+                    // not expected for an encoder; the source gets the new buffers itself
                 } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     // Should happen before receiving buffers, and should only happen once.
                     // The MediaFormat contains the csd-0 and csd-1 keys, which we'll need
                     // for MediaMuxer.  It's unclear what else MediaMuxer might want, so
                     // rather than extract the codec-specific data and reconstruct a new
                     // MediaFormat later, we just grab it here and keep it around.
-                    mEncodedFormat = mVideoEncoder.getOutputFormat();
-                    tryStartMuxer();
+                    mEncodedFormat = mVideoSource.getOutputFormat();
+                    mMuxerThread.wakeUp();
                     Log.d(TAG, "encoder output format changed: " + mEncodedFormat);
                 } else if (encoderStatus < 0) {
                     Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
                     // let's ignore it
                 } else {
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
+                    ByteBuffer encodedData = mVideoSource.getOutputBuffer(encoderStatus);
                     if (encodedData == null) {
                         throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
                     }
@@ -514,24 +1011,11 @@ public class CircularEncoder {
 						// adjust the ByteBuffer values to match BufferInfo (not needed?)
 						encodedData.position(mBufferInfo.offset);
 						encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-				    	synchronized (mMediaMuxerLock) {
-				    		switch (mState) {
-							case STATE_CACHE_CIRCULAR:
-							case STATE_SAVE_AND_CACHE:
-								mEncBuffer.add(encodedData, mBufferInfo.flags, mBufferInfo.presentationTimeUs, mState);
-								break;
-
-							case STATE_IDLE:
-								break;
-
-							case STATE_SAVE_DIRECT:
-								mMediaMuxer.writeSampleData(mVideoTrack, encodedData, mBufferInfo);
-								break;
-							}
-						}
+						writeEncodedData(mEncBuffer, CircularEncoderBuffer.TRACK_VIDEO, encodedData, mBufferInfo);
+						adjustBitRate();
 					}
 
-                    mVideoEncoder.releaseOutputBuffer(encoderStatus, false);
+                    mVideoSource.releaseOutputBuffer(encoderStatus);
 
 //                	Log.d(TAG, "no END_OF_STREAM:"+mBufferInfo.presentationTimeUs+", "+CamcorderManager.Instance.mGlThread.mLastTimestamp);
 
@@ -552,6 +1036,24 @@ public class CircularEncoder {
             }
         }
 
+        /**
+         * Hands the packet in mBufferInfo to the bit rate controller, and the encoder the bit
+         * rate that comes back, if any.
+         */
+        private void adjustBitRate() {
+            BitRateController controller = mBitRateController;
+            if (controller == null) {
+                return;
+            }
+            int bitRate = controller.onPacket(mBufferInfo.size, mBufferInfo.flags,
+                    mBufferInfo.presentationTimeUs);
+            if (bitRate > 0 && !mVideoSource.setBitRate(bitRate)) {
+                Log.w(TAG, "Video encoder can't change its bit rate, leaving it at "
+                        + Configs.VIDEO_BIT_RATE);
+                mBitRateController = null;
+            }
+        }
+
         /**
          * Drains the encoder output.
          * <p>
@@ -571,6 +1073,9 @@ public class CircularEncoder {
             	}
                 mCallback.bufferStatus(timeSpan);
             }
+            if ((mFrameNum % Math.max(mFrameRate, 1)) == 0 && getBufferMetrics(mVideoMetrics, mAudioMetrics)) {
+            	mCallback.bufferMetrics(mVideoMetrics, mAudioMetrics);
+            }
         }
 
         /**
@@ -668,112 +1173,38 @@ public class CircularEncoder {
         }
     }
 
-    private class AudioEncoderThread extends Thread {
+    /**
+     * Takes what the audio encoder puts out from the AudioCapture, on its encoder thread.
+     */
+    private class AudioEncoder implements AudioCapture.Listener {
 
         private MediaFormat mEncodedFormat;
-        private MediaCodec.BufferInfo mBufferInfo;
         private int mAudioTrack;
 
         private CircularEncoderBuffer mEncBuffer;
+        // With a lazy AudioCapture: when the save started, -1 for none, and whether the
+        // encoder has got there.
+        volatile long mCatchUpUsec = -1;
+        volatile boolean mCaughtUp;
 
-    	public AudioEncoderThread(CircularEncoderBuffer encBuffer) {
+    	public AudioEncoder(CircularEncoderBuffer encBuffer) {
             mEncBuffer = encBuffer;
-            mBufferInfo = new MediaCodec.BufferInfo();
-            setName("AudioEncoderThread");
 		}
 
-        volatile boolean mShutdown = false;
-
-    	@Override
-    	public void run() {
-            mAudioRecord.startRecording();
-            while(!mShutdown){
-                sendAudioToEncoder();
-                drainAudioEncoder();
-            }
-    	}
-
-        // send current frame data to encoder
-        public void sendAudioToEncoder() {
-            try {
-                ByteBuffer[] inputBuffers = mAudioEncoder.getInputBuffers();
-                int inputBufferIndex = mAudioEncoder.dequeueInputBuffer(100000/*us*/);
-                if (inputBufferIndex >= 0) {
-                    ByteBuffer inputBuffer = inputBuffers[inputBufferIndex];
-                    inputBuffer.clear();
-                    long presentationTimeNs = System.nanoTime();
-                    int inputLength =  mAudioRecord.read(inputBuffer, Configs.SAMPLES_PER_FRAME );
-                    if (inputLength > 0) {
-	                    presentationTimeNs -= (inputLength / Configs.SAMPLE_RATE ) / 1000000000;
-	                    //long presentationTimeUs = (presentationTimeNs - startWhen) / 1000;
-	                    long presentationTimeUs = presentationTimeNs / 1000;
-	                    int flags = 0;
-	                    mAudioEncoder.queueInputBuffer(inputBufferIndex, 0, inputLength, presentationTimeUs, flags);
-                    }
-                }
-            } catch (Throwable t) {
-                Log.e(TAG, "_offerAudioEncoder exception", t);
-            }
+        @Override
+        public void onFormatChanged(MediaFormat format) {
+            // should happen before receiving buffers, and should only happen once
+            mEncodedFormat = format;
+            mMuxerThread.wakeUp();
         }
 
-        /**
-         * Extracts all pending data from the encoder and forwards it to the muxer.
-         * <p/>
-         * If endOfStream is not set, this returns when there is no more data to drain.  If it
-         * is set, we send EOS to the encoder, and then iterate until we see EOS on the output.
-         * Calling this with endOfStream set should be done once, right before stopping the muxer.
-         * <p/>
-         * We're just using the muxer to get a .mp4 file (instead of a raw H.264 stream).  We're
-         * not recording audio.
-         */
-        private void drainAudioEncoder() {
-            //testing
-            ByteBuffer[] encoderOutputBuffers = mAudioEncoder.getOutputBuffers();
-
-            while (true) {
-                int encoderStatus = mAudioEncoder.dequeueOutputBuffer(mBufferInfo, 1000/*us*/);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                	break;
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                    encoderOutputBuffers = mAudioEncoder.getOutputBuffers();
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    // should happen before receiving buffers, and should only happen once
-                	mEncodedFormat = mAudioEncoder.getOutputFormat();
-                	tryStartMuxer();
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-                    // let's ignore it
-                } else {
-                    ByteBuffer encodedData = encoderOutputBuffers[encoderStatus];
-                    if (encodedData == null) throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-
-                    if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    	mBufferInfo.size = 0;
-                    }
-
-                    if (mBufferInfo.size != 0) {
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mBufferInfo.offset);
-                        encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-				    	synchronized (mMediaMuxerLock) {
-				    		switch (mState) {
-							case STATE_CACHE_CIRCULAR:
-							case STATE_SAVE_AND_CACHE:
-		                    	mEncBuffer.add(encodedData, mBufferInfo.flags, mBufferInfo.presentationTimeUs, mState);
-								break;
-
-							case STATE_IDLE:
-								break;
-
-							case STATE_SAVE_DIRECT:
-	                    		mMediaMuxer.writeSampleData(mAudioTrack, encodedData, mBufferInfo);
-								break;
-				    		}
-				    	}
-                    }
-
-                    mAudioEncoder.releaseOutputBuffer(encoderStatus, false);
-                }
+        @Override
+        public void onEncodedData(ByteBuffer buf, MediaCodec.BufferInfo info) {
+            writeEncodedData(mEncBuffer, CircularEncoderBuffer.TRACK_AUDIO, buf, info);
+            long catchUpUsec = mCatchUpUsec;
+            if (!mCaughtUp && catchUpUsec >= 0 && info.presentationTimeUs >= catchUpUsec) {
+            	mCaughtUp = true;
+            	mMuxerThread.wakeUp();
             }
         }
 
@@ -801,17 +1232,17 @@ public class CircularEncoder {
 //        }
 
         public void saveOneFrameToFileLocked(MediaCodec.BufferInfo info, long toPresentationTime) {
-            int index = mEncBuffer.getFirstSyncIndex();
+            int index = mAudioCursor.getIndex();
             while (true) {
                 ByteBuffer buf = mEncBuffer.getChunk(index, info);
                 if (index >= 0 && (toPresentationTime < 0 || toPresentationTime >= info.presentationTimeUs)) {
                 	if (VERBOSE) Log.d(TAG, "Audio.writeSampleData.saveOneFrameToFileLocked:"+info.presentationTimeUs+", index:"+index);
-                	mMediaMuxer.writeSampleData(mAudioTrack, buf, info);
+                	writeSampleDataLocked(mAudioTrack, buf, info);
                 } else {
                 	break;
                 }
-                mEncBuffer.removeTail();
-                index = mEncBuffer.getFirstSyncIndex();
+                mAudioCursor.advance();
+                index = mAudioCursor.getIndex();
             }
         }
     }
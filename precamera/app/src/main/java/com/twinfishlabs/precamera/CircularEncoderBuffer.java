@@ -20,6 +20,8 @@ import android.media.MediaCodec;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Holds encoded video data in a circular buffer.
@@ -27,14 +29,52 @@ import java.nio.ByteBuffer;
  * This is actually a pair of circular buffers, one for the raw data and one for the meta-data
  * (flags and PTS).
  * <p>
- * Not thread-safe.
+ * Safe for one producer (the encoder thread calling add()) and any number of readers.  The
+ * producer fills in the data and meta-data before publishing the new head, which is volatile,
+ * so readers see its writes in order.  Readers don't remove anything: each one reads through
+ * a {@link Cursor}, and the producer never evicts past the slowest open cursor, waiting for
+ * it instead when it needs the room.  So several clips can be taken out of the same buffer,
+ * and none of them uses up the pre-roll of the next.
+ * <p>
+ * What's kept is decided by time, not size: whole GOPs are dropped from the
+ * tail as long as what's left still covers the requested span.  The data lives in slabs from
+ * a {@link SlabPool}, taken as the head needs them and given back once the tail has moved on,
+ * so memory use follows the bit rate the encoder really delivers.  The span can be changed at
+ * any time without losing what's buffered: a longer one just lets the buffer take more slabs,
+ * a shorter one evicts down to it on the next add().
+ * <p>
+ * Long spans can be given a spill file.  Only the newest part of the buffer then stays on the
+ * Java heap; older data is moved out to a memory-mapped file, keeping its place in the ring.
+ * With no heap span at all, every page is in the file from the start, so the whole ring is
+ * on storage as the packets arrive.
+ * <p>
+ * A video buffer can also take the audio packets, tagged with {@link #TRACK_AUDIO}, so both
+ * tracks are kept in the order they arrived and can be read back already interleaved.  Each
+ * encoder thread is a producer then; add() serializes them.
+ * <p>
+ * This isn't lock-free.  add() holds a lock only the producers take, and moving the tail
+ * briefly takes the one cursors are opened and closed under; readers take neither to read or
+ * advance.  A producer does wait for a reader, when everything up to the head is pinned by a
+ * cursor: it sleeps until a cursor moves or closes, which wakes it up.
  */
 public class CircularEncoderBuffer {
     private String TAG = Utilities.TAG;
     private static final boolean EXTRA_DEBUG = true;
     private static final boolean VERBOSE = false;
 
+    // The encoder may well run above the bit rate we asked for; this much above it we start
+    // dropping data we'd rather keep.
+    private static final int MAX_BIT_RATE_OVERSHOOT = 2;
+    // A sync frame may be this many times the size of the average frame, before the overshoot.
+    private static final int MAX_SYNC_FRAME_RATIO = 10;
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
     private boolean mIsVideo;
+    private int mBitRate;
+    private int mHeapSpanSec;
+    private volatile long mSpanUsec;
 
     // Raw data (e.g. AVC NAL units) held here.
     //
@@ -47,66 +87,221 @@ public class CircularEncoderBuffer {
     // as needed.  This is a bit awkward when we hit the edge of the buffer, but for that
     // we can just do an allocation and data copy (we know it happens at most once per file
     // save operation).
-    private ByteBuffer mDataBufferWrapper;
-    private byte[] mDataBuffer;
+    //
+    // Packet positions are byte offsets in an endless stream, divided into pages of one slab
+    // each.  Page N lives in mPages[N % mPages.length]; only the pages between the tail and
+    // the head have a slab.  Heap slabs are used for new pages while there are any left.
+    // After that, with a spill file, the oldest heap page is copied out to a file slab and
+    // its heap slab is reused, so the newest data is always on the heap.
+    //
+    // With mContiguous set, a packet that doesn't fit in what's left of the current page
+    // starts at the next page instead, so getChunk() can hand out the page itself rather than
+    // a copy.  The pool's slabs are made big enough for the biggest packet we expect, see
+    // getMaxPacketSize(); one bigger than that still gets split, and copied on every read.
+    private SlabPool mPool;
+    private int mHeapSlabs;                 // our share of the pool
+    private int mFileSlabs;
+    private volatile int mMaxPages;         // at most this many pages at a time, for the current span
+    private int mPageSize;
+    private boolean mContiguous = Configs.CONTIGUOUS_ENCODER_PACKETS;
+    private boolean mSplitLogged;
+    private ByteBuffer[] mPages;            // handed out by getChunk()
+    private ByteBuffer[] mWritePages;       // private to the producer, so it can move position/limit
+    private long mFirstPage;                // oldest page that has a slab
+    private long mEndPage;                  // one past the newest page that has a slab
+    private long mHeadPos;                  // where the next packet's data goes
+
+    // Running totals for getMetrics(), only written by the producer.
+    private volatile long mEvictedPackets;
+    private volatile long mEvictedBytes;
+    private volatile long mWaitNsec;
+    private volatile int mLargestPacket;
+    private volatile int mMeasuredBitRate;
+    private int mDroppedPackets;
+    private long mRateStartUsec = -1;
+    private long mRateBytes;
 
     // Meta-data held here.  We're using a collection of arrays, rather than an array of
     // objects with multiple fields, to minimize allocations and heap footprint.
     private int[] mPacketFlags;
     private long[] mPacketPtsUsec;
-    private int[] mPacketStart;
+    private long[] mPacketStart;
     private int[] mPacketLength;
+    private byte[] mPacketTrack;
 
     // Data is added at head and removed from tail.  Head points to an empty node, so if
     // head==tail the list is empty.
+    //
+    // Only the producer moves the tail, and only while holding mCursors, so a cursor being
+    // opened never sees the packets it starts at evicted.  Open cursors advance without it.
     volatile private int mMetaHead;
     volatile private int mMetaTail;
+    private final ArrayList<Cursor> mCursors = new ArrayList<Cursor>();
+    private final Object mProducerLock = new Object();
+    // Counts the cursors' moves, so a producer waiting for room knows when to look again; it
+    // waits on mCursorMoved, which the cursors only notify while mWaitingProducers says so.
+    private final AtomicInteger mCursorMoves = new AtomicInteger();
+    private final Object mCursorMoved = new Object();
+    private volatile int mWaitingProducers;
+    private volatile long mWaitStartNsec;   // of the first producer still waiting
+
+    // GOP index: the meta-data index of every buffered sync frame, oldest first (video only).
+    // Only the producer writes it.  Eviction drops everything up to the next entry, so the
+    // tail normally sits right on a sync frame.  Entries the tail has moved past are stale and
+    // get dropped lazily by the producer.  There's room for one entry per meta-data slot, so
+    // a live entry is never overwritten.
+    private int[] mSyncIndex;
+    volatile private int mSyncHead;
+    volatile private int mSyncTail;
 
     /**
      * Allocates the circular buffers we use for encoded data and meta-data.
+     *
+     * @param pool Where the data slabs come from.
+     * @param bitRate What the encoder was asked for; for an interleaved buffer, the sum over
+     *     both tracks.
+     * @param frameRate Packets per second, likewise.
+     * @param desiredSpanSec How many seconds to keep, not counting the partial GOP at the
+     *     start.
+     * @param maxSpanSec The longest span {@link #setSpan(int)} may ask for later.
+     * @param heapSpanSec How many of the newest seconds to keep on the heap, if the pool has a
+     *     spill file for the rest.  0 puts all of it in the file.
      */
-    public CircularEncoderBuffer(int bitRate, int frameRate, int desiredSpanSec, boolean isVideo) {
-        // For the encoded data, we assume the encoded bit rate is close to what we request.
-        //
-        // There would be a minor performance advantage to using a power of two here, because
-        // not all ARM CPUs support integer modulus.
+    public CircularEncoderBuffer(SlabPool pool, int bitRate, int frameRate, int desiredSpanSec,
+    		int maxSpanSec, boolean isVideo, int heapSpanSec) {
     	TAG += ":"+(isVideo?"video":"audio");
     	mIsVideo = isVideo;
-        int dataBufferSize = bitRate * desiredSpanSec / 8;
-        mDataBuffer = new byte[dataBufferSize];
-        mDataBufferWrapper = ByteBuffer.wrap(mDataBuffer);
+    	mPool = pool;
+    	mBitRate = bitRate;
+    	mHeapSpanSec = heapSpanSec;
+        mPageSize = pool.getSlabSize();
+        int maxPages = getMaxPages(maxSpanSec);
+        mPages = new ByteBuffer[maxPages];
+        mWritePages = new ByteBuffer[maxPages];
 
         // Meta-data is smaller than encoded data for non-trivial frames, so we over-allocate
         // a bit.  This should ensure that we drop packets because we ran out of (expensive)
         // data storage rather than (inexpensive) metadata storage.
-        int metaBufferCount = frameRate * desiredSpanSec * 2;
+        int metaBufferCount = frameRate * (maxSpanSec + 1) * 2;
         mPacketFlags = new int[metaBufferCount];
         mPacketPtsUsec = new long[metaBufferCount];
-        mPacketStart = new int[metaBufferCount];
+        mPacketStart = new long[metaBufferCount];
         mPacketLength = new int[metaBufferCount];
+        mPacketTrack = new byte[metaBufferCount];
+        if (isVideo) {
+            mSyncIndex = new int[metaBufferCount];
+        }
 
+        setSpan(desiredSpanSec);
         if (true) {
             Log.d(TAG, "CBE: bitRate=" + bitRate + " frameRate=" + frameRate + " desiredSpan="
-            		+ desiredSpanSec + ": dataBufferSize=" + dataBufferSize + " metaBufferCount=" + metaBufferCount);
+            		+ desiredSpanSec + ": maxPages=" + mMaxPages + "/" + maxPages
+            		+ " metaBufferCount=" + metaBufferCount + " heapSlabs=" + mHeapSlabs);
+        }
+    }
+
+    /**
+     * How many pages spanSec worth of data may take.
+     */
+    private int getMaxPages(int spanSec) {
+        // We don't trust the encoded bit rate to be close to what we request, so it only
+        // sets a limit on how much we'll hold.  Keep room for the extra GOP at the start.
+        long maxDataSize = (long) mBitRate * (spanSec + 1) / 8 * MAX_BIT_RATE_OVERSHOOT;
+        return (int) ((maxDataSize + mPageSize - 1) / mPageSize) + 1;
+    }
+
+    /**
+     * The biggest packet an encoder running at "bitRate" and "frameRate" should put out: a
+     * sync frame MAX_SYNC_FRAME_RATIO times the average, overshooting like the rest.  Size the
+     * pool's slabs for it, so it's never split.
+     */
+    public static int getMaxPacketSize(int bitRate, int frameRate) {
+        return (int) Math.min(Integer.MAX_VALUE,
+                (long) bitRate / 8 / Math.max(frameRate, 1) * MAX_SYNC_FRAME_RATIO * MAX_BIT_RATE_OVERSHOOT);
+    }
+
+    /**
+     * Changes how many seconds to keep.  Safe to call while the producer is running, but not
+     * while the buffer is being saved.
+     */
+    public void setSpan(int spanSec) {
+        int maxPages = Math.min(getMaxPages(spanSec), mPages.length);
+        // Need at least two heap slabs, so the page being spilled is never the one being filled.
+        // Without any, nothing is spilled: the pages are file slabs to begin with.
+        int heapSlabs = mHeapSpanSec == 0 ? 0
+                : Math.min(maxPages, Math.max(2, getMaxPages(mHeapSpanSec)));
+        int fileSlabs = maxPages - heapSlabs;
+        mPool.changeMaxSlabCounts(heapSlabs - mHeapSlabs, fileSlabs - mFileSlabs);
+        mHeapSlabs = heapSlabs;
+        mFileSlabs = fileSlabs;
+        mSpanUsec = spanSec * 1000000L;
+        mMaxPages = maxPages;
+    }
+
+    /**
+     * Gives all slabs back to the pool.  The buffer can't be used after this.
+     */
+    public void release() {
+        for (; mFirstPage < mEndPage; mFirstPage++) {
+            int slot = getPageSlot(mFirstPage);
+            mPool.recycle(mPages[slot]);
+            mPages[slot] = mWritePages[slot] = null;
         }
+        mPool.changeMaxSlabCounts(-mHeapSlabs, -mFileSlabs);
+        mHeapSlabs = mFileSlabs = 0;
     }
 
     /**
      * Computes the amount of time spanned by the buffered data, based on the presentation
-     * time stamps.
+     * time stamps.  Counts from the first sync frame, since that's where a save would start.
      */
     public long computeTimeSpanUsec() {
         final int metaLen = mPacketStart.length;
+        final int head = mMetaHead;
 
-        if (mMetaHead == mMetaTail) {
+        if (head == mMetaTail) {
             // empty list
             return 0;
         }
+        int first = findFirstSyncIndex();
+        if (first < 0) {
+            return 0;
+        }
 
         // head points to the next available node, so grab the previous one
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        long us = mPacketPtsUsec[beforeHead] - mPacketPtsUsec[mMetaTail] - 1000000; // -1是为了减去关键帧（i-frame）
-        return Math.max(us, 0);
+        int beforeHead = (head + metaLen - 1) % metaLen;
+        return Math.max(mPacketPtsUsec[beforeHead] - mPacketPtsUsec[first], 0);
+    }
+
+    /**
+     * Fills in a snapshot of the buffer's state.  Cheap enough to call for every frame, from
+     * any thread.
+     */
+    public void getMetrics(BufferMetrics metrics) {
+        final int metaLen = mPacketStart.length;
+        final int head = mMetaHead;
+        final int tail = mMetaTail;
+
+        metrics.metaSlotCount = metaLen;
+        metrics.metaSlotsUsed = (head - tail + metaLen) % metaLen;
+        if (head == tail) {
+            metrics.bytesUsed = 0;
+        } else {
+            int beforeHead = (head + metaLen - 1) % metaLen;
+            metrics.bytesUsed = mPacketStart[beforeHead] + mPacketLength[beforeHead] - mPacketStart[tail];
+        }
+        metrics.bytesCapacity = (long) mMaxPages * mPageSize;
+        metrics.spanUsec = computeTimeSpanUsec();
+        metrics.evictedPackets = mEvictedPackets;
+        metrics.evictedBytes = mEvictedBytes;
+        long waitNsec = mWaitNsec;
+        if (mWaitingProducers > 0) {
+            // Still waiting, which counts too.
+            waitNsec += System.nanoTime() - mWaitStartNsec;
+        }
+        metrics.waitUsec = waitNsec / 1000;
+        metrics.largestPacket = mLargestPacket;
+        metrics.measuredBitRate = mMeasuredBitRate;
     }
 
     public boolean isEmpty() {
@@ -122,47 +317,102 @@ public class CircularEncoderBuffer {
      * @param flags MediaCodec.BufferInfo flags.
      * @param ptsUsec Presentation time stamp, in microseconds.
      */
-    public void add(ByteBuffer buf, int flags, long ptsUsec, int state) {
+    public void add(ByteBuffer buf, int flags, long ptsUsec) {
+        add(buf, flags, ptsUsec, mIsVideo ? TRACK_VIDEO : TRACK_AUDIO);
+    }
+
+    /**
+     * Adds a packet of the given track.  Audio packets are only allowed in a video buffer,
+     * which then keeps them interleaved with the video.
+     * <p>
+     * The video and audio encoder threads may call this at the same time.  If one of them has
+     * to wait for a reader to make room, it does so without holding up the other, until a
+     * cursor moves.  The packet
+     * is dropped if the pool can't give the buffer the room even once it's empty, say because
+     * the spill file failed, or if the thread is interrupted while waiting.
+     */
+    public void add(ByteBuffer buf, int flags, long ptsUsec, int track) {
+        while (true) {
+            int moves = mCursorMoves.get();
+            synchronized (mProducerLock) {
+                if (tryAddLocked(buf, flags, ptsUsec, track)) {
+                    return;
+                }
+            }
+            try {
+                // Everything left is pinned by a cursor; let the slowest one catch up.
+                waitForReader(moves);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the packet, evicting what it has to, or drops it if there's no room to be had.
+     *
+     * @return False if a cursor holds on to what would have to be evicted.
+     */
+    private boolean tryAddLocked(ByteBuffer buf, int flags, long ptsUsec, int track) {
         int size = buf.limit() - buf.position();
         if (VERBOSE) {
             Log.d(TAG, "add size=" + size + " flags=0x" + Integer.toHexString(flags) +
                     " pts=" + ptsUsec);
         }
-        while (!canAdd(size)) {
-			try {
-				switch (state) {
-				case CircularEncoder.STATE_CACHE_CIRCULAR:
-					removeTail();
-					break;
-
-				case CircularEncoder.STATE_SAVE_AND_CACHE:
-					Thread.sleep(10);
-					break;
-
-				default:
-					throw new RuntimeException("incorrect state:"+state);
-				}
-			} catch (InterruptedException e) { }
+        while (!canAdd(size) || !obtainPages(getPacketStart(size) + size)) {
+            if (evictTail()) {
+                continue;
+            }
+            if (mMetaHead != mMetaTail) {
+                return false;
+            }
+            // Nothing left to evict, so the pool is out of slabs for good.
+            if (mDroppedPackets++ == 0) {
+                Log.w(TAG, "Out of slabs with the buffer empty, dropping packets");
+            }
+            mEvictedPackets++;
+            mEvictedBytes += size;
+            return true;
         }
 
-        final int dataLen = mDataBuffer.length;
         final int metaLen = mPacketStart.length;
-        int packetStart = getHeadStart();
+        if (mIsVideo) {
+            // Forget about sync frames the tail has passed before their slot gets reused,
+            // otherwise they would look live again.
+            dropStaleSyncIndex(mMetaTail);
+        }
+        long packetStart = getPacketStart(size);
         mPacketFlags[mMetaHead] = flags;
         mPacketPtsUsec[mMetaHead] = ptsUsec;
         mPacketStart[mMetaHead] = packetStart;
         mPacketLength[mMetaHead] = size;
+        mPacketTrack[mMetaHead] = (byte) track;
+
+        // Copy the data in.  Take care if it gets split across pages.
+        long start = packetStart;
+        while (size > 0) {
+            int offset = (int) (start % mPageSize);
+            int chunk = Math.min(size, mPageSize - offset);
+            if (VERBOSE && chunk < size) { Log.v(TAG, "split, chunk=" + chunk + " size=" + size); }
+            ByteBuffer page = mWritePages[getPageSlot(start / mPageSize)];
+            page.clear();
+            page.position(offset);
+            buf.limit(buf.position() + chunk);
+            page.put(buf);
+            start += chunk;
+            size -= chunk;
+        }
+        mHeadPos = start;
+        if (mContiguous && mPacketLength[mMetaHead] > mPageSize && !mSplitLogged) {
+            Log.w(TAG, "Packet of " + mPacketLength[mMetaHead] + " bytes split over pages of "
+                    + mPageSize + ", reads will copy it");
+            mSplitLogged = true;
+        }
+        updateRate(mPacketLength[mMetaHead], ptsUsec);
 
-        // Copy the data in.  Take care if it gets split in half.
-        if (packetStart + size < dataLen) {
-            // one chunk
-            buf.get(mDataBuffer, packetStart, size);
-        } else {
-            // two chunks
-            int firstSize = dataLen - packetStart;
-            if (VERBOSE) { Log.v(TAG, "split, firstsize=" + firstSize + " size=" + size); }
-            buf.get(mDataBuffer, packetStart, firstSize);
-            buf.get(mDataBuffer, 0, size - firstSize);
+        if (isSyncFrame(mMetaHead)) {
+            addSyncIndex(mMetaHead);
         }
 
         mMetaHead = (mMetaHead + 1) % metaLen;
@@ -174,36 +424,138 @@ public class CircularEncoderBuffer {
             mPacketStart[mMetaHead] = -100000;
             mPacketLength[mMetaHead] = Integer.MAX_VALUE;
         }
+
+        trimToSpan();
+        return true;
+    }
+
+    /**
+     * Waits until a cursor has moved or closed since mCursorMoves was "moves".
+     */
+    private void waitForReader(int moves) throws InterruptedException {
+        long startNsec = System.nanoTime();
+        synchronized (mCursorMoved) {
+            if (mWaitingProducers == 0) {
+                mWaitStartNsec = startNsec;
+            }
+            mWaitingProducers++;
+            try {
+                while (mCursorMoves.get() == moves) {
+                    mCursorMoved.wait();
+                }
+            } finally {
+                mWaitingProducers--;
+            }
+        }
+        synchronized (mProducerLock) {
+            mWaitNsec += System.nanoTime() - startNsec;
+        }
     }
 
     /**
-     * Returns the index of the oldest sync frame.  Valid until the next add().
+     * Wakes up the producers waiting for room, if any.  Called by a cursor after it has moved.
+     */
+    private void onCursorMoved() {
+        mCursorMoves.incrementAndGet();
+        if (mWaitingProducers > 0) {
+            synchronized (mCursorMoved) {
+                mCursorMoved.notifyAll();
+            }
+        }
+    }
+
+    private void updateRate(int size, long ptsUsec) {
+        if (size > mLargestPacket) {
+            mLargestPacket = size;
+        }
+        if (mRateStartUsec < 0 || ptsUsec < mRateStartUsec) {
+            mRateStartUsec = ptsUsec;
+            mRateBytes = 0;
+        }
+        mRateBytes += size;
+        long elapsedUsec = ptsUsec - mRateStartUsec;
+        if (elapsedUsec >= 1000000) {
+            mMeasuredBitRate = (int) (mRateBytes * 8 * 1000000 / elapsedUsec);
+            mRateStartUsec = ptsUsec;
+            mRateBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the index of the oldest sync frame.  Valid until the next add(); to hold on to
+     * it, use a {@link Cursor}.
      * <p>
      * When sending output to a MediaMuxer, start here.
      */
     public int getFirstSyncIndex() {
-        final int metaLen = mPacketStart.length;
+        int index = findFirstSyncIndex();
+        if (index < 0) {
+            Log.w(TAG, "HEY: could not find sync frame in buffer");
+        }
+        return index;
+    }
 
-        int index = mMetaTail;
-        if (mIsVideo) {
-	        while (index != mMetaHead) {
-	            if ((mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
-	                break;
-	            }
-	            index = (index + 1) % metaLen;
-	        }
+    /**
+     * Finds the oldest sync frame without complaining if there's none, for the metrics, which
+     * are read every frame.
+     *
+     * @return Its index, or -1 if there's none.
+     */
+    private int findFirstSyncIndex() {
+        final int head = mMetaHead;
+        final int tail = mMetaTail;
+
+        int index = tail;
+        if (mIsVideo && tail != head && !isSyncFrame(tail)) {
+            // A cursor held the tail back mid-GOP, or there's audio ahead of the first video
+            // frame; skip the stale part of the index.
+            index = head;
+            final int syncHead = mSyncHead;
+            for (int i = mSyncTail; i != syncHead; i = (i + 1) % mSyncIndex.length) {
+                if (isLive(mSyncIndex[i], tail, head)) {
+                    index = mSyncIndex[i];
+                    break;
+                }
+            }
         }
+        return index == head ? -1 : index;
+    }
 
-        if (index == mMetaHead) {
-            Log.w(TAG, "HEY: could not find sync frame in buffer");
-            index = -1;
+    /**
+     * Returns true if the packet at "index" is a video sync frame.
+     */
+    private boolean isSyncFrame(int index) {
+        return mIsVideo && mPacketTrack[index] == TRACK_VIDEO
+                && (mPacketFlags[index] & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+    }
+
+    /**
+     * Returns true if "index" is between tail (inclusive) and head (exclusive).
+     */
+    private boolean isLive(int index, int tail, int head) {
+        final int metaLen = mPacketStart.length;
+        return (index - tail + metaLen) % metaLen < (head - tail + metaLen) % metaLen;
+    }
+
+    private void addSyncIndex(int index) {
+        mSyncIndex[mSyncHead] = index;
+        mSyncHead = (mSyncHead + 1) % mSyncIndex.length;
+    }
+
+    /**
+     * Drops GOP index entries that are no longer in the buffer.
+     */
+    private void dropStaleSyncIndex(int tail) {
+        final int head = mMetaHead;
+        while (mSyncTail != mSyncHead && !isLive(mSyncIndex[mSyncTail], tail, head)) {
+            mSyncTail = (mSyncTail + 1) % mSyncIndex.length;
         }
-        return index;
     }
 
     public int getCurrentIndex() {
-    	if (mMetaTail == mMetaHead) return -1;
-    	return mMetaTail;
+    	int tail = mMetaTail;
+    	if (tail == mMetaHead) return -1;
+    	return tail;
     }
 
     /**
@@ -218,6 +570,23 @@ public class CircularEncoderBuffer {
         return next;
     }
 
+    /**
+     * Returns {@link #TRACK_VIDEO} or {@link #TRACK_AUDIO}.
+     */
+    public int getTrack(int index) {
+        return mPacketTrack[index];
+    }
+
+    /**
+     * Fills in the flags, presentation time and size of the packet at "index", as getChunk()
+     * would, without getting the data.
+     */
+    public void getInfo(int index, MediaCodec.BufferInfo info) {
+        info.flags = mPacketFlags[index];
+        info.presentationTimeUs = mPacketPtsUsec[index];
+        info.size = mPacketLength[index];
+    }
+
     /**
      * Returns a reference to a "direct" ByteBuffer with the data, and fills in the
      * BufferInfo.
@@ -228,45 +597,131 @@ public class CircularEncoderBuffer {
     public ByteBuffer getChunk(int index, MediaCodec.BufferInfo info) {
     	if (index < 0) return null;
 
-        final int dataLen = mDataBuffer.length;
-        int packetStart = mPacketStart[index];
+        long packetStart = mPacketStart[index];
         int length = mPacketLength[index];
+        int offset = (int) (packetStart % mPageSize);
 
         info.flags = mPacketFlags[index];
-        info.offset = packetStart;
+        info.offset = offset;
         info.presentationTimeUs = mPacketPtsUsec[index];
         info.size = length;
 
-        if (packetStart + length <= dataLen) {
-            // one chunk; return full buffer to avoid copying data
-            return mDataBufferWrapper;
+        if (offset + length <= mPageSize) {
+            // one chunk; return full page to avoid copying data
+            return mPages[getPageSlot(packetStart / mPageSize)];
         } else {
-            // two chunks
+            // split across pages
             ByteBuffer tempBuf = ByteBuffer.allocateDirect(length);
-            int firstSize = dataLen - packetStart;
-            tempBuf.put(mDataBuffer, mPacketStart[index], firstSize);
-            tempBuf.put(mDataBuffer, 0, length - firstSize);
+            long start = packetStart;
+            while (length > 0) {
+                offset = (int) (start % mPageSize);
+                int chunk = Math.min(length, mPageSize - offset);
+                ByteBuffer page = mPages[getPageSlot(start / mPageSize)].duplicate();
+                page.limit(offset + chunk);
+                page.position(offset);
+                tempBuf.put(page);
+                start += chunk;
+                length -= chunk;
+            }
             info.offset = 0;
             return tempBuf;
         }
     }
 
+    private int getPageSlot(long page) {
+        return (int) (page % mPages.length);
+    }
+
+    /**
+     * Returns the first page that still holds live data, or the head's page if there's none.
+     */
+    private long getTailPage() {
+        final int tail = mMetaTail;
+        long tailStart = tail == mMetaHead ? mHeadPos : mPacketStart[tail];
+        return tailStart / mPageSize;
+    }
+
+    /**
+     * Gives the slabs of pages the tail has left back to the pool.
+     */
+    private void releasePages() {
+        long tailPage = Math.min(getTailPage(), mHeadPos / mPageSize);
+        for (; mFirstPage < tailPage && mFirstPage < mEndPage; mFirstPage++) {
+            int slot = getPageSlot(mFirstPage);
+            mPool.recycle(mPages[slot]);
+            mPages[slot] = mWritePages[slot] = null;
+        }
+    }
+
     /**
-     * Computes the data buffer offset for the next place to store data.
+     * Makes sure every page up to "end" has a slab, preferably from the heap.  Once the
+     * heap slabs run out the oldest heap page is spilled out to the file to make room.
      * <p>
-     * Equal to the start of the previous packet's data plus the previous packet's length.
+     * Pages an open cursor may still be reading from aren't swapped; if that leaves no heap
+     * page to spill, new pages simply get file slabs.
+     *
+     * @return False if the pool ran dry.
      */
-    private int getHeadStart() {
-        if (mMetaHead == mMetaTail) {
-            // list is empty
-            return 0;
+    private boolean obtainPages(long end) {
+        releasePages();
+        for (; mEndPage * mPageSize < end; mEndPage++) {
+            ByteBuffer slab = mPool.obtainHeapSlab();
+            if (slab == null) {
+                synchronized (mCursors) {
+                    slab = spillOldestHeapPage(getFirstCursorPage());
+                }
+            }
+            if (slab == null) {
+                slab = mPool.obtainFileSlab();
+            }
+            if (slab == null) {
+                // canAdd() makes sure there's room, unless the spill file failed us or the
+                // other buffers in the pool haven't caught up with a shorter span yet.
+                return false;
+            }
+            int slot = getPageSlot(mEndPage);
+            mPages[slot] = slab;
+            mWritePages[slot] = slab.duplicate();
         }
+        return true;
+    }
 
-        final int dataLen = mDataBuffer.length;
-        final int metaLen = mPacketStart.length;
+    /**
+     * Moves the oldest heap page before "endPage" into a file slab, and returns the heap slab
+     * it used.
+     */
+    private ByteBuffer spillOldestHeapPage(long endPage) {
+        for (long page = mFirstPage; page < Math.min(endPage, mEndPage); page++) {
+            int slot = getPageSlot(page);
+            ByteBuffer heapSlab = mPages[slot];
+            if (!SlabPool.isInHeap(heapSlab)) continue;
+
+            ByteBuffer fileSlab = mPool.obtainFileSlab();
+            if (fileSlab == null) {
+                return null;
+            }
+            ByteBuffer dst = fileSlab.duplicate();
+            ByteBuffer src = mWritePages[slot];
+            src.clear();
+            dst.put(src);
+            mPages[slot] = fileSlab;
+            mWritePages[slot] = fileSlab.duplicate();
+            heapSlab.clear();
+            return heapSlab;
+        }
+        return null;
+    }
 
-        int beforeHead = (mMetaHead + metaLen - 1) % metaLen;
-        return (mPacketStart[beforeHead] + mPacketLength[beforeHead] + 1) % dataLen;
+    /**
+     * Returns where a packet of "size" bytes goes: right at the head, or in contiguous mode
+     * the start of the next page when it would otherwise be split.
+     */
+    private long getPacketStart(int size) {
+        int offset = (int) (mHeadPos % mPageSize);
+        if (!mContiguous || offset + size <= mPageSize || size > mPageSize) {
+            return mHeadPos;
+        }
+        return mHeadPos - offset + mPageSize;
     }
 
     /**
@@ -276,62 +731,286 @@ public class CircularEncoderBuffer {
      * @return True if there is enough space to add without removing anything.
      */
     private boolean canAdd(int size) {
-        final int dataLen = mDataBuffer.length;
         final int metaLen = mPacketStart.length;
+        final int maxPages = mMaxPages;
 
-        if (size > dataLen) {
+        if (size > (long) (maxPages - 1) * mPageSize) {
             throw new RuntimeException("Enormous packet: " + size + " vs. buffer " +
-                    dataLen);
-        }
-        if (mMetaHead == mMetaTail) {
-            // empty list
-            return true;
+                    (long) maxPages * mPageSize);
         }
+        final int tail = mMetaTail;
 
         // Make sure we can advance head without stepping on the tail.
         int nextHead = (mMetaHead + 1) % metaLen;
-        if (nextHead == mMetaTail) {
+        if (nextHead == tail) {
             if (VERBOSE) {
-                Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + mMetaTail +")");
+                Log.v(TAG, "ran out of metadata (head=" + mMetaHead + " tail=" + tail +")");
             }
             return false;
         }
 
-        // Need the byte offset of the start of the "tail" packet, and the byte offset where
-        // "head" will store its data.
-        int headStart = getHeadStart();
-        int tailStart = mPacketStart[mMetaTail];
-        int freeSpace = (tailStart + dataLen - headStart) % dataLen;
-        if (size > freeSpace) {
+        // Every page from the tail's to the one the packet ends in needs a slab.
+        long tailPage = Math.min(getTailPage(), mHeadPos / mPageSize);
+        long endPage = (getPacketStart(size) + size - 1) / mPageSize;
+        if (endPage - tailPage + 1 > maxPages) {
             if (VERBOSE) {
-                Log.v(TAG, "ran out of data (tailStart=" + tailStart + " headStart=" + headStart +
-                    " req=" + size + " free=" + freeSpace + ")");
+                Log.v(TAG, "ran out of data (tailPage=" + tailPage + " endPage=" + endPage +
+                    " req=" + size + ")");
             }
             return false;
         }
 
         if (VERBOSE) {
-            Log.v(TAG, "OK: size=" + size + " free=" + freeSpace + " metaFree=" +
-                    ((mMetaTail + metaLen - mMetaHead) % metaLen - 1));
+            Log.v(TAG, "OK: size=" + size + " freePages=" + (maxPages - (endPage - tailPage + 1)) +
+                    " metaFree=" + ((tail + metaLen - mMetaHead) % metaLen - 1));
         }
 
         return true;
     }
 
     /**
-     * Removes the tail packet.
+     * Evicts the oldest GOP on behalf of the producer, so the buffer still starts with a sync
+     * frame afterwards.  For audio every packet stands on its own, so just the tail packet
+     * goes.
+     *
+     * @return False if a cursor pins the tail, in which case nothing was evicted.
      */
-    public void removeTail() {
-        if (mMetaHead == mMetaTail) {
-            //throw new RuntimeException("Can't removeTail() in empty buffer");
-        	return;
+    private boolean evictTail() {
+        int tail = mMetaTail;
+        if (mMetaHead == tail) {
+            return false;
+        }
+
+        // If there's no next GOP, the buffer holds less than one and we have no choice but
+        // to cut into it.
+        int newTail = getNextGopIndex(tail);
+        if (newTail < 0) {
+            newTail = (tail + 1) % mPacketStart.length;
         }
+        return moveTail(tail, newTail);
+    }
+
+    /**
+     * Evicts GOPs from the tail for as long as the rest still spans mSpanUsec.
+     */
+    private void trimToSpan() {
         final int metaLen = mPacketStart.length;
-        mMetaTail = (mMetaTail + 1) % metaLen;
+        long newestUsec = mPacketPtsUsec[(mMetaHead + metaLen - 1) % metaLen];
+        while (true) {
+            int tail = mMetaTail;
+            if (mMetaHead == tail) {
+                return;
+            }
+            int next = getNextGopIndex(tail);
+            if (next < 0 || newestUsec - mPacketPtsUsec[next] < mSpanUsec) {
+                return;
+            }
+            if (!moveTail(tail, next)) {
+                return;
+            }
+        }
     }
 
-    public void setTail(int tail) {
-    	mMetaTail = tail;
+    /**
+     * Returns the index of the first sync frame after "tail", or -1 if there isn't one.  For
+     * audio that's simply the next packet.
+     */
+    private int getNextGopIndex(int tail) {
+        if (!mIsVideo) {
+            int next = (tail + 1) % mPacketStart.length;
+            return next == mMetaHead ? -1 : next;
+        }
+        dropStaleSyncIndex(tail);
+        int i = mSyncTail;
+        if (i != mSyncHead && mSyncIndex[i] == tail) {
+            i = (i + 1) % mSyncIndex.length;
+        }
+        return i != mSyncHead ? mSyncIndex[i] : -1;
+    }
+
+    /**
+     * Moves the tail forward to "newTail", or as close to it as the open cursors allow.
+     *
+     * @return False if a cursor pins the tail where it is.
+     */
+    private boolean moveTail(int tail, int newTail) {
+        final int metaLen = mPacketStart.length;
+        synchronized (mCursors) {
+            for (int i = 0; i < mCursors.size(); i++) {
+                int index = mCursors.get(i).mIndex;
+                if ((index - tail + metaLen) % metaLen < (newTail - tail + metaLen) % metaLen) {
+                    newTail = index;
+                }
+            }
+            if (newTail == tail) {
+                return false;
+            }
+            mMetaTail = newTail;
+        }
+        countEvicted(tail, newTail);
+        return true;
+    }
+
+    private void countEvicted(int from, int to) {
+        final int metaLen = mPacketStart.length;
+        long bytes = 0;
+        int packets = 0;
+        for (int i = from; i != to; i = (i + 1) % metaLen) {
+            bytes += mPacketLength[i];
+            packets++;
+        }
+        mEvictedPackets += packets;
+        mEvictedBytes += bytes;
+    }
+
+    /**
+     * Returns the page the slowest open cursor reads from, or the head's if there's none.
+     * Call with mCursors held.
+     */
+    private long getFirstCursorPage() {
+        final int metaLen = mPacketStart.length;
+        final int head = mMetaHead;
+        final int tail = mMetaTail;
+        int first = head;
+        for (int i = 0; i < mCursors.size(); i++) {
+            int index = mCursors.get(i).mIndex;
+            if ((index - tail + metaLen) % metaLen < (first - tail + metaLen) % metaLen) {
+                first = index;
+            }
+        }
+        return (first == head ? mHeadPos : mPacketStart[first]) / mPageSize;
+    }
+
+    /**
+     * Starts reading the buffer.  The cursor begins at the oldest sync frame (for video), and
+     * everything from there on stays in the buffer until the cursor moves past it or is
+     * closed.  Safe to call from any thread.
+     */
+    public Cursor openCursor() {
+        synchronized (mCursors) {
+            Cursor cursor = new Cursor();
+            int index = mMetaHead == mMetaTail ? -1 : getFirstSyncIndex();
+            cursor.mIndex = index < 0 ? mMetaHead : index;
+            mCursors.add(cursor);
+            return cursor;
+        }
+    }
+
+    /**
+     * Opens a cursor over what's buffered from startUsec to endUsec.  It begins at the last
+     * sync frame at or before startUsec (for video; the oldest one if that's gone already) and
+     * ends at the first packet after it with a PTS at or past endUsec, or at the current head.
+     * Any number of these can be open over the same packets.  Safe to call from any thread.
+     */
+    public Cursor openCursor(long startUsec, long endUsec) {
+        synchronized (mCursors) {
+            final int metaLen = mPacketStart.length;
+            final int head = mMetaHead;
+            final int tail = mMetaTail;
+            int start = head == tail ? -1 : getFirstSyncIndex();
+            if (start < 0) {
+                start = head;
+            } else if (mIsVideo) {
+                // The tail doesn't move while we hold mCursors, so the live entries stay put.
+                final int syncHead = mSyncHead;
+                for (int i = mSyncTail; i != syncHead; i = (i + 1) % mSyncIndex.length) {
+                    int index = mSyncIndex[i];
+                    if (isLive(index, tail, head)) {
+                        if (mPacketPtsUsec[index] > startUsec) {
+                            break;
+                        }
+                        start = index;
+                    }
+                }
+            } else {
+                while (start != head && mPacketPtsUsec[start] < startUsec) {
+                    start = (start + 1) % metaLen;
+                }
+            }
+            int end = start;
+            while (end != head && (end == start || mPacketPtsUsec[end] < endUsec)) {
+                end = (end + 1) % metaLen;
+            }
+
+            Cursor cursor = new Cursor();
+            cursor.mIndex = start;
+            cursor.mEnd = end;
+            mCursors.add(cursor);
+            return cursor;
+        }
+    }
+
+    /**
+     * A reader's place in the buffer.  Each one belongs to a single thread.
+     */
+    public class Cursor {
+        // The next packet to read; the producer doesn't evict it or anything after it.
+        volatile int mIndex;
+        private boolean mSeenSync;
+        // Where the cursor ends, see stopAtHead(); -1 while it follows the head.
+        private volatile int mEnd = -1;
+
+        /**
+         * Returns the index of the packet to read next, or -1 if the cursor has caught up with
+         * the head.  For video, nothing before the first sync frame is returned.
+         */
+        public int getIndex() {
+            final int metaLen = mPacketStart.length;
+            final int end = getEnd();
+            if (mIsVideo && !mSeenSync) {
+                final int start = mIndex;
+                while (mIndex != end && !isSyncFrame(mIndex)) {
+                    mIndex = (mIndex + 1) % metaLen;
+                }
+                mSeenSync = mIndex != end;
+                if (mIndex != start) {
+                    onCursorMoved();
+                }
+            }
+            return mIndex == end ? -1 : mIndex;
+        }
+
+        /**
+         * Returns the index of the packet after "index", or -1 if that's where the cursor
+         * ends.  Lets a reader look ahead of getIndex() before it advances.
+         */
+        public int getNextIndex(int index) {
+            int next = (index + 1) % mPacketStart.length;
+            return next == getEnd() ? -1 : next;
+        }
+
+        /**
+         * Moves past the packet returned by getIndex(), letting the producer evict it.
+         */
+        public void advance() {
+            if (mIndex != getEnd()) {
+                mIndex = (mIndex + 1) % mPacketStart.length;
+                onCursorMoved();
+            }
+        }
+
+        /**
+         * Ends the cursor at the current head: packets added from now on aren't read.  Safe
+         * to call from any thread.
+         */
+        public void stopAtHead() {
+            mEnd = mMetaHead;
+        }
+
+        private int getEnd() {
+            final int end = mEnd;
+            return end < 0 ? mMetaHead : end;
+        }
+
+        /**
+         * Stops reading.  The cursor can't be used after this.
+         */
+        public void close() {
+            synchronized (mCursors) {
+                mCursors.remove(this);
+            }
+            onCursorMoved();
+        }
     }
 
 //	public void clear() {
@@ -0,0 +1,242 @@
+package com.twinfishlabs.precamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Writes several clips out of one interleaved {@link CircularEncoderBuffer} at once, a file
+ * per stretch of time, each with a {@link RingMp4Writer} of its own on a pool of threads.
+ * <p>
+ * export() opens a cursor per clip before it returns, so what the clips need stays in the
+ * buffer from then on, however long they take; the producer may have to wait for them, as it
+ * does for a save.  The packets are read straight from the buffer's pages by every clip that
+ * takes them, and where clips overlap, the video packets are only searched for their NAL units
+ * once, by whichever writer gets there first (see {@link RingMp4Writer.NalCache}).
+ * <p>
+ * One exporter serves any number of export() calls, on the same threads, which go away when
+ * idle for THREAD_KEEP_ALIVE_SEC.  release() cancels what's still being written: a clip stops
+ * after at most WRITE_STEP_BYTES more, and its file is deleted.
+ */
+class ClipExporter {
+    private static final String TAG = Utilities.TAG + ":ClipExporter";
+
+    private static final int THREAD_KEEP_ALIVE_SEC = 10;
+    // How much a clip writes between looking whether it's been cancelled.
+    private static final long WRITE_STEP_BYTES = 1024 * 1024;
+    // How long release() waits for the clips being written to stop.
+    private static final int RELEASE_TIMEOUT_SEC = 5;
+
+    private final CircularEncoderBuffer mBuffer;
+    private final Mp4Track mVideoFormat;
+    private final Mp4Track mAudioFormat;
+    private int mOrientation;
+    private long mChunkDurationUsec = -1;
+    private int mThreadCount = Runtime.getRuntime().availableProcessors();
+    private Listener mListener;
+    private ThreadPoolExecutor mExecutor;
+    private volatile boolean mCancelled;
+
+    /**
+     * A stretch of the buffer to write to a file.
+     */
+    static class Clip {
+        final long startUsec;
+        final long endUsec;
+        final File file;
+
+        Clip(long startUsec, long endUsec, File file) {
+            this.startUsec = startUsec;
+            this.endUsec = endUsec;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Hears about each clip as it's done, on the thread that wrote it.
+     */
+    interface Listener {
+        /**
+         * @param error Why the clip failed, or null if it's complete.
+         */
+        void onClipExported(Clip clip, IOException error);
+    }
+
+    /**
+     * @param buffer An interleaved buffer, with the video as TRACK_VIDEO and the audio as
+     *     TRACK_AUDIO.
+     */
+    ClipExporter(CircularEncoderBuffer buffer, Mp4Track videoFormat, Mp4Track audioFormat) {
+        mBuffer = buffer;
+        mVideoFormat = videoFormat;
+        mAudioFormat = audioFormat;
+    }
+
+    /**
+     * See {@link RingMp4Writer#setOrientationHint}.
+     */
+    void setOrientationHint(int degrees) {
+        mOrientation = degrees;
+    }
+
+    /**
+     * See {@link RingMp4Writer#setChunkDuration}.
+     */
+    void setChunkDuration(long usec) {
+        mChunkDurationUsec = usec;
+    }
+
+    /**
+     * How many clips may be written at the same time; one per core unless set.  Call before
+     * the first export().
+     */
+    void setThreadCount(int threads) {
+        mThreadCount = threads;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Starts writing the clips, each from the last sync frame at or before its start, see
+     * {@link CircularEncoderBuffer#openCursor(long, long)}.  What hasn't been buffered yet
+     * isn't waited for: a clip that ends in the future ends at what's there now.
+     *
+     * @return A future per clip, in the order given, that gets the clip's file once it's
+     *     complete.
+     */
+    List<Future<File>> export(List<Clip> clips) {
+        if (mExecutor == null) {
+            int threads = Math.max(1, mThreadCount);
+            mExecutor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE_SEC,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ClipExporter-" + ++mCount);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+        RingMp4Writer.NalCache nalCache = new RingMp4Writer.NalCache();
+        List<Future<File>> futures = new ArrayList<Future<File>>(clips.size());
+        for (Clip clip : clips) {
+            CircularEncoderBuffer.Cursor cursor = mBuffer.openCursor(clip.startUsec,
+                    clip.endUsec);
+            futures.add(mExecutor.submit(new ExportTask(clip, cursor, nalCache)));
+        }
+        return futures;
+    }
+
+    /**
+     * Cancels the clips not yet written, waits for the ones being written to stop, and ends
+     * the threads.  Call before releasing the buffer; the exporter can't be used after this.
+     */
+    void release() {
+        if (mExecutor == null) {
+            return;
+        }
+        mCancelled = true;
+        mExecutor.shutdown();
+        try {
+            if (!mExecutor.awaitTermination(RELEASE_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                Log.w(TAG, "clips still being written after " + RELEASE_TIMEOUT_SEC + " s");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        mExecutor = null;
+    }
+
+    /**
+     * Writes one clip and closes its cursor.
+     */
+    private class ExportTask implements Callable<File> {
+        private final Clip mClip;
+        private final CircularEncoderBuffer.Cursor mCursor;
+        private final RingMp4Writer.NalCache mNalCache;
+        // As they were set when the clip was asked for.
+        private final int mTaskOrientation = mOrientation;
+        private final long mTaskChunkDurationUsec = mChunkDurationUsec;
+        private final Listener mTaskListener = mListener;
+
+        ExportTask(Clip clip, CircularEncoderBuffer.Cursor cursor,
+                RingMp4Writer.NalCache nalCache) {
+            mClip = clip;
+            mCursor = cursor;
+            mNalCache = nalCache;
+        }
+
+        @Override
+        public File call() throws IOException {
+            try {
+                write();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed exporting " + mClip.file, ioe);
+                if (mTaskListener != null) {
+                    mTaskListener.onClipExported(mClip, ioe);
+                }
+                throw ioe;
+            } finally {
+                mCursor.close();
+            }
+            if (mTaskListener != null) {
+                mTaskListener.onClipExported(mClip, null);
+            }
+            return mClip.file;
+        }
+
+        private void write() throws IOException {
+            checkCancelled();
+            // The cursor ends where the clip does, so we know how much room the index takes.
+            int samples = 0;
+            for (int index = mCursor.getIndex(); index >= 0; index = mCursor.getNextIndex(index)) {
+                samples++;
+            }
+            if (samples == 0) {
+                throw new IOException("Nothing buffered for " + mClip.file);
+            }
+
+            RingMp4Writer writer = new RingMp4Writer(mClip.file);
+            try {
+                writer.setOrientationHint(mTaskOrientation);
+                writer.setFaststart(samples);
+                writer.setChunkDuration(mTaskChunkDurationUsec);
+                writer.setNalCache(mNalCache);
+                int videoTrack = writer.addTrack(mVideoFormat);
+                int audioTrack = writer.addTrack(mAudioFormat);
+                writer.start();
+                while (writer.writeFromBuffer(mBuffer, mCursor, videoTrack, audioTrack,
+                        WRITE_STEP_BYTES) > 0) {
+                    checkCancelled();
+                }
+                checkCancelled();
+                writer.flush(mBuffer, mCursor, videoTrack, audioTrack);
+            } catch (IOException ioe) {
+                writer.release();
+                mClip.file.delete();
+                throw ioe;
+            }
+            writer.stop();
+        }
+
+        private void checkCancelled() throws IOException {
+            if (mCancelled) {
+                throw new IOException("Cancelled " + mClip.file);
+            }
+        }
+    }
+}
@@ -9,6 +9,47 @@ public class Configs {
 	public static final int VIDEO_HEIGHT = 720;
 	public static final int DESIRED_PREVIEW_FPS = 25;
 	public static final int VIDEO_BIT_RATE = 6000000;
+	// Lower the video bit rate, down to a quarter, while the scene is too busy for the pre-record
+	// buffer to hold the whole span, and back up when it calms down.  Needs API 19.  Off until
+	// BitRateController has been tried on devices; see BitRateControllerTest.
+	public static final boolean ADAPTIVE_BIT_RATE = false;
+
+	// Pre-record video beyond this many seconds is kept in a memory-mapped file, not the heap.
+	public static final int HEAP_BUFFER_SEC = 20;
+	// Encoded packets are never split across a page of the pre-record buffer, so saving it
+	// doesn't have to copy them; costs a little buffer space at the end of each page.
+	public static final boolean CONTIGUOUS_ENCODER_PACKETS = true;
+	// Video and audio share one pre-record buffer, in the order the encoders delivered them, so
+	// saving is a single pass that's already interleaved for the muxer.
+	public static final boolean INTERLEAVED_ENCODER_BUFFER = true;
+	// Write fragmented MP4 with our own FragmentedMp4Writer rather than MediaMuxer.
+	public static final boolean FRAGMENTED_MP4_WRITER = false;
+	// Save from the interleaved pre-record buffer with RingMp4Writer, which hands whole runs of
+	// the buffer's pages to the file in a few gathering writes instead of muxing packet by
+	// packet.  Takes precedence over FRAGMENTED_MP4_WRITER; not used for direct recording.
+	// Off until its files have been checked with other demuxers than our own tests.
+	public static final boolean RING_MP4_WRITER = false;
+	// RingMp4Writer puts each track's samples in chunks of up to this long, in time stamp order,
+	// rather than a chunk per packet.  0 keeps the order of the pre-record buffer.
+	public static final int MUXER_CHUNK_MS = 500;
+	// RingMp4Writer puts the index in front of the samples, so playback can start right away.
+	// The room for it covers the pre-roll plus this much recording after it; if a save runs
+	// longer, the index goes at the end instead.  0 always writes it at the end.
+	public static final int FASTSTART_LIVE_SEC = 120;
+	// RingMp4Writer keeps a journal of the clip while saving, so a clip the process died
+	// in the middle of is made playable the next time the app starts, see Mp4Recovery.
+	public static final boolean RECORDING_JOURNAL = true;
+	// The whole pre-record buffer lives in the spill file, preallocated, and is written there as
+	// the packets arrive.  Stopping a save then doesn't wait for the pre-roll to be copied out;
+	// the muxer thread finishes the clip in the background.  Writes to flash all the time,
+	// whether anything is saved or not.
+	public static final boolean INSTANT_SAVE = false;
+	// Each shutter press also saves a clip out of the pre-record buffer, of this much before
+	// and after the press, once the time after has been recorded; see
+	// CamcorderManager.exportMoments().
+	public static final boolean MOMENT_CLIPS = false;
+	public static final int MOMENT_CLIP_BEFORE_MS = 3000;
+	public static final int MOMENT_CLIP_AFTER_MS = 2000;
 
     // Audio
     public static final int SAMPLE_RATE = 44100;
@@ -16,6 +57,10 @@ public class Configs {
     public static final int CHANNEL_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     public static final int AUDIO_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
 	public static final int AUDIO_BIT_RATE = 128000;
+	// Keep the pre-record audio as PCM, and only encode it when a save starts, faster than real
+	// time, so the AAC encoder idles while caching.  Costs about 86 KB of heap per second of
+	// pre-record time, and takes separate video and audio buffers, so no RingMp4Writer.
+	public static final boolean LAZY_AUDIO_ENCODING = false;
 
 	// Image
 	public static final int SHOT_COUNT = 3;
@@ -0,0 +1,55 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+/**
+ * An encoder, as CircularEncoder's threads use one: MediaCodec's calls, without the buffer
+ * arrays to keep track of.  {@link MediaCodecSource} is the real thing.
+ * The tests' FakeEncoderSource makes up timed packets instead, so what's downstream of the
+ * encoders runs without a device.
+ * <p>
+ * The return codes and flags are MediaCodec's.  Each method is called from one thread only,
+ * as with MediaCodec.
+ */
+interface EncoderSource {
+    /**
+     * The Surface a video encoder takes its frames from, or null if it doesn't take one.
+     */
+    Surface getInputSurface();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    /**
+     * @return The index of an output buffer, or one of MediaCodec's INFO_ codes.
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * The format the encoder reported with INFO_OUTPUT_FORMAT_CHANGED, with the csd buffers.
+     */
+    MediaFormat getOutputFormat();
+
+    /**
+     * Changes a video encoder's target bit rate while it runs.
+     *
+     * @return false if the encoder can't, MediaCodec before API 19.
+     */
+    boolean setBitRate(int bitRate);
+
+    /**
+     * Stops the encoder and frees it, and its input Surface.
+     */
+    void release();
+}
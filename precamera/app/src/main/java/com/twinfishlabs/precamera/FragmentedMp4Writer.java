@@ -0,0 +1,437 @@
+package com.twinfishlabs.precamera;
+
+import static com.twinfishlabs.precamera.Mp4Boxes.endBox;
+import static com.twinfishlabs.precamera.Mp4Boxes.fourCc;
+import static com.twinfishlabs.precamera.Mp4Boxes.startBox;
+import static com.twinfishlabs.precamera.Mp4Boxes.startFullBox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Writes a fragmented MP4 file (ISO/IEC 14496-12) with H.264 video and AAC audio, as an
+ * alternative to MediaMuxer that we control and can run off the device.
+ * <p>
+ * Used the same way, as a {@link SampleSink}: addTrack() for each track, start(),
+ * writeSampleData() with what the encoders produce, stop().  The header (ftyp and moov, with empty sample tables) is written
+ * by start().  Samples are then collected in memory and written out one fragment (moof and
+ * mdat) at a time, in a single gathering write.  A new fragment begins at every video sync
+ * frame, so a file that's cut short still plays up to its last complete fragment.
+ * <p>
+ * Not thread safe; the caller has to serialize the calls, as with MediaMuxer.
+ */
+class FragmentedMp4Writer implements SampleSink {
+    private static final String TAG = Utilities.TAG + ":Mp4Writer";
+
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    // Without video to cut at, fragments are cut by time, and by size no matter what.
+    private static final long MAX_FRAGMENT_USEC = 1000000;
+    private static final int MAX_FRAGMENT_BYTES = 16 * 1024 * 1024;
+
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;        // depends on no other
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;    // depends on others
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ArrayList<Track> mTracks = new ArrayList<Track>();
+    private int mOrientation;
+    private boolean mForceEachFragment;
+    private boolean mStarted;
+    private int mSequenceNumber;
+    private long mStartUsec = -1;
+    private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+    private ByteBuffer[] mWriteBuffers;
+    private IOException mError;
+
+    private static class Track extends Mp4Track {
+        // Samples of the fragment being collected.
+        int count;
+        long[] ptsUsec = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        ByteBuffer data = ByteBuffer.allocate(256 * 1024);
+        long lastDuration;
+    }
+
+    public FragmentedMp4Writer(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * Sets the rotation to play the video with, in degrees: 0, 90, 180 or 270.  Call before
+     * start().
+     */
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        mOrientation = degrees;
+    }
+
+    /**
+     * If set, every fragment is forced out to the storage device before writeSampleData()
+     * returns.  Slower, but nothing written is lost if we crash.
+     */
+    public void setForceEachFragment(boolean force) {
+        mForceEachFragment = force;
+    }
+
+    /**
+     * Adds a track with the format the encoder reported.  Call before start().
+     *
+     * @return The track index to pass to writeSampleData().
+     */
+    public int addTrack(MediaFormat format) {
+        Track track = newTrack();
+        track.setFormat(format);
+        return addedTrack(track);
+    }
+
+    /**
+     * Adds an H.264 track.  The parameter sets may be split over csd0 and csd1 or all be in
+     * csd0, with start codes, the way MediaCodec hands them out.
+     */
+    public int addVideoTrack(int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        Track track = newTrack();
+        track.setVideoFormat(width, height, csd0, csd1);
+        return addedTrack(track);
+    }
+
+    /**
+     * Adds an AAC track.
+     *
+     * @param audioConfig The AudioSpecificConfig, csd-0 in the encoder's format.
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, int bitRate, ByteBuffer audioConfig) {
+        Track track = newTrack();
+        track.setAudioFormat(sampleRate, channelCount, bitRate, audioConfig);
+        return addedTrack(track);
+    }
+
+    private Track newTrack() {
+        if (mStarted) {
+            throw new IllegalStateException("Can't add tracks after start()");
+        }
+        return new Track();
+    }
+
+    private int addedTrack(Track track) {
+        track.id = mTracks.size() + 1;
+        track.lastDuration = track.isVideo ? Mp4Track.VIDEO_TIMESCALE / 30 : AAC_SAMPLES_PER_FRAME;
+        mTracks.add(track);
+        return track.id - 1;
+    }
+
+    /**
+     * Writes the file header.
+     */
+    public void start() throws IOException {
+        if (mTracks.isEmpty()) {
+            throw new IllegalStateException("No tracks");
+        }
+        mStarted = true;
+        mWriteBuffers = new ByteBuffer[mTracks.size() + 1];
+        ByteBuffer buf = mHeader;
+        buf.clear();
+        writeFtyp(buf);
+        writeMoov(buf);
+        buf.flip();
+        writeFully(buf);
+    }
+
+    /**
+     * Adds one encoded sample.  The data is copied, the buffer can be reused right away.
+     * <p>
+     * Write errors don't throw here (the encoder threads couldn't do anything about them);
+     * the first one is kept and reported by stop().
+     */
+    public void writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info) {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started");
+        }
+        if (mError != null) {
+            return;
+        }
+        Track track = mTracks.get(trackIndex);
+        boolean sync = !track.isVideo || (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+
+        try {
+            if (track.count > 0 && shouldCutFragment(track, sync, info.presentationTimeUs)) {
+                writeFragment();
+            }
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed writing fragment", ioe);
+            mError = ioe;
+            return;
+        }
+
+        int start = track.data.position();
+        if (track.isVideo) {
+            ensureDataRoom(track, info.size + info.size / 3 + 4);
+            Mp4Boxes.putLengthPrefixed(buf, info.offset, info.size, track.data);
+        } else {
+            ensureDataRoom(track, info.size);
+            ByteBuffer src = buf.duplicate();
+            src.limit(info.offset + info.size);
+            src.position(info.offset);
+            track.data.put(src);
+        }
+
+        if (track.count == track.sizes.length) {
+            int n = track.count * 2;
+            track.ptsUsec = Arrays.copyOf(track.ptsUsec, n);
+            track.sizes = Arrays.copyOf(track.sizes, n);
+            track.flags = Arrays.copyOf(track.flags, n);
+        }
+        track.ptsUsec[track.count] = info.presentationTimeUs;
+        track.sizes[track.count] = track.data.position() - start;
+        track.flags[track.count] = sync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+        track.count++;
+    }
+
+    private boolean shouldCutFragment(Track track, boolean sync, long ptsUsec) {
+        boolean hasVideo = false;
+        int bytes = 0;
+        for (int i = 0; i < mTracks.size(); i++) {
+            hasVideo |= mTracks.get(i).isVideo;
+            bytes += mTracks.get(i).data.position();
+        }
+        if (bytes >= MAX_FRAGMENT_BYTES) {
+            return true;
+        }
+        if (hasVideo) {
+            return track.isVideo && sync;
+        }
+        return ptsUsec - track.ptsUsec[0] >= MAX_FRAGMENT_USEC;
+    }
+
+    /**
+     * Writes out what's left and closes the file.
+     *
+     * @throws IOException If this or any earlier write failed.
+     */
+    public void stop() throws IOException {
+        try {
+            if (mError == null && mStarted) {
+                writeFragment();
+                mChannel.force(false);
+            }
+        } finally {
+            release();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Closes the file without writing anything more.
+     */
+    public void release() {
+        try {
+            mFile.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed closing file", ioe);
+        }
+    }
+
+    /**
+     * Writes the samples collected so far as one fragment.
+     */
+    private void writeFragment() throws IOException {
+        if (mStartUsec < 0) {
+            // The file starts with the earliest sample of the first fragment.
+            for (int i = 0; i < mTracks.size(); i++) {
+                Track track = mTracks.get(i);
+                if (track.count > 0 && (mStartUsec < 0 || track.ptsUsec[0] < mStartUsec)) {
+                    mStartUsec = track.ptsUsec[0];
+                }
+            }
+            if (mStartUsec < 0) {
+                return;
+            }
+        }
+
+        ensureHeaderRoom();
+        ByteBuffer buf = mHeader;
+        buf.clear();
+        int moof = startBox(buf, "moof");
+        int mfhd = startFullBox(buf, "mfhd", 0, 0);
+        buf.putInt(++mSequenceNumber);
+        endBox(buf, mfhd);
+
+        int[] dataOffsetPositions = new int[mTracks.size()];
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            dataOffsetPositions[i] = -1;
+            if (track.count == 0) {
+                continue;
+            }
+            int traf = startBox(buf, "traf");
+            int tfhd = startFullBox(buf, "tfhd", 0, 0x020000);    // default-base-is-moof
+            buf.putInt(track.id);
+            endBox(buf, tfhd);
+            int tfdt = startFullBox(buf, "tfdt", 1, 0);
+            buf.putLong(toTimescale(track, track.ptsUsec[0]));
+            endBox(buf, tfdt);
+            // data-offset, sample-duration, sample-size and sample-flags present
+            int trun = startFullBox(buf, "trun", 0, 0x000701);
+            buf.putInt(track.count);
+            dataOffsetPositions[i] = buf.position();
+            buf.putInt(0);
+            long time = toTimescale(track, track.ptsUsec[0]);
+            for (int j = 0; j < track.count; j++) {
+                long duration;
+                if (j + 1 < track.count) {
+                    long next = toTimescale(track, track.ptsUsec[j + 1]);
+                    duration = Math.max(next - time, 0);
+                    time = next;
+                    track.lastDuration = duration;
+                } else {
+                    duration = track.lastDuration;
+                }
+                buf.putInt((int) duration);
+                buf.putInt(track.sizes[j]);
+                buf.putInt(track.flags[j]);
+            }
+            endBox(buf, trun);
+            endBox(buf, traf);
+        }
+        endBox(buf, moof);
+
+        // The data offsets count from the start of the moof, past the mdat header.
+        int moofSize = buf.position() - moof;
+        int offset = moofSize + 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (dataOffsetPositions[i] >= 0) {
+                buf.putInt(dataOffsetPositions[i], offset);
+                offset += track.data.position();
+            }
+        }
+        buf.putInt(offset - moofSize);
+        buf.put(fourCc("mdat"));
+        buf.flip();
+
+        mWriteBuffers[0] = buf;
+        int bufferCount = 1;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.count > 0) {
+                track.data.flip();
+                mWriteBuffers[bufferCount++] = track.data;
+            }
+        }
+        writeFully(mWriteBuffers, bufferCount);
+        if (mForceEachFragment) {
+            mChannel.force(false);
+        }
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            track.data.clear();
+            track.count = 0;
+        }
+    }
+
+    private long toTimescale(Track track, long ptsUsec) {
+        return Math.max(ptsUsec - mStartUsec, 0) * track.timescale / 1000000;
+    }
+
+    /**
+     * Makes sure the moof of a fragment fits, at 12 bytes per sample plus the boxes.
+     */
+    private void ensureHeaderRoom() {
+        int needed = 256;
+        for (int i = 0; i < mTracks.size(); i++) {
+            needed += 128 + mTracks.get(i).count * 12;
+        }
+        if (mHeader.capacity() < needed) {
+            mHeader = ByteBuffer.allocate(needed * 2);
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            mChannel.write(buf);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] bufs, int count) throws IOException {
+        while (bufs[count - 1].hasRemaining()) {
+            mChannel.write(bufs, 0, count);
+        }
+    }
+
+    private void ensureDataRoom(Track track, int size) {
+        if (track.data.remaining() < size) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(track.data.capacity() * 2,
+                    track.data.position() + size));
+            track.data.flip();
+            bigger.put(track.data);
+            track.data = bigger;
+        }
+    }
+
+    private void writeFtyp(ByteBuffer buf) {
+        int ftyp = startBox(buf, "ftyp");
+        buf.put(fourCc("isom"));
+        buf.putInt(0x200);
+        buf.put(fourCc("isom"));
+        buf.put(fourCc("iso6"));
+        buf.put(fourCc("avc1"));
+        buf.put(fourCc("mp41"));
+        endBox(buf, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer buf) {
+        int moov = startBox(buf, "moov");
+        // The duration is unknown up front.
+        Mp4Boxes.writeMvhd(buf, 0, mTracks.size() + 1);
+
+        for (int i = 0; i < mTracks.size(); i++) {
+            writeTrak(buf, mTracks.get(i));
+        }
+
+        int mvex = startBox(buf, "mvex");
+        for (int i = 0; i < mTracks.size(); i++) {
+            int trex = startFullBox(buf, "trex", 0, 0);
+            buf.putInt(mTracks.get(i).id);
+            buf.putInt(1);                  // sample description index
+            buf.putInt(0);                  // default duration, size and flags
+            buf.putInt(0);
+            buf.putInt(0);
+            endBox(buf, trex);
+        }
+        endBox(buf, mvex);
+        endBox(buf, moov);
+    }
+
+    private void writeTrak(ByteBuffer buf, Track track) {
+        int[] boxes = Mp4Boxes.startTrak(buf, track, mOrientation, 0, 0, 0);
+        // The samples are all in the fragments.
+        String[] emptyTables = { "stts", "stsc", "stco" };
+        for (String type : emptyTables) {
+            int box = startFullBox(buf, type, 0, 0);
+            buf.putInt(0);
+            endBox(buf, box);
+        }
+        int stsz = startFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        endBox(buf, stsz);
+        Mp4Boxes.endBoxes(buf, boxes);
+    }
+}
@@ -1,6 +1,7 @@
 package com.twinfishlabs.precamera;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 import com.twinfishlabs.precamera.gallery.GalleryActivity;
 import com.umeng.analytics.MobclickAgent;
@@ -53,6 +54,7 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
     private SurfaceView mContinuousCaptureSurfaceView;
     private TextView mTxtCapturedTime;
     private TextView mRecordingText;
+    private TextView mTxtPreTime;
     private ImageButton mBtnLight;
     private ImageButton mBtnSettings;
     private TextView mTxtDebugMode;
@@ -95,6 +97,14 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
             sendMessage(obtainMessage(MSG_BUFFER_STATUS, (int) (totalTimeMsec >> 32), (int) totalTimeMsec));
         }
 
+        // CircularEncoder.Callback, called on encoder thread
+        @Override
+        public void bufferMetrics(BufferMetrics video, BufferMetrics audio) {
+        	if (PrefUtils.getIsDebugMode()) {
+        		Log.d(TAG, "buffer video: " + video + ", audio: " + audio);
+        	}
+        }
+
         @Override
         public void handleMessage(Message msg) {
             MainActivity activity = mWeakActivity.get();
@@ -154,6 +164,7 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
         mGalleryButton = (GalleryButton) findViewById(R.id.gallery_button);
         mTxtCapturedTime = (TextView) findViewById(R.id.txtCapturedTime);
         mRecordingText = (TextView) findViewById(R.id.recording_text);
+        mTxtPreTime = (TextView) findViewById(R.id.txtPreTime);
         mBtnLight = (ImageButton)findViewById(R.id.btnLight);
         mBtnSettings = (ImageButton)findViewById(R.id.btnSettings);
         mTxtDebugMode = (TextView)findViewById(R.id.txtDebugMode);
@@ -169,6 +180,7 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
         mRecordingButton.setOnClickListener(this);
         mShootButton.setOnClickListener(this);
         mGalleryButton.setOnClickListener(this);
+        mTxtPreTime.setOnClickListener(this);
 
         if (getIntent().hasExtra("DebugMode")) {
         	PrefUtils.setIsDebugMode(getIntent().getBooleanExtra("DebugMode", false));
@@ -211,13 +223,16 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
 	        		if (viewOldRotation == 0 && viewNewRotation == 270) {
 	        			mTxtCapturedTime.setRotation(360);
 	        			mRecordingText.setRotation(360);
+	        			mTxtPreTime.setRotation(360);
 	        		} else if (viewOldRotation == 270 && viewNewRotation == 0) {
 	        			mTxtCapturedTime.setRotation(-90);
 	        			mRecordingText.setRotation(-90);
+	        			mTxtPreTime.setRotation(-90);
 	        		}
 
 	        		mTxtCapturedTime.animate().rotation(viewNewRotation);
 	            	mRecordingText.animate().rotation(viewNewRotation);
+	            	mTxtPreTime.animate().rotation(viewNewRotation);
 	        	}
     		}
     	}
@@ -260,9 +275,38 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
 			gotoSettingsActivity();
 		} else if (v == mGalleryButton) {
 			gotoGalleryActivity();
+		} else if (v == mTxtPreTime) {
+			showPreRecordTimeDialog();
 		}
 	}
 
+    /**
+     * Changes the pre-record time from here, where the encoder keeps running and its buffers
+     * just grow or shrink.  Going through SettingsActivity pauses us, which releases the
+     * encoder and what it has buffered.
+     */
+    private void showPreRecordTimeDialog() {
+    	if (CamcorderManager.Instance.isSaving() || mTakedPicturesView.isVisible()) return;
+
+    	final String[] values = getResources().getStringArray(R.array.selectPreTimesValue);
+    	int checked = Arrays.asList(values).indexOf(String.valueOf(PrefUtils.getPreRecordTime()));
+    	new AlertDialog.Builder(this)
+    		.setTitle(R.string.selectPreTime)
+    		.setSingleChoiceItems(R.array.selectPreTimesText, checked, new DialogInterface.OnClickListener() {
+    			@Override
+    			public void onClick(DialogInterface dialog, int which) {
+    				CamcorderManager.Instance.setPreRecordTime(Integer.parseInt(values[which]));
+    				updatePreRecordTime();
+    				dialog.dismiss();
+    			}
+    		})
+    		.show();
+    }
+
+    private void updatePreRecordTime() {
+    	mTxtPreTime.setText(getString(R.string.preTimeShow, PrefUtils.getPreRecordTime()));
+    }
+
     private void gotoGalleryActivity() {
     	if (!CamcorderManager.Instance.isSaving()) {
 			Intent intent = new Intent(this, GalleryActivity.class);
@@ -315,6 +359,7 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
     	mBtnSettings.setVisibility(View.VISIBLE);
     	mShootButton.setVisibility(View.VISIBLE);
     	mGalleryButton.setVisibility(View.VISIBLE);
+    	mTxtPreTime.setVisibility(View.VISIBLE);
     	findViewById(R.id.separatorView2).setVisibility(View.VISIBLE);
     	findViewById(R.id.separatorView3).setVisibility(View.VISIBLE);
     	mBottomBar.setBackgroundColor(bottomBgColor);
@@ -330,6 +375,7 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
     	mBtnSettings.setVisibility(View.INVISIBLE);
     	mShootButton.setVisibility(View.GONE);
     	mGalleryButton.setVisibility(View.GONE);
+    	mTxtPreTime.setVisibility(View.INVISIBLE);
     	findViewById(R.id.separatorView2).setVisibility(View.GONE);
     	findViewById(R.id.separatorView3).setVisibility(View.GONE);
     	mBottomBar.setBackground(null);
@@ -347,6 +393,7 @@ public class MainActivity extends Activity implements SurfaceHolder.Callback, On
         super.onResume();
 
         PrefUtils.notifyChanged();
+        updatePreRecordTime();
     	mGalleryButton.refreshThumbnail();
         MobclickAgent.onResume(this);
         if (!initForResume()) {
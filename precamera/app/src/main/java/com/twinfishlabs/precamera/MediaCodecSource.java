@@ -0,0 +1,106 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.view.Surface;
+
+/**
+ * A MediaCodec encoder as an {@link EncoderSource}.  Keeps the input and output buffer arrays,
+ * and gets them again when the codec says they've changed.
+ */
+class MediaCodecSource implements EncoderSource {
+    private final MediaCodec mCodec;
+    private Surface mInputSurface;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+
+    /**
+     * Creates, configures and starts an encoder for "format".
+     *
+     * @param inputSurface Have the encoder take its frames from a Surface.
+     */
+    MediaCodecSource(MediaFormat format, boolean inputSurface) {
+        mCodec = MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        if (inputSurface) {
+            mInputSurface = mCodec.createInputSurface();
+        }
+        mCodec.start();
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        if (mInputBuffers == null) {
+            mInputBuffers = mCodec.getInputBuffers();
+        }
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        int status = mCodec.dequeueOutputBuffer(info, timeoutUs);
+        if (status == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+            mOutputBuffers = null;
+        }
+        return status;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        if (mOutputBuffers == null) {
+            mOutputBuffers = mCodec.getOutputBuffers();
+        }
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public boolean setBitRate(int bitRate) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        mCodec.setParameters(params);
+        return true;
+    }
+
+    @Override
+    public void release() {
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+        mCodec.stop();
+        mCodec.release();
+    }
+}
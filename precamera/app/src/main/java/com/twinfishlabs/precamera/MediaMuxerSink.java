@@ -0,0 +1,54 @@
+package com.twinfishlabs.precamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+/**
+ * A MediaMuxer writing an MP4 file, as a {@link SampleSink}.
+ */
+class MediaMuxerSink implements SampleSink {
+    private final MediaMuxer mMuxer;
+
+    MediaMuxerSink(File file) throws IOException {
+        mMuxer = new MediaMuxer(file.getPath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info) {
+        mMuxer.writeSampleData(trackIndex, buf, info);
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mMuxer.stop();
+        } finally {
+            mMuxer.release();
+        }
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
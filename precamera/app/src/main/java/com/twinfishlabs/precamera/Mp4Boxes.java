@@ -0,0 +1,327 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Box writing and Annex B scanning shared by the MP4 writers.
+ * <p>
+ * Boxes are written into a ByteBuffer: startBox() leaves room for the size and returns where
+ * the box starts, endBox() fills the size in once the contents are there.
+ */
+final class Mp4Boxes {
+    static final int MOVIE_TIMESCALE = 1000;
+
+    private Mp4Boxes() { }
+
+    /**
+     * Writes the ftyp of a plain (not fragmented) file.
+     */
+    static void writeFtyp(ByteBuffer buf) {
+        int ftyp = startBox(buf, "ftyp");
+        buf.put(fourCc("isom"));
+        buf.putInt(0x200);
+        buf.put(fourCc("isom"));
+        buf.put(fourCc("iso2"));
+        buf.put(fourCc("avc1"));
+        buf.put(fourCc("mp41"));
+        endBox(buf, ftyp);
+    }
+
+    static void writeMvhd(ByteBuffer buf, long duration, int nextTrackId) {
+        int mvhd = startFullBox(buf, "mvhd", 0, 0);
+        buf.putInt(0);                      // creation time
+        buf.putInt(0);                      // modification time
+        buf.putInt(MOVIE_TIMESCALE);
+        buf.putInt((int) duration);
+        buf.putInt(0x00010000);             // rate 1.0
+        buf.putShort((short) 0x0100);       // volume 1.0
+        buf.put(new byte[10]);
+        putMatrix(buf, 0);
+        buf.put(new byte[24]);
+        buf.putInt(nextTrackId);
+        endBox(buf, mvhd);
+    }
+
+    /**
+     * Writes a trak down to and including the sample description.  The caller adds the rest
+     * of the sample tables, then closes the returned boxes with endBoxes().
+     *
+     * @param duration In the track's timescale.
+     * @param movieDuration How long the track plays in the movie, delay included, in
+     *     MOVIE_TIMESCALE.
+     * @param delay How long after the start of the movie the track starts, in
+     *     MOVIE_TIMESCALE; if it isn't 0 an edit list puts it there.
+     */
+    static int[] startTrak(ByteBuffer buf, Mp4Track track, int orientation, long duration,
+            long movieDuration, long delay) {
+        int trak = startBox(buf, "trak");
+        int tkhd = startFullBox(buf, "tkhd", 0, 3);    // enabled, in movie
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(track.id);
+        buf.putInt(0);
+        buf.putInt((int) movieDuration);
+        buf.put(new byte[8]);
+        buf.putShort((short) 0);            // layer
+        buf.putShort((short) 0);            // alternate group
+        buf.putShort((short) (track.isVideo ? 0 : 0x0100));
+        buf.putShort((short) 0);
+        putMatrix(buf, track.isVideo ? orientation : 0);
+        buf.putInt(track.width << 16);
+        buf.putInt(track.height << 16);
+        endBox(buf, tkhd);
+
+        if (delay > 0) {
+            int edts = startBox(buf, "edts");
+            int elst = startFullBox(buf, "elst", 0, 0);
+            buf.putInt(2);
+            buf.putInt((int) delay);        // nothing for this long
+            buf.putInt(-1);
+            buf.putInt(0x00010000);
+            buf.putInt((int) (movieDuration - delay));    // then the media from its start
+            buf.putInt(0);
+            buf.putInt(0x00010000);
+            endBox(buf, elst);
+            endBox(buf, edts);
+        }
+
+        int mdia = startBox(buf, "mdia");
+        int mdhd = startFullBox(buf, "mdhd", 0, 0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(track.timescale);
+        buf.putInt((int) duration);
+        buf.putShort((short) 0x55c4);       // "und"
+        buf.putShort((short) 0);
+        endBox(buf, mdhd);
+
+        int hdlr = startFullBox(buf, "hdlr", 0, 0);
+        buf.putInt(0);
+        buf.put(fourCc(track.isVideo ? "vide" : "soun"));
+        buf.put(new byte[12]);
+        buf.put((track.isVideo ? "VideoHandle" : "SoundHandle").getBytes());
+        buf.put((byte) 0);
+        endBox(buf, hdlr);
+
+        int minf = startBox(buf, "minf");
+        if (track.isVideo) {
+            int vmhd = startFullBox(buf, "vmhd", 0, 1);
+            buf.put(new byte[8]);
+            endBox(buf, vmhd);
+        } else {
+            int smhd = startFullBox(buf, "smhd", 0, 0);
+            buf.putInt(0);
+            endBox(buf, smhd);
+        }
+        int dinf = startBox(buf, "dinf");
+        int dref = startFullBox(buf, "dref", 0, 0);
+        buf.putInt(1);
+        int url = startFullBox(buf, "url ", 0, 1);    // data is in this file
+        endBox(buf, url);
+        endBox(buf, dref);
+        endBox(buf, dinf);
+
+        int stbl = startBox(buf, "stbl");
+        int stsd = startFullBox(buf, "stsd", 0, 0);
+        buf.putInt(1);
+        if (track.isVideo) {
+            writeAvc1(buf, track);
+        } else {
+            writeMp4a(buf, track);
+        }
+        endBox(buf, stsd);
+        return new int[] { trak, mdia, minf, stbl };
+    }
+
+    private static void writeAvc1(ByteBuffer buf, Mp4Track track) {
+        int avc1 = startBox(buf, "avc1");
+        buf.put(new byte[6]);
+        buf.putShort((short) 1);            // data reference index
+        buf.put(new byte[16]);
+        buf.putShort((short) track.width);
+        buf.putShort((short) track.height);
+        buf.putInt(0x00480000);             // 72 dpi
+        buf.putInt(0x00480000);
+        buf.putInt(0);
+        buf.putShort((short) 1);            // frame count
+        buf.put(new byte[32]);              // compressor name
+        buf.putShort((short) 0x0018);       // depth
+        buf.putShort((short) -1);
+
+        int avcC = startBox(buf, "avcC");
+        buf.put((byte) 1);
+        buf.put(track.sps[1]);              // profile
+        buf.put(track.sps[2]);              // compatibility
+        buf.put(track.sps[3]);              // level
+        buf.put((byte) 0xff);               // 4-byte NAL unit lengths
+        buf.put((byte) 0xe1);               // one SPS
+        buf.putShort((short) track.sps.length);
+        buf.put(track.sps);
+        buf.put((byte) 1);                  // one PPS
+        buf.putShort((short) track.pps.length);
+        buf.put(track.pps);
+        endBox(buf, avcC);
+        endBox(buf, avc1);
+    }
+
+    private static void writeMp4a(ByteBuffer buf, Mp4Track track) {
+        int mp4a = startBox(buf, "mp4a");
+        buf.put(new byte[6]);
+        buf.putShort((short) 1);            // data reference index
+        buf.put(new byte[8]);
+        buf.putShort((short) track.channelCount);
+        buf.putShort((short) 16);           // sample size
+        buf.putInt(0);
+        buf.putInt(track.sampleRate << 16);
+
+        int esds = startFullBox(buf, "esds", 0, 0);
+        int configLength = track.audioConfig.length;
+        buf.put((byte) 0x03);               // ES_Descriptor
+        buf.put((byte) (3 + 2 + 13 + 2 + configLength + 2 + 1));
+        buf.putShort((short) track.id);
+        buf.put((byte) 0);
+        buf.put((byte) 0x04);               // DecoderConfigDescriptor
+        buf.put((byte) (13 + 2 + configLength));
+        buf.put((byte) 0x40);               // MPEG-4 audio
+        buf.put((byte) 0x15);               // audio stream
+        buf.put((byte) 0);                  // buffer size, 24 bits
+        buf.putShort((short) 0);
+        buf.putInt(track.bitRate);          // max bit rate
+        buf.putInt(track.bitRate);          // average bit rate
+        buf.put((byte) 0x05);               // DecoderSpecificInfo
+        buf.put((byte) configLength);
+        buf.put(track.audioConfig);
+        buf.put((byte) 0x06);               // SLConfigDescriptor
+        buf.put((byte) 1);
+        buf.put((byte) 0x02);
+        endBox(buf, esds);
+        endBox(buf, mp4a);
+    }
+
+    /**
+     * Writes a transformation matrix that rotates clockwise by "degrees".
+     */
+    static void putMatrix(ByteBuffer buf, int degrees) {
+        int a = 0x00010000, b = 0, c = 0, d = 0x00010000;
+        switch (degrees) {
+            case 90:  a = 0; b = 0x00010000; c = -0x00010000; d = 0; break;
+            case 180: a = -0x00010000; d = -0x00010000; break;
+            case 270: a = 0; b = -0x00010000; c = 0x00010000; d = 0; break;
+        }
+        buf.putInt(a);
+        buf.putInt(b);
+        buf.putInt(0);
+        buf.putInt(c);
+        buf.putInt(d);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0);
+        buf.putInt(0x40000000);
+    }
+
+    static int startBox(ByteBuffer buf, String type) {
+        int start = buf.position();
+        buf.putInt(0);
+        buf.put(fourCc(type));
+        return start;
+    }
+
+    static int startFullBox(ByteBuffer buf, String type, int version, int flags) {
+        int start = startBox(buf, type);
+        buf.putInt((version << 24) | flags);
+        return start;
+    }
+
+    static void endBox(ByteBuffer buf, int start) {
+        buf.putInt(start, buf.position() - start);
+    }
+
+    /**
+     * Closes boxes opened by startTrak(), innermost first.
+     */
+    static void endBoxes(ByteBuffer buf, int[] starts) {
+        for (int i = starts.length - 1; i >= 0; i--) {
+            endBox(buf, starts[i]);
+        }
+    }
+
+    static byte[] fourCc(String type) {
+        byte[] bytes = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) type.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies an Annex B access unit (start codes between the NAL units, as MediaCodec puts
+     * out) to "dst" with a 4-byte length in front of every NAL unit instead.  "dst" needs
+     * room for size + size / 3 + 4 bytes, four bytes of length for each three-byte start code
+     * at worst.
+     */
+    static void putLengthPrefixed(ByteBuffer src, int offset, int size, ByteBuffer dst) {
+        int end = offset + size;
+        int nalStart = skipStartCode(src, offset, end);
+        if (nalStart == offset) {
+            // No start code; take it as a single NAL unit.
+            dst.putInt(size);
+            put(src, offset, size, dst);
+            return;
+        }
+        while (nalStart < end) {
+            int next = findStartCode(src, nalStart, end);
+            int nalEnd = findNalEnd(src, nalStart, next);
+            dst.putInt(nalEnd - nalStart);
+            put(src, nalStart, nalEnd - nalStart, dst);
+            nalStart = skipStartCode(src, next, end);
+        }
+    }
+
+    private static void put(ByteBuffer src, int offset, int size, ByteBuffer dst) {
+        ByteBuffer dup = src.duplicate();
+        dup.limit(offset + size);
+        dup.position(offset);
+        dst.put(dup);
+    }
+
+    /**
+     * Returns the index just past the start code at "index", or "index" if there isn't one.
+     */
+    static int skipStartCode(ByteBuffer buf, int index, int end) {
+        int i = index;
+        while (i < end && i - index < 3 && buf.get(i) == 0) {
+            i++;
+        }
+        if (i - index >= 2 && i < end && buf.get(i) == 1) {
+            return i + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the index of the next 00 00 01 at or after "index", or "end".
+     */
+    static int findStartCode(ByteBuffer buf, int index, int end) {
+        for (int i = index; i + 2 < end; i++) {
+            if ((buf.get(i + 2) & 0xff) > 1) {
+                i += 2;         // neither of the next three bytes can end a start code here
+            } else if (buf.get(i) == 0 && buf.get(i + 1) == 0 && buf.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns where the NAL unit that starts at "nalStart" ends, given the index of the next
+     * start code (or the end of the access unit).  Zero bytes before a start code belong to
+     * it, not to the NAL unit.
+     */
+    static int findNalEnd(ByteBuffer buf, int nalStart, int next) {
+        int nalEnd = next;
+        while (nalEnd > nalStart && buf.get(nalEnd - 1) == 0) {
+            nalEnd--;
+        }
+        return nalEnd;
+    }
+}
@@ -0,0 +1,314 @@
+package com.twinfishlabs.precamera;
+
+import static com.twinfishlabs.precamera.Mp4Boxes.endBox;
+import static com.twinfishlabs.precamera.Mp4Boxes.fourCc;
+import static com.twinfishlabs.precamera.Mp4Boxes.startBox;
+import static com.twinfishlabs.precamera.Mp4Boxes.startFullBox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The sample tables of a plain (not fragmented) MP4 file, collected while its mdat is written,
+ * and the moov they make once it's done.  Used by {@link RingMp4Writer}, and by
+ * {@link Mp4Recovery} to rebuild them from a {@link Mp4Journal}; so nothing here may need
+ * Android.
+ * <p>
+ * Not thread safe.
+ */
+class Mp4Index {
+    private static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    private final ArrayList<Track> mTracks = new ArrayList<Track>();
+    private int mOrientation;
+
+    // The file being finished, while writeTo() runs.
+    private FileChannel mChannel;
+    private long mDataEnd;
+
+    static class Track extends Mp4Track {
+        int count;
+        long[] ptsUsec = new long[256];
+        int[] sizes = new int[256];
+        int syncCount;
+        int[] syncSamples = new int[16];        // 1-based sample numbers
+
+        // Runs of samples that follow each other in the file.
+        int chunkCount;
+        long[] chunkOffsets = new long[64];
+        int[] chunkSamples = new int[64];
+        long chunkEnd = -1;
+    }
+
+    /**
+     * Sets the rotation to play the video with, in degrees: 0, 90, 180 or 270.
+     */
+    void setOrientation(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        mOrientation = degrees;
+    }
+
+    int getOrientation() {
+        return mOrientation;
+    }
+
+    /**
+     * Adds a track; the caller sets its format.
+     */
+    Track addTrack() {
+        Track track = new Track();
+        track.id = mTracks.size() + 1;
+        mTracks.add(track);
+        return track;
+    }
+
+    Track getTrack(int index) {
+        return mTracks.get(index);
+    }
+
+    int getTrackCount() {
+        return mTracks.size();
+    }
+
+    /**
+     * Adds a sample, written at "offset" in the file.
+     */
+    void addSample(Track track, long ptsUsec, long offset, int size, boolean sync) {
+        if (track.count == track.sizes.length) {
+            int n = track.count * 2;
+            track.ptsUsec = Arrays.copyOf(track.ptsUsec, n);
+            track.sizes = Arrays.copyOf(track.sizes, n);
+        }
+        track.ptsUsec[track.count] = ptsUsec;
+        track.sizes[track.count] = size;
+        track.count++;
+
+        if (track.isVideo && sync) {
+            if (track.syncCount == track.syncSamples.length) {
+                track.syncSamples = Arrays.copyOf(track.syncSamples, track.syncCount * 2);
+            }
+            track.syncSamples[track.syncCount++] = track.count;
+        }
+
+        if (offset != track.chunkEnd) {
+            if (track.chunkCount == track.chunkOffsets.length) {
+                int n = track.chunkCount * 2;
+                track.chunkOffsets = Arrays.copyOf(track.chunkOffsets, n);
+                track.chunkSamples = Arrays.copyOf(track.chunkSamples, n);
+            }
+            track.chunkOffsets[track.chunkCount] = offset;
+            track.chunkSamples[track.chunkCount] = 0;
+            track.chunkCount++;
+        }
+        track.chunkSamples[track.chunkCount - 1]++;
+        track.chunkEnd = offset + size;
+    }
+
+    /**
+     * Finishes a file whose mdat box starts at mdatStart and whose last sample ends at
+     * dataEnd: fills in the mdat's (64-bit) size and writes the moov.  The moov goes into the
+     * room at indexStart if there is any (see {@link RingMp4Writer#setFaststart}), followed
+     * by a free box over what it doesn't use.  If it doesn't fit, or there's no room, it goes
+     * after the mdat, and the room stays the free box it was.  The samples are never moved:
+     * if we died halfway through, some would be at their old offsets and some at the new
+     * ones, and the journal couldn't say which.
+     *
+     * @param indexStart -1 if there's no room in front.
+     * @return False if there was room, but too little, so the moov went at the end.
+     */
+    boolean writeTo(FileChannel channel, long mdatStart, long dataEnd, long indexStart,
+            int indexRoom) throws IOException {
+        mChannel = channel;
+        mDataEnd = dataEnd;
+        try {
+            ByteBuffer size = ByteBuffer.allocate(8);
+            size.putLong(0, dataEnd - mdatStart);
+            writeFully(size, mdatStart + 8);
+
+            ByteBuffer buf = ByteBuffer.allocate(getMoovSizeBound());
+            writeMoov(buf);
+            int moovSize = buf.position();
+            // A free box needs at least 8 bytes, so a moov just short of the room won't do.
+            boolean fits = moovSize == indexRoom || moovSize + 8 <= indexRoom;
+            if (indexStart < 0 || !fits) {
+                buf.flip();
+                writeFully(buf, dataEnd);
+                return indexStart < 0;
+            }
+
+            long rest = indexRoom - moovSize;
+            if (rest > 0) {
+                buf.putInt((int) rest);
+                buf.put(fourCc("free"));
+            }
+            buf.flip();
+            writeFully(buf, indexStart);
+            return true;
+        } finally {
+            mChannel = null;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += mChannel.write(buf, position);
+        }
+    }
+
+    /**
+     * Returns how big the moov can get with the samples added so far.
+     */
+    int getMoovSizeBound() {
+        int size = 1024;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            // stsz, stts at worst, stss; co64 and stsc at worst
+            size += 1024 + track.count * (4 + 8) + track.syncCount * 4 + track.chunkCount * (8 + 12);
+        }
+        // Room for the free box after a moov written in front.
+        return size + 8;
+    }
+
+    private void writeMoov(ByteBuffer buf) {
+        // The movie starts with the earliest sample; a track that starts later is delayed.
+        long startUsec = Long.MAX_VALUE;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.count > 0) {
+                startUsec = Math.min(startUsec, track.ptsUsec[0]);
+            }
+        }
+        long[] durations = new long[mTracks.size()];
+        long[] delays = new long[mTracks.size()];
+        long[] ends = new long[mTracks.size()];
+        long movieDuration = 0;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.count > 0) {
+                durations[i] = getDuration(track);
+                delays[i] = (track.ptsUsec[0] - startUsec) / 1000;
+                ends[i] = delays[i] + durations[i] * Mp4Boxes.MOVIE_TIMESCALE / track.timescale;
+                movieDuration = Math.max(movieDuration, ends[i]);
+            }
+        }
+
+        int moov = startBox(buf, "moov");
+        Mp4Boxes.writeMvhd(buf, movieDuration, mTracks.size() + 1);
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            int[] boxes = Mp4Boxes.startTrak(buf, track, mOrientation, durations[i], ends[i],
+                    delays[i]);
+            writeSampleTables(buf, track);
+            Mp4Boxes.endBoxes(buf, boxes);
+        }
+        endBox(buf, moov);
+    }
+
+    /**
+     * Returns the sum of the sample durations, in the track's timescale.
+     */
+    private long getDuration(Track track) {
+        if (track.count == 0) {
+            return 0;
+        }
+        return track.toTimescale(track.ptsUsec[track.count - 1] - track.ptsUsec[0])
+                + getLastDuration(track);
+    }
+
+    /**
+     * The last sample lasts as long as the one before it, or a frame if it's the only one.
+     */
+    private long getLastDuration(Track track) {
+        if (track.count > 1) {
+            return Math.max(track.toTimescale(track.ptsUsec[track.count - 1] - track.ptsUsec[0])
+                    - track.toTimescale(track.ptsUsec[track.count - 2] - track.ptsUsec[0]), 0);
+        }
+        return track.isVideo ? Mp4Track.VIDEO_TIMESCALE / 30 : AAC_SAMPLES_PER_FRAME;
+    }
+
+    private void writeSampleTables(ByteBuffer buf, Track track) {
+        // Durations, run-length coded.
+        int stts = startFullBox(buf, "stts", 0, 0);
+        int entryCountPosition = buf.position();
+        buf.putInt(0);
+        int entries = 0;
+        long runDuration = -1;
+        int runLength = 0;
+        long time = 0;
+        for (int i = 0; i < track.count; i++) {
+            long duration;
+            if (i + 1 < track.count) {
+                long next = track.toTimescale(track.ptsUsec[i + 1] - track.ptsUsec[0]);
+                duration = Math.max(next - time, 0);
+                time = next;
+            } else {
+                duration = getLastDuration(track);
+            }
+            if (duration != runDuration && runLength > 0) {
+                buf.putInt(runLength);
+                buf.putInt((int) runDuration);
+                entries++;
+                runLength = 0;
+            }
+            runDuration = duration;
+            runLength++;
+        }
+        if (runLength > 0) {
+            buf.putInt(runLength);
+            buf.putInt((int) runDuration);
+            entries++;
+        }
+        buf.putInt(entryCountPosition, entries);
+        endBox(buf, stts);
+
+        if (track.isVideo && track.syncCount < track.count) {
+            int stss = startFullBox(buf, "stss", 0, 0);
+            buf.putInt(track.syncCount);
+            for (int i = 0; i < track.syncCount; i++) {
+                buf.putInt(track.syncSamples[i]);
+            }
+            endBox(buf, stss);
+        }
+
+        // Samples per chunk, an entry wherever the count changes.
+        int stsc = startFullBox(buf, "stsc", 0, 0);
+        entryCountPosition = buf.position();
+        buf.putInt(0);
+        entries = 0;
+        for (int i = 0; i < track.chunkCount; i++) {
+            if (i == 0 || track.chunkSamples[i] != track.chunkSamples[i - 1]) {
+                buf.putInt(i + 1);
+                buf.putInt(track.chunkSamples[i]);
+                buf.putInt(1);              // sample description index
+                entries++;
+            }
+        }
+        buf.putInt(entryCountPosition, entries);
+        endBox(buf, stsc);
+
+        int stsz = startFullBox(buf, "stsz", 0, 0);
+        buf.putInt(0);
+        buf.putInt(track.count);
+        for (int i = 0; i < track.count; i++) {
+            buf.putInt(track.sizes[i]);
+        }
+        endBox(buf, stsz);
+
+        boolean large = mDataEnd > 0xffffffffL;
+        int stco = startFullBox(buf, large ? "co64" : "stco", 0, 0);
+        buf.putInt(track.chunkCount);
+        for (int i = 0; i < track.chunkCount; i++) {
+            if (large) {
+                buf.putLong(track.chunkOffsets[i]);
+            } else {
+                buf.putInt((int) track.chunkOffsets[i]);
+            }
+        }
+        endBox(buf, stco);
+    }
+}
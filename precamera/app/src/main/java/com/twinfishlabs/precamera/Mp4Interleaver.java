@@ -0,0 +1,143 @@
+package com.twinfishlabs.precamera;
+
+import java.util.Arrays;
+
+/**
+ * Puts the samples of any number of tracks in the order they go into an mdat: in chunks, runs
+ * of one track's samples about chunkDurationUsec long, merged by the PTS they start at.
+ * Longer chunks than a frame or two mean smaller stco and stsc boxes, fewer writes, and fewer
+ * seeks for a player; merging by PTS keeps any track from running more than a chunk ahead of
+ * the others.
+ * <p>
+ * Samples are ints of the caller's choosing, added in PTS order per track.  A chunk is ready
+ * once its track has a sample past its end and no other track can still come up with a chunk
+ * that starts before it; a track that goes quiet is only waited for so long.  At the end,
+ * takeChunk() with "flush" hands out the rest.
+ * <p>
+ * Plain Java, so it also runs outside the app.  Not thread safe.
+ */
+class Mp4Interleaver {
+    // A chunk whose track has this many chunks' worth queued is taken even if another track
+    // might still have something to put before it.
+    private static final int MAX_WAIT_CHUNKS = 4;
+
+    private final long mChunkDurationUsec;
+    private final Queue[] mQueues;
+
+    /**
+     * A track's samples that haven't been taken yet, from "head" on.
+     */
+    private static class Queue {
+        int[] samples = new int[64];
+        long[] ptsUsec = new long[64];
+        int head;
+        int count;
+        long lastPtsUsec = Long.MIN_VALUE;     // of the newest sample added, taken or not
+    }
+
+    /**
+     * A chunk handed out by takeChunk().  Reused; samples may be longer than count.
+     */
+    static class Chunk {
+        int track;
+        int count;
+        int[] samples = new int[64];
+    }
+
+    /**
+     * @param chunkDurationUsec How long a chunk may be; 0 makes every sample a chunk of its
+     *     own, so the samples are just merged by PTS.
+     */
+    Mp4Interleaver(int trackCount, long chunkDurationUsec) {
+        mChunkDurationUsec = chunkDurationUsec;
+        mQueues = new Queue[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            mQueues[i] = new Queue();
+        }
+    }
+
+    void add(int track, long ptsUsec, int sample) {
+        Queue queue = mQueues[track];
+        if (queue.head + queue.count == queue.samples.length) {
+            if (queue.head > 0) {
+                System.arraycopy(queue.samples, queue.head, queue.samples, 0, queue.count);
+                System.arraycopy(queue.ptsUsec, queue.head, queue.ptsUsec, 0, queue.count);
+            } else {
+                queue.samples = Arrays.copyOf(queue.samples, queue.count * 2);
+                queue.ptsUsec = Arrays.copyOf(queue.ptsUsec, queue.count * 2);
+            }
+            queue.head = 0;
+        }
+        queue.samples[queue.head + queue.count] = sample;
+        queue.ptsUsec[queue.head + queue.count] = ptsUsec;
+        queue.count++;
+        queue.lastPtsUsec = ptsUsec;
+    }
+
+    /**
+     * Takes the chunk that starts first out, if it's ready.
+     *
+     * @param flush Don't wait for anything more: the chunk is ready if there is one.
+     * @return False if there's no chunk ready.
+     */
+    boolean takeChunk(Chunk chunk, boolean flush) {
+        int track = -1;
+        long startUsec = 0;
+        for (int i = 0; i < mQueues.length; i++) {
+            Queue queue = mQueues[i];
+            if (queue.count > 0 && (track < 0 || queue.ptsUsec[queue.head] < startUsec)) {
+                track = i;
+                startUsec = queue.ptsUsec[queue.head];
+            }
+        }
+        if (track < 0) {
+            return false;
+        }
+
+        Queue queue = mQueues[track];
+        long endUsec = startUsec + mChunkDurationUsec;
+        int count = 1;
+        while (count < queue.count && queue.ptsUsec[queue.head + count] < endUsec) {
+            count++;
+        }
+        if (!flush) {
+            if (count == queue.count) {
+                // More may be on the way.
+                return false;
+            }
+            if (queue.lastPtsUsec - startUsec < mChunkDurationUsec * MAX_WAIT_CHUNKS) {
+                for (int i = 0; i < mQueues.length; i++) {
+                    // An empty track could still add something that starts earlier.
+                    if (mQueues[i].count == 0 && mQueues[i].lastPtsUsec < startUsec) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        if (chunk.samples.length < count) {
+            chunk.samples = new int[Math.max(count, chunk.samples.length * 2)];
+        }
+        System.arraycopy(queue.samples, queue.head, chunk.samples, 0, count);
+        chunk.track = track;
+        chunk.count = count;
+        queue.head += count;
+        queue.count -= count;
+        if (queue.count == 0) {
+            queue.head = 0;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if "sample" is the next one to be taken of its track.
+     */
+    boolean isHead(int sample) {
+        for (Queue queue : mQueues) {
+            if (queue.count > 0 && queue.samples[queue.head] == sample) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
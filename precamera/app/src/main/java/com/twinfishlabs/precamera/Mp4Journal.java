@@ -0,0 +1,302 @@
+package com.twinfishlabs.precamera;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * A sidecar file kept for a clip while {@link RingMp4Writer} writes it, with what it takes to
+ * rebuild the clip's moov if the process dies before stop(): the track formats, and where
+ * every sample went.  {@link Mp4Recovery} reads it back.  The writer deletes it once the clip
+ * is complete.  The app keeps journals in its private files, named after their clips, rather
+ * than in the public folder next to them, where the gallery and other apps would see them.
+ * <p>
+ * add() only puts a record in memory.  flush() hands what's collected to a thread of the
+ * journal's own, which forces the clip's data to storage, then appends the records and forces
+ * them too; so the muxer thread never waits for the disk, and the journal never points at
+ * data that isn't there.  Records are only added for samples already written.
+ * <p>
+ * The format, big-endian: "PCJ1", the orientation, the mdat's start (long), the start of the
+ * room for the moov (long, -1 for none) and its size, the track count; per track a video flag
+ * (byte), then width, height, SPS and PPS, or sample rate, channel count, bit rate and
+ * AudioSpecificConfig, with a short length in front of each byte array.  After that one
+ * 24-byte record per sample: offset (long), PTS in microseconds (long), size, and the track
+ * index shifted left by 8 with 1 in the low bits for a sync sample.
+ */
+class Mp4Journal {
+    private static final String TAG = Utilities.TAG + ":Mp4Journal";
+
+    static final String SUFFIX = ".journal";
+    private static final int MAGIC = 0x50434a31;        // "PCJ1"
+    private static final int RECORD_BYTES = 24;
+
+    private final RandomAccessFile mJournal;
+    private final FileChannel mData;
+    private final WriterThread mThread;
+    private ByteBuffer mPending = ByteBuffer.allocate(256 * RECORD_BYTES);
+
+    // Handed over by flush(), waiting for the thread.  Guarded by mLock.
+    private final Object mLock = new Object();
+    private ByteBuffer mQueued = ByteBuffer.allocate(256 * RECORD_BYTES);
+    private boolean mClosing;
+    private volatile boolean mFailed;
+
+    /**
+     * Returns the journal file for a clip, in "folder".
+     */
+    static File getFile(File folder, File clip) {
+        return new File(folder, clip.getName() + SUFFIX);
+    }
+
+    /**
+     * Creates the journal and writes its header.
+     *
+     * @param data The clip being written, forced to storage before records that point into it.
+     */
+    Mp4Journal(File file, FileChannel data, Mp4Index index, long mdatStart, long indexStart,
+            int indexRoom) throws IOException {
+        mData = data;
+        mJournal = new RandomAccessFile(file, "rw");
+        mJournal.setLength(0);
+
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        buf.putInt(MAGIC);
+        buf.putInt(index.getOrientation());
+        buf.putLong(mdatStart);
+        buf.putLong(indexStart);
+        buf.putInt(indexRoom);
+        buf.putInt(index.getTrackCount());
+        for (int i = 0; i < index.getTrackCount(); i++) {
+            Mp4Track track = index.getTrack(i);
+            buf.put((byte) (track.isVideo ? 1 : 0));
+            if (track.isVideo) {
+                buf.putInt(track.width);
+                buf.putInt(track.height);
+                putBytes(buf, track.sps);
+                putBytes(buf, track.pps);
+            } else {
+                buf.putInt(track.sampleRate);
+                buf.putInt(track.channelCount);
+                buf.putInt(track.bitRate);
+                putBytes(buf, track.audioConfig);
+            }
+        }
+        buf.flip();
+        FileChannel channel = mJournal.getChannel();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+
+        mThread = new WriterThread();
+        mThread.start();
+    }
+
+    private static void putBytes(ByteBuffer buf, byte[] bytes) {
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * Records a sample that's been written to the clip.
+     *
+     * @param track The track's index in the Mp4Index.
+     */
+    void add(int track, long offset, int size, long ptsUsec, boolean sync) {
+        if (mPending.remaining() < RECORD_BYTES) {
+            mPending = grow(mPending, RECORD_BYTES);
+        }
+        mPending.putLong(offset);
+        mPending.putLong(ptsUsec);
+        mPending.putInt(size);
+        mPending.putInt(track << 8 | (sync ? 1 : 0));
+    }
+
+    /**
+     * How many records add() has collected since the last flush().
+     */
+    int getPendingCount() {
+        return mPending.position() / RECORD_BYTES;
+    }
+
+    /**
+     * Has the records collected so far written out, in the background.
+     */
+    void flush() {
+        if (mFailed) {
+            mPending.clear();
+            return;
+        }
+        synchronized (mLock) {
+            mPending.flip();
+            if (mQueued.remaining() < mPending.remaining()) {
+                mQueued = grow(mQueued, mPending.remaining());
+            }
+            mQueued.put(mPending);
+            mPending.clear();
+            mLock.notify();
+        }
+    }
+
+    /**
+     * Stops the thread once it has written what flush() handed it, and closes the journal.
+     * The file stays; the clip's writer deletes it once the clip is complete.
+     */
+    void close() {
+        synchronized (mLock) {
+            mClosing = true;
+            mLock.notify();
+        }
+        try {
+            mThread.join();
+        } catch (InterruptedException ie) {
+            Log.w(TAG, "journal thread join() was interrupted", ie);
+        }
+        try {
+            mJournal.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed closing journal", ioe);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int needed) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2,
+                buf.position() + needed));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /**
+     * Appends what flush() hands over, forcing the clip's data out first.
+     */
+    private class WriterThread extends Thread {
+        public WriterThread() {
+            setName("Mp4Journal");
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer writing = ByteBuffer.allocate(mQueued.capacity());
+            FileChannel channel = mJournal.getChannel();
+            while (true) {
+                synchronized (mLock) {
+                    while (mQueued.position() == 0 && !mClosing) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ie) { }
+                    }
+                    if (mQueued.position() == 0) {
+                        return;
+                    }
+                    ByteBuffer queued = mQueued;
+                    writing.clear();
+                    mQueued = writing;
+                    writing = queued;
+                }
+                writing.flip();
+                try {
+                    mData.force(false);
+                    while (writing.hasRemaining()) {
+                        channel.write(writing);
+                    }
+                    channel.force(false);
+                } catch (IOException ioe) {
+                    // The clip's writer finds out about its own errors; all we lose is the
+                    // chance to recover it.
+                    Log.w(TAG, "failed writing journal", ioe);
+                    mFailed = true;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * What a journal says about its clip, see read().
+     */
+    static class Contents {
+        final Mp4Index index = new Mp4Index();
+        long mdatStart;
+        long indexStart;
+        int indexRoom;
+        // Past the last sample that's really in the clip.
+        long dataEnd;
+        int sampleCount;
+    }
+
+    /**
+     * Reads a journal back.  Records for samples that don't all lie within the clip's first
+     * clipLength bytes are left out, and so is a record cut short at the end.
+     */
+    static Contents read(File file, long clipLength) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a journal: " + file);
+            }
+            Contents contents = new Contents();
+            Mp4Index index = contents.index;
+            index.setOrientation(in.readInt());
+            contents.mdatStart = in.readLong();
+            contents.indexStart = in.readLong();
+            contents.indexRoom = in.readInt();
+            contents.dataEnd = contents.mdatStart + 16;
+            int trackCount = in.readInt();
+            for (int i = 0; i < trackCount; i++) {
+                Mp4Track track = index.addTrack();
+                if (in.readByte() != 0) {
+                    track.isVideo = true;
+                    track.timescale = Mp4Track.VIDEO_TIMESCALE;
+                    track.width = in.readInt();
+                    track.height = in.readInt();
+                    track.sps = readBytes(in);
+                    track.pps = readBytes(in);
+                } else {
+                    track.timescale = track.sampleRate = in.readInt();
+                    track.channelCount = in.readInt();
+                    track.bitRate = in.readInt();
+                    track.audioConfig = readBytes(in);
+                }
+            }
+
+            while (true) {
+                long offset, ptsUsec;
+                int size, trackAndFlags;
+                try {
+                    offset = in.readLong();
+                    ptsUsec = in.readLong();
+                    size = in.readInt();
+                    trackAndFlags = in.readInt();
+                } catch (EOFException eofe) {
+                    break;
+                }
+                int track = trackAndFlags >>> 8;
+                if (offset + size > clipLength || track >= trackCount) {
+                    break;
+                }
+                index.addSample(index.getTrack(track), ptsUsec, offset, size,
+                        (trackAndFlags & 1) != 0);
+                contents.dataEnd = Math.max(contents.dataEnd, offset + size);
+                contents.sampleCount++;
+            }
+            return contents;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,89 @@
+package com.twinfishlabs.precamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Makes a clip playable again after the process died while saving it, from its
+ * {@link Mp4Journal}: the samples the journal knows of are kept, anything after
+ * them is cut off, and a moov is written for them.
+ * <p>
+ * The app runs it at start-up for journals left behind.  It doesn't need Android, so it also
+ * runs as a plain Java program, with the app's classes on the class path; the journal is
+ * looked for next to the clip unless it's given:
+ * <pre>
+ * java -cp classes com.twinfishlabs.precamera.Mp4Recovery clip.mp4 [clip.mp4.journal]
+ * </pre>
+ */
+public class Mp4Recovery {
+
+    /**
+     * Rebuilds the clip's moov from its journal, then deletes the journal.
+     *
+     * @return How many samples the clip has now.
+     */
+    public static int recover(File clip, File journal) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(clip, "rw");
+        try {
+            Mp4Journal.Contents contents = Mp4Journal.read(journal, file.length());
+            if (contents.sampleCount == 0) {
+                throw new IOException("No samples in " + clip);
+            }
+            file.setLength(contents.dataEnd);
+            contents.index.writeTo(file.getChannel(), contents.mdatStart, contents.dataEnd,
+                    contents.indexStart, contents.indexRoom);
+            file.getChannel().force(false);
+            if (!journal.delete()) {
+                throw new IOException("Failed deleting " + journal);
+            }
+            return contents.sampleCount;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the clips in "clipFolder" that have a journal left over in "journalFolder".
+     * Journals whose clip is gone are deleted.
+     */
+    public static File[] findUnfinished(File journalFolder, File clipFolder) {
+        File[] journals = journalFolder.listFiles();
+        if (journals == null) {
+            return new File[0];
+        }
+        int count = 0;
+        File[] clips = new File[journals.length];
+        for (File journal : journals) {
+            String name = journal.getName();
+            if (name.endsWith(Mp4Journal.SUFFIX)) {
+                File clip = new File(clipFolder, name.substring(0, name.length() - Mp4Journal.SUFFIX.length()));
+                if (clip.exists()) {
+                    clips[count++] = clip;
+                } else {
+                    journal.delete();
+                }
+            }
+        }
+        File[] result = new File[count];
+        System.arraycopy(clips, 0, result, 0, count);
+        return result;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: Mp4Recovery <clip.mp4> [<journal>]");
+            System.exit(2);
+        }
+        File clip = new File(args[0]);
+        File journal = args.length > 1 ? new File(args[1]) : Mp4Journal.getFile(clip.getAbsoluteFile().getParentFile(), clip);
+        try {
+            int samples = recover(clip, journal);
+            System.out.println(clip + ": recovered " + samples + " samples, "
+                    + clip.length() + " bytes");
+        } catch (IOException ioe) {
+            System.err.println(clip + ": " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+}
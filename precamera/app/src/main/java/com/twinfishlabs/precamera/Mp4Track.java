@@ -0,0 +1,115 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaFormat;
+
+/**
+ * What an MP4 writer needs to know about a track to describe it in the moov: H.264 with its
+ * parameter sets, or AAC with its AudioSpecificConfig.  The writers extend it with the
+ * samples they collect.
+ */
+class Mp4Track {
+    static final int VIDEO_TIMESCALE = 90000;
+
+    int id;
+    boolean isVideo;
+    int timescale;
+    int width, height;
+    int sampleRate, channelCount, bitRate;
+    byte[] sps, pps;
+    byte[] audioConfig;
+
+    /**
+     * Takes the format the encoder reported.
+     */
+    void setFormat(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+                ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+        if ("video/avc".equals(mime)) {
+            setVideoFormat(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), format.getByteBuffer("csd-0"),
+                    format.getByteBuffer("csd-1"));
+        } else if ("audio/mp4a-latm".equals(mime)) {
+            setAudioFormat(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), bitRate,
+                    format.getByteBuffer("csd-0"));
+        } else {
+            throw new IllegalArgumentException("Unsupported format: " + mime);
+        }
+    }
+
+    /**
+     * H.264.  The parameter sets may be split over csd0 and csd1 or all be in csd0, with
+     * start codes, the way MediaCodec hands them out.
+     */
+    void setVideoFormat(int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        isVideo = true;
+        timescale = VIDEO_TIMESCALE;
+        this.width = width;
+        this.height = height;
+        findParameterSets(csd0);
+        if (csd1 != null) {
+            findParameterSets(csd1);
+        }
+        if (sps == null || pps == null) {
+            throw new IllegalArgumentException("Missing SPS or PPS");
+        }
+    }
+
+    /**
+     * AAC.
+     *
+     * @param audioConfig The AudioSpecificConfig, csd-0 in the encoder's format.
+     */
+    void setAudioFormat(int sampleRate, int channelCount, int bitRate, ByteBuffer audioConfig) {
+        isVideo = false;
+        timescale = sampleRate;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitRate = bitRate;
+        this.audioConfig = new byte[audioConfig.remaining()];
+        audioConfig.duplicate().get(this.audioConfig);
+    }
+
+    /**
+     * Takes the format of another track.
+     */
+    void copyFormat(Mp4Track other) {
+        isVideo = other.isVideo;
+        timescale = other.timescale;
+        width = other.width;
+        height = other.height;
+        sampleRate = other.sampleRate;
+        channelCount = other.channelCount;
+        bitRate = other.bitRate;
+        sps = other.sps;
+        pps = other.pps;
+        audioConfig = other.audioConfig;
+    }
+
+    long toTimescale(long usec) {
+        return usec * timescale / 1000000;
+    }
+
+    private void findParameterSets(ByteBuffer csd) {
+        int end = csd.limit();
+        int nalStart = Mp4Boxes.skipStartCode(csd, csd.position(), end);
+        while (nalStart < end) {
+            int next = Mp4Boxes.findStartCode(csd, nalStart, end);
+            // The zero that makes the next start code four bytes isn't the NAL unit's.
+            byte[] nal = new byte[Mp4Boxes.findNalEnd(csd, nalStart, next) - nalStart];
+            for (int i = 0; i < nal.length; i++) {
+                nal[i] = csd.get(nalStart + i);
+            }
+            int type = nal.length > 0 ? nal[0] & 0x1f : 0;
+            if (type == 7) {
+                sps = nal;
+            } else if (type == 8) {
+                pps = nal;
+            }
+            nalStart = Mp4Boxes.skipStartCode(csd, next, end);
+        }
+    }
+}
@@ -0,0 +1,657 @@
+package com.twinfishlabs.precamera;
+
+import static com.twinfishlabs.precamera.Mp4Boxes.fourCc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cuts a stretch out of a plain MP4 file, as MediaMuxer or {@link RingMp4Writer} write them,
+ * without re-encoding: the cut starts at the video sync frame at or before the start asked
+ * for, and the samples from there to the end are copied over as they are, into a new file
+ * with the moov in front.
+ * <p>
+ * Only the source's moov is read into memory.  The samples go from file to file with
+ * FileChannel.transferTo(), a run at a time, so the size of the source doesn't matter.
+ * trimInBackground() does the work on a thread of its own, one trim after the other.  Like
+ * {@link Mp4Recovery} it doesn't need Android, so it runs as a plain Java program as well:
+ * <pre>
+ * java -cp classes com.twinfishlabs.precamera.Mp4Trimmer clip.mp4 12.5 20 part.mp4
+ * </pre>
+ * H.264 without B-frames and AAC only, which is what the encoders give us.  Fragmented files
+ * aren't supported.
+ */
+public class Mp4Trimmer {
+    private static final int MAX_MOOV_BYTES = 64 * 1024 * 1024;
+
+    private static ExecutorService sExecutor;
+
+    private final File mSource;
+    private int mOrientation;
+    private final ArrayList<SourceTrack> mTracks = new ArrayList<SourceTrack>();
+
+    /**
+     * A track of the source, with where its samples are and when they play.
+     */
+    private static class SourceTrack {
+        final Mp4Track format = new Mp4Track();
+        int count;
+        long[] offsets;
+        int[] sizes;
+        long[] timesUsec;           // in the movie, edit list applied
+        boolean[] sync;
+
+        // The samples [first, end) go into the trimmed file.
+        int first;
+        int end;
+    }
+
+    /**
+     * What trim() came up with.
+     */
+    public static class Result {
+        // Where in the source the trimmed file starts, and its last sample, in microseconds.
+        public long startUsec;
+        public long endUsec;
+        public int sampleCount;
+    }
+
+    /**
+     * Reads the source's moov.
+     */
+    public Mp4Trimmer(File source) throws IOException {
+        mSource = source;
+        RandomAccessFile file = new RandomAccessFile(source, "r");
+        try {
+            parseMoov(readMoov(file.getChannel()));
+        } finally {
+            file.close();
+        }
+        if (mTracks.isEmpty()) {
+            throw new IOException("No H.264 or AAC tracks in " + source);
+        }
+    }
+
+    /**
+     * Runs trim() on the trimmer's thread.  Trims run one at a time, in the order they're
+     * asked for.
+     */
+    public static Future<Result> trimInBackground(final File source, final long startUsec,
+            final long endUsec, final File dest) {
+        synchronized (Mp4Trimmer.class) {
+            if (sExecutor == null) {
+                sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Mp4Trimmer");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        return sExecutor.submit(new Callable<Result>() {
+            @Override
+            public Result call() throws IOException {
+                return new Mp4Trimmer(source).trim(startUsec, endUsec, dest);
+            }
+        });
+    }
+
+    /**
+     * Writes the samples from the last video sync frame at or before startUsec up to endUsec
+     * to "dest".
+     */
+    public Result trim(long startUsec, long endUsec, File dest) throws IOException {
+        if (endUsec <= startUsec) {
+            throw new IllegalArgumentException("Empty range: " + startUsec + "-" + endUsec);
+        }
+        long cutUsec = findCut(startUsec);
+        Result result = new Result();
+        result.startUsec = cutUsec;
+        result.endUsec = cutUsec;
+        for (int i = 0; i < mTracks.size(); i++) {
+            SourceTrack track = mTracks.get(i);
+            track.first = 0;
+            while (track.first < track.count && track.timesUsec[track.first] < cutUsec) {
+                track.first++;
+            }
+            track.end = track.first;
+            while (track.end < track.count && track.timesUsec[track.end] < endUsec) {
+                track.end++;
+            }
+            result.sampleCount += track.end - track.first;
+            if (track.end > track.first) {
+                result.endUsec = Math.max(result.endUsec, track.timesUsec[track.end - 1]);
+            }
+        }
+        if (result.sampleCount == 0) {
+            throw new IOException("Nothing between " + startUsec + " and " + endUsec + " in "
+                    + mSource);
+        }
+
+        // The samples keep the order they have in the source; each run of them that follows
+        // on from the one before is a single copy.
+        int[] orderTracks = new int[result.sampleCount];
+        int[] orderSamples = new int[result.sampleCount];
+        int[] next = new int[mTracks.size()];
+        for (int i = 0; i < next.length; i++) {
+            next[i] = mTracks.get(i).first;
+        }
+        for (int n = 0; n < result.sampleCount; n++) {
+            int best = -1;
+            for (int i = 0; i < next.length; i++) {
+                SourceTrack track = mTracks.get(i);
+                if (next[i] < track.end && (best < 0
+                        || track.offsets[next[i]] < mTracks.get(best).offsets[next[best]])) {
+                    best = i;
+                }
+            }
+            orderTracks[n] = best;
+            orderSamples[n] = next[best]++;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        Mp4Boxes.writeFtyp(buf);
+        long indexStart = buf.position();
+        int indexRoom = buildIndex(orderTracks, orderSamples, cutUsec, 0).getMoovSizeBound();
+        long mdatStart = indexStart + indexRoom;
+        Mp4Index index = buildIndex(orderTracks, orderSamples, cutUsec, mdatStart + 16);
+
+        RandomAccessFile in = new RandomAccessFile(mSource, "r");
+        RandomAccessFile out = new RandomAccessFile(dest, "rw");
+        try {
+            out.setLength(0);
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            buf.putInt(indexRoom);              // a free box until the moov goes there
+            buf.put(fourCc("free"));
+            buf.flip();
+            writeFully(dst, buf, 0);
+            buf.clear();
+            buf.putInt(1);                      // 64-bit size, filled in by the index
+            buf.put(fourCc("mdat"));
+            buf.putLong(0);
+            buf.flip();
+            writeFully(dst, buf, mdatStart);
+
+            long dataEnd = mdatStart + 16;
+            dst.position(dataEnd);
+            for (int n = 0; n < orderTracks.length; ) {
+                SourceTrack track = mTracks.get(orderTracks[n]);
+                long runStart = track.offsets[orderSamples[n]];
+                long runEnd = runStart;
+                for (; n < orderTracks.length; n++) {
+                    track = mTracks.get(orderTracks[n]);
+                    if (track.offsets[orderSamples[n]] != runEnd) {
+                        break;
+                    }
+                    runEnd += track.sizes[orderSamples[n]];
+                }
+                transferFully(src, runStart, runEnd - runStart, dst);
+                dataEnd += runEnd - runStart;
+            }
+            index.writeTo(dst, mdatStart, dataEnd, indexStart, indexRoom);
+            dst.force(false);
+        } finally {
+            in.close();
+            out.close();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the time of the last video sync frame at or before "usec", or without video,
+     * of the last sample.
+     */
+    private long findCut(long usec) {
+        long cutUsec = Long.MIN_VALUE;
+        boolean hasVideo = false;
+        for (int i = 0; i < mTracks.size(); i++) {
+            SourceTrack track = mTracks.get(i);
+            hasVideo |= track.format.isVideo;
+        }
+        for (int i = 0; i < mTracks.size(); i++) {
+            SourceTrack track = mTracks.get(i);
+            if (track.format.isVideo != hasVideo || track.count == 0) {
+                continue;
+            }
+            long trackCutUsec = track.timesUsec[0];
+            for (int j = 0; j < track.count && track.timesUsec[j] <= usec; j++) {
+                if (track.sync[j]) {
+                    trackCutUsec = track.timesUsec[j];
+                }
+            }
+            cutUsec = Math.max(cutUsec, trackCutUsec);
+        }
+        return cutUsec;
+    }
+
+    /**
+     * Puts the chosen samples in an index, written from dataStart on in the given order.
+     */
+    private Mp4Index buildIndex(int[] orderTracks, int[] orderSamples, long cutUsec,
+            long dataStart) {
+        Mp4Index index = new Mp4Index();
+        index.setOrientation(mOrientation);
+        for (int i = 0; i < mTracks.size(); i++) {
+            index.addTrack().copyFormat(mTracks.get(i).format);
+        }
+        long offset = dataStart;
+        for (int n = 0; n < orderTracks.length; n++) {
+            SourceTrack track = mTracks.get(orderTracks[n]);
+            int sample = orderSamples[n];
+            index.addSample(index.getTrack(orderTracks[n]), track.timesUsec[sample] - cutUsec,
+                    offset, track.sizes[sample], track.format.isVideo && track.sync[sample]);
+            offset += track.sizes[sample];
+        }
+        return index;
+    }
+
+    private ByteBuffer readMoov(FileChannel channel) throws IOException {
+        long length = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (position + 8 <= length) {
+            header.clear();
+            header.limit((int) Math.min(16, length - position));
+            readFully(channel, header, position);
+            long size = header.getInt(0) & 0xffffffffL;
+            String type = new String(header.array(), 4, 4, "US-ASCII");
+            int headerSize = 8;
+            if (size == 1 && header.limit() == 16) {
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = length - position;
+            }
+            if (size < headerSize) {
+                throw new IOException("Bad " + type + " box at " + position + " in " + mSource);
+            }
+            if (type.equals("moof")) {
+                throw new IOException("Fragmented MP4 isn't supported: " + mSource);
+            }
+            if (type.equals("moov")) {
+                if (size > MAX_MOOV_BYTES) {
+                    throw new IOException("moov too big: " + size);
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) size - headerSize);
+                readFully(channel, moov, position + headerSize);
+                moov.flip();
+                return moov;
+            }
+            position += size;
+        }
+        throw new IOException("No moov in " + mSource);
+    }
+
+    private void parseMoov(ByteBuffer moov) throws IOException {
+        if (findBox(moov, "mvex") != null) {
+            throw new IOException("Fragmented MP4 isn't supported: " + mSource);
+        }
+        ByteBuffer mvhd = findBox(moov, "mvhd");
+        if (mvhd == null) {
+            throw new IOException("No mvhd in " + mSource);
+        }
+        int movieTimescale = mvhd.getInt(mvhd.get(0) == 1 ? 20 : 12);
+        for (ByteBuffer trak : findBoxes(moov, "trak")) {
+            SourceTrack track = parseTrak(trak, movieTimescale);
+            if (track != null) {
+                mTracks.add(track);
+            }
+        }
+    }
+
+    /**
+     * Returns null for a track that isn't H.264 or AAC.
+     */
+    private SourceTrack parseTrak(ByteBuffer trak, int movieTimescale) throws IOException {
+        ByteBuffer mdia = findBox(trak, "mdia");
+        ByteBuffer hdlr = findBox(mdia, "hdlr");
+        ByteBuffer mdhd = findBox(mdia, "mdhd");
+        ByteBuffer stbl = findBox(mdia, "minf", "stbl");
+        if (hdlr == null || mdhd == null || stbl == null) {
+            throw new IOException("Incomplete trak in " + mSource);
+        }
+        ByteBuffer stsd = findBox(stbl, "stsd");
+        stsd.position(8);
+        ByteBuffer entries = stsd.slice();
+
+        SourceTrack track = new SourceTrack();
+        Mp4Track format = track.format;
+        ByteBuffer entry;
+        if ((entry = findBox(entries, "avc1")) != null) {
+            parseAvc1(entry, format);
+            mOrientation = getRotation(findBox(trak, "tkhd"));
+        } else if ((entry = findBox(entries, "mp4a")) != null) {
+            parseMp4a(entry, format);
+        } else {
+            return null;
+        }
+        format.timescale = mdhd.getInt(mdhd.get(0) == 1 ? 20 : 12);
+
+        parseSampleTables(stbl, track);
+
+        // Edits: empty ones first delay the track, the first real one says where in the media
+        // it starts.
+        long delay = 0;
+        long mediaStart = 0;
+        ByteBuffer elst = findBox(trak, "edts", "elst");
+        if (elst != null) {
+            boolean large = elst.get(0) == 1;
+            int count = elst.getInt(4);
+            elst.position(8);
+            for (int i = 0; i < count; i++) {
+                long duration = large ? elst.getLong() : elst.getInt() & 0xffffffffL;
+                long mediaTime = large ? elst.getLong() : elst.getInt();
+                elst.getInt();                  // rate
+                if (mediaTime != -1) {
+                    mediaStart = mediaTime;
+                    break;
+                }
+                delay += duration;
+            }
+        }
+        long delayUsec = delay * 1000000 / movieTimescale;
+        for (int i = 0; i < track.count; i++) {
+            track.timesUsec[i] = delayUsec
+                    + (track.timesUsec[i] - mediaStart) * 1000000 / format.timescale;
+        }
+        return track;
+    }
+
+    private void parseAvc1(ByteBuffer avc1, Mp4Track format) throws IOException {
+        format.isVideo = true;
+        format.width = avc1.getShort(24) & 0xffff;
+        format.height = avc1.getShort(26) & 0xffff;
+        avc1.position(78);
+        ByteBuffer avcC = findBox(avc1.slice(), "avcC");
+        if (avcC == null) {
+            throw new IOException("No avcC in " + mSource);
+        }
+        avcC.position(5);
+        int spsCount = avcC.get() & 0x1f;
+        for (int i = 0; i < spsCount; i++) {
+            byte[] sps = readBytes(avcC, avcC.getShort() & 0xffff);
+            if (format.sps == null) {
+                format.sps = sps;
+            }
+        }
+        int ppsCount = avcC.get() & 0xff;
+        for (int i = 0; i < ppsCount; i++) {
+            byte[] pps = readBytes(avcC, avcC.getShort() & 0xffff);
+            if (format.pps == null) {
+                format.pps = pps;
+            }
+        }
+        if (format.sps == null || format.pps == null) {
+            throw new IOException("Missing SPS or PPS in " + mSource);
+        }
+    }
+
+    private void parseMp4a(ByteBuffer mp4a, Mp4Track format) throws IOException {
+        format.isVideo = false;
+        format.channelCount = mp4a.getShort(16) & 0xffff;
+        format.sampleRate = mp4a.getInt(24) >>> 16;
+        mp4a.position(28);
+        ByteBuffer esds = findBox(mp4a.slice(), "esds");
+        if (esds == null) {
+            throw new IOException("No esds in " + mSource);
+        }
+        esds.position(4);
+        while (esds.remaining() >= 2) {
+            int tag = esds.get() & 0xff;
+            int length = readDescriptorLength(esds);
+            if (tag == 0x03) {              // ES_Descriptor, the others are inside it
+                esds.getShort();
+                int flags = esds.get() & 0xff;
+                if ((flags & 0x80) != 0) {
+                    esds.getShort();
+                }
+                if ((flags & 0x40) != 0) {
+                    esds.position(esds.position() + (esds.get() & 0xff));
+                }
+                if ((flags & 0x20) != 0) {
+                    esds.getShort();
+                }
+            } else if (tag == 0x04) {       // DecoderConfigDescriptor, DecoderSpecificInfo inside
+                esds.position(esds.position() + 9);
+                format.bitRate = esds.getInt();
+            } else if (tag == 0x05) {
+                format.audioConfig = readBytes(esds, length);
+                break;
+            } else {
+                esds.position(esds.position() + length);
+            }
+        }
+        if (format.audioConfig == null) {
+            throw new IOException("No AudioSpecificConfig in " + mSource);
+        }
+    }
+
+    private static int readDescriptorLength(ByteBuffer buf) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = buf.get() & 0xff;
+            length = length << 7 | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the clockwise rotation the tkhd's matrix stands for.
+     */
+    private static int getRotation(ByteBuffer tkhd) {
+        if (tkhd == null) {
+            return 0;
+        }
+        int matrix = tkhd.get(0) == 1 ? 4 + 32 + 16 : 4 + 20 + 16;
+        int a = tkhd.getInt(matrix);
+        int b = tkhd.getInt(matrix + 4);
+        if (a == 0 && b > 0) {
+            return 90;
+        } else if (a < 0) {
+            return 180;
+        } else if (a == 0 && b < 0) {
+            return 270;
+        }
+        return 0;
+    }
+
+    /**
+     * Works out every sample's offset, size, decoding time (in the track's timescale, for
+     * now) and whether it's a sync sample.
+     */
+    private void parseSampleTables(ByteBuffer stbl, SourceTrack track) throws IOException {
+        ByteBuffer stsz = findBox(stbl, "stsz");
+        ByteBuffer stts = findBox(stbl, "stts");
+        ByteBuffer stsc = findBox(stbl, "stsc");
+        ByteBuffer stco = findBox(stbl, "stco");
+        ByteBuffer co64 = findBox(stbl, "co64");
+        if (stsz == null || stts == null || stsc == null || (stco == null && co64 == null)) {
+            throw new IOException("Incomplete sample tables in " + mSource);
+        }
+        ByteBuffer ctts = findBox(stbl, "ctts");
+        if (ctts != null) {
+            int entries = ctts.getInt(4);
+            for (int i = 0; i < entries; i++) {
+                if (ctts.getInt(8 + i * 8 + 4) != 0) {
+                    throw new IOException("B-frames aren't supported: " + mSource);
+                }
+            }
+        }
+
+        int sampleSize = stsz.getInt(4);
+        int count = stsz.getInt(8);
+        track.count = count;
+        track.sizes = new int[count];
+        track.offsets = new long[count];
+        track.timesUsec = new long[count];
+        track.sync = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            track.sizes[i] = sampleSize != 0 ? sampleSize : stsz.getInt(12 + i * 4);
+        }
+
+        int entries = stts.getInt(4);
+        long time = 0;
+        for (int i = 0, sample = 0; i < entries; i++) {
+            int runLength = stts.getInt(8 + i * 8);
+            int delta = stts.getInt(8 + i * 8 + 4);
+            for (int j = 0; j < runLength && sample < count; j++) {
+                track.timesUsec[sample++] = time;
+                time += delta;
+            }
+        }
+
+        ByteBuffer stss = findBox(stbl, "stss");
+        if (stss == null) {
+            for (int i = 0; i < count; i++) {
+                track.sync[i] = true;
+            }
+        } else {
+            entries = stss.getInt(4);
+            for (int i = 0; i < entries; i++) {
+                int sample = stss.getInt(8 + i * 4) - 1;
+                if (sample >= 0 && sample < count) {
+                    track.sync[sample] = true;
+                }
+            }
+        }
+
+        boolean large = stco == null;
+        ByteBuffer offsets = large ? co64 : stco;
+        int chunkCount = offsets.getInt(4);
+        int stscEntries = stsc.getInt(4);
+        int sample = 0;
+        for (int i = 0; i < stscEntries && sample < count; i++) {
+            int firstChunk = stsc.getInt(8 + i * 12) - 1;
+            int samplesPerChunk = stsc.getInt(8 + i * 12 + 4);
+            int endChunk = i + 1 < stscEntries ? stsc.getInt(8 + (i + 1) * 12) - 1 : chunkCount;
+            for (int chunk = firstChunk; chunk < endChunk && sample < count; chunk++) {
+                long offset = large ? offsets.getLong(8 + chunk * 8)
+                        : offsets.getInt(8 + chunk * 4) & 0xffffffffL;
+                for (int j = 0; j < samplesPerChunk && sample < count; j++) {
+                    track.offsets[sample] = offset;
+                    offset += track.sizes[sample++];
+                }
+            }
+        }
+        if (sample < count) {
+            throw new IOException("Sample tables don't add up in " + mSource);
+        }
+    }
+
+    /**
+     * Returns the contents of the first box of the given type, following the path of types
+     * down from "parent", or null.
+     */
+    private static ByteBuffer findBox(ByteBuffer parent, String... path) {
+        ByteBuffer box = parent;
+        for (String type : path) {
+            ArrayList<ByteBuffer> boxes = findBoxes(box, type);
+            if (boxes.isEmpty()) {
+                return null;
+            }
+            box = boxes.get(0);
+        }
+        return box;
+    }
+
+    /**
+     * Returns the contents of every box of "type" in "parent", each in a buffer of its own,
+     * starting at 0.
+     */
+    private static ArrayList<ByteBuffer> findBoxes(ByteBuffer parent, String type) {
+        ArrayList<ByteBuffer> boxes = new ArrayList<ByteBuffer>();
+        int wanted = ByteBuffer.wrap(fourCc(type)).getInt();
+        int position = 0;
+        int end = parent.limit();
+        while (position + 8 <= end) {
+            long size = parent.getInt(position) & 0xffffffffL;
+            int boxType = parent.getInt(position + 4);
+            int headerSize = 8;
+            if (size == 1 && position + 16 <= end) {
+                size = parent.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < headerSize || position + size > end) {
+                break;
+            }
+            if (boxType == wanted) {
+                ByteBuffer box = parent.duplicate();
+                box.limit((int) (position + size));
+                box.position(position + headerSize);
+                boxes.add(box.slice());
+            }
+            position += size;
+        }
+        return boxes;
+    }
+
+    private static byte[] readBytes(ByteBuffer buf, int length) {
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private static void transferFully(FileChannel src, long position, long count,
+            FileChannel dst) throws IOException {
+        while (count > 0) {
+            long n = src.transferTo(position, count, dst);
+            if (n <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 4) {
+            System.err.println("usage: Mp4Trimmer <source.mp4> <start sec> <end sec> <dest.mp4>");
+            System.exit(2);
+        }
+        try {
+            Result result = new Mp4Trimmer(new File(args[0])).trim(
+                    (long) (Double.parseDouble(args[1]) * 1000000),
+                    (long) (Double.parseDouble(args[2]) * 1000000), new File(args[3]));
+            System.out.println(args[3] + ": " + result.sampleCount + " samples from "
+                    + result.startUsec / 1e6 + " s to " + result.endUsec / 1e6 + " s");
+        } catch (IOException ioe) {
+            System.err.println(args[0] + ": " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+}
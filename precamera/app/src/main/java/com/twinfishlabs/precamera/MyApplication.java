@@ -1,6 +1,10 @@
 package com.twinfishlabs.precamera;
 
+import java.io.File;
+import java.io.IOException;
+
 import android.app.Application;
+import android.util.Log;
 
 public class MyApplication extends Application {
 
@@ -17,5 +21,28 @@ public class MyApplication extends Application {
 		Configs.init();
 		PrefUtils.init();
 		CamcorderManager.init();
+
+		new Thread("Mp4Recovery") {
+			@Override
+			public void run() {
+				recoverClips();
+			}
+		}.start();
+	}
+
+	/**
+	 * Finishes the clips the last process died in the middle of saving.
+	 */
+	private void recoverClips() {
+		File journalFolder = Utilities.getJournalFolder();
+		for (File clip : Mp4Recovery.findUnfinished(journalFolder, Utilities.getFolder())) {
+			try {
+				int samples = Mp4Recovery.recover(clip, Mp4Journal.getFile(journalFolder, clip));
+				Log.i(Utilities.TAG, "recovered " + clip + ", " + samples + " samples");
+				Utilities.sendBroadcastScanFile(clip);
+			} catch (IOException ex) {
+				Log.w(Utilities.TAG, "failed recovering " + clip, ex);
+			}
+		}
 	}
 }
@@ -0,0 +1,116 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The last so many frames of recorded PCM, each with its time stamp, in one byte array: what
+ * AudioCapture keeps instead of encoding it, until a save needs it.  16-bit mono at 44.1 kHz
+ * is about 86 KB a second.
+ * <p>
+ * Frames are numbered from 0 in the order put() got them; the ring holds getStart() up to
+ * getEnd(), and put() overwrites the oldest once it's full.  Not thread safe; only the
+ * encoder thread uses it.
+ */
+class PcmRing {
+    private final int mFrameBytes;
+    private byte[] mData;
+    private ByteBuffer mView;
+    private int[] mSizes;
+    private long[] mPtsUsec;
+    private int mFrameCount;
+    private long mStart;
+    private long mEnd;
+
+    /**
+     * @param frameBytes The most a frame can have, a read's worth.
+     */
+    PcmRing(int frameBytes, int frameCount) {
+        mFrameBytes = frameBytes;
+        allocate(frameCount);
+    }
+
+    /**
+     * Changes how many frames the ring holds, keeping the newest.
+     */
+    void resize(int frameCount) {
+        if (frameCount == mFrameCount) {
+            return;
+        }
+        byte[] data = mData;
+        int[] sizes = mSizes;
+        long[] ptsUsec = mPtsUsec;
+        int oldCount = mFrameCount;
+        long end = mEnd;
+        long start = Math.max(mStart, end - frameCount);
+
+        allocate(frameCount);
+        for (long i = start; i < end; i++) {
+            int from = (int) (i % oldCount);
+            int to = (int) (i % frameCount);
+            System.arraycopy(data, from * mFrameBytes, mData, to * mFrameBytes, sizes[from]);
+            mSizes[to] = sizes[from];
+            mPtsUsec[to] = ptsUsec[from];
+        }
+        mStart = start;
+        mEnd = end;
+    }
+
+    private void allocate(int frameCount) {
+        mFrameCount = frameCount;
+        mData = new byte[frameCount * mFrameBytes];
+        mView = ByteBuffer.wrap(mData);
+        mSizes = new int[frameCount];
+        mPtsUsec = new long[frameCount];
+    }
+
+    int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * Adds a frame: "size" bytes of "data" from its start on.
+     */
+    void put(ByteBuffer data, int size, long ptsUsec) {
+        int slot = (int) (mEnd % mFrameCount);
+        data.position(0);
+        data.get(mData, slot * mFrameBytes, size);
+        mSizes[slot] = size;
+        mPtsUsec[slot] = ptsUsec;
+        mEnd++;
+        mStart = Math.max(mStart, mEnd - mFrameCount);
+    }
+
+    long getStart() {
+        return mStart;
+    }
+
+    long getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * The first frame stamped at or after "usec", or getEnd() if there's none.
+     */
+    long find(long usec) {
+        for (long i = mStart; i < mEnd; i++) {
+            if (mPtsUsec[(int) (i % mFrameCount)] >= usec) {
+                return i;
+            }
+        }
+        return mEnd;
+    }
+
+    /**
+     * A frame's PCM, with the returned buffer positioned over it until the next call.
+     */
+    ByteBuffer get(long frame) {
+        int slot = (int) (frame % mFrameCount);
+        mView.limit(slot * mFrameBytes + mSizes[slot]);
+        mView.position(slot * mFrameBytes);
+        return mView;
+    }
+
+    long getPtsUsec(long frame) {
+        return mPtsUsec[(int) (frame % mFrameCount)];
+    }
+}
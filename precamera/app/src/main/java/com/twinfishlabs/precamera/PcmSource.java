@@ -0,0 +1,19 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Where the audio encoder's input comes from: 16-bit PCM, read as AudioRecord hands it out.
+ * {@link AudioRecordSource} is the microphone, the tests' FakePcmSource a tone at the right
+ * pace.
+ */
+interface PcmSource {
+    void startRecording();
+
+    /**
+     * Reads up to sizeInBytes into "buf", blocking until they've been recorded.
+     *
+     * @return How many bytes were read, or one of AudioRecord's negative error codes.
+     */
+    int read(ByteBuffer buf, int sizeInBytes);
+}
@@ -12,11 +12,13 @@ import android.text.TextUtils;
 public class PrefUtils {
 
 	static final private String IS_DEBUG_MODE = "IsDebugMode";
-	static final private String KEY_PRE_RECORD_TIME = "PreRecordTime";
+	static final public String KEY_PRE_RECORD_TIME = "PreRecordTime";
 	static final private String KEY_IS_SHOW_PRE_RECORD = "IsShowPreRecord";
 	static final private String KEY_CAMERA_TYPE = "CameraType";
 	static final private String KEY_TAKED_FILES = "TakedFiles";
 
+	static final public int MAX_PRE_RECORD_TIME = 300;
+
 	static private SharedPreferences sPrefs;
 
 	static private Boolean isDebugMode;
@@ -53,14 +55,18 @@ public class PrefUtils {
 		sPrefs.edit().putBoolean(IS_DEBUG_MODE, value).apply();
 	}
 
-	static private int getPreRecordTime() {
+	static public int getPreRecordTime() {
 		if (preRecordTime == Integer.MAX_VALUE) {
 			preRecordTime = Integer.parseInt(sPrefs.getString(KEY_PRE_RECORD_TIME, "5"));
 			preRecordTime = Math.max(preRecordTime, 0);
-			preRecordTime = Math.min(preRecordTime, 300);
+			preRecordTime = Math.min(preRecordTime, MAX_PRE_RECORD_TIME);
 		}
 		return preRecordTime;
 	}
+	static public void setPreRecordTime(int value) {
+		preRecordTime = Math.min(Math.max(value, 0), MAX_PRE_RECORD_TIME);
+		sPrefs.edit().putString(KEY_PRE_RECORD_TIME, String.valueOf(preRecordTime)).apply();
+	}
 	static public int getPreRecordRealTime() {
 		return getPreRecordTime() + 1;
 	}
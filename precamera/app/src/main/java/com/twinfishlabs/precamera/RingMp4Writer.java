@@ -0,0 +1,560 @@
+package com.twinfishlabs.precamera;
+
+import static com.twinfishlabs.precamera.Mp4Boxes.fourCc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+/**
+ * Writes a plain (not fragmented) MP4 file with H.264 video and AAC audio, taking the samples
+ * straight out of an interleaved {@link CircularEncoderBuffer} instead of one
+ * writeSampleData() call at a time.
+ * <p>
+ * writeFromBuffer() works out which byte ranges of the buffer's pages make up the packets a
+ * cursor hasn't read yet, and hands them to FileChannel.write(ByteBuffer[]) in a few large
+ * gathering writes, without copying them.  Packets that follow each other in a page go out as
+ * one range.  The sample tables are built from the buffer's meta-data as we go.  Only the
+ * video data is looked at: MP4 wants a length in front of every NAL unit where MediaCodec puts
+ * a start code, so the start codes are left out and the lengths go out as ranges of their own.
+ * <p>
+ * start() writes the ftyp and the mdat header; stop() appends the moov once all the sample
+ * tables are known.  With setFaststart(), start() leaves room for the moov in front of the
+ * mdat instead, and stop() writes it there, so players can start before they've read the
+ * whole file.  If the index turns out bigger than the room left for it, it goes at the end
+ * after all, and the room is left as a free box; the samples are never moved.
+ * <p>
+ * With setChunkDuration(), the samples go into the file in chunks of one track, merged by
+ * PTS by an {@link Mp4Interleaver}, rather than in the order the buffer has them; packets
+ * waiting for their chunk to be complete stay in the buffer, the cursor stops at the first.
+ * <p>
+ * With setJournal(), where every sample went is also kept in an {@link Mp4Journal}, so
+ * {@link Mp4Recovery} can rebuild the moov if we never get to stop().
+ * <p>
+ * Writers that take overlapping stretches of the same buffer at the same time can share a
+ * {@link NalCache}, so each video packet is only searched for start codes once.
+ * <p>
+ * Not thread safe; the caller has to serialize the calls, as with MediaMuxer.
+ */
+class RingMp4Writer {
+    private static final String TAG = Utilities.TAG + ":RingMp4Writer";
+
+    // The most ranges a single write() takes; IOV_MAX on Linux.
+    private static final int MAX_RANGES = 1024;
+
+    // Room reserved for the moov: the boxes, plus per sample its size, chunk offset, and at
+    // worst an stts and an stsc entry of its own.
+    private static final int INDEX_BYTES = 4096;
+    private static final int INDEX_BYTES_PER_SAMPLE = 4 + 8 + 8 + 12;
+
+    // Journal records are handed to its thread once there are this many, about a second's
+    // worth while recording.
+    private static final int JOURNAL_FLUSH_RECORDS = 64;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final Mp4Index mIndex = new Mp4Index();
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private boolean mStarted;
+    private long mMdatStart;
+    private long mIndexStart = -1;  // where the reserved room for the moov starts, with faststart
+    private int mIndexRoom;
+    private long mDataEnd;          // where the next sample goes, counting ranges not yet written
+    private IOException mError;
+    private int mWriteCount;
+    private File mJournalFile;
+    private Mp4Journal mJournal;
+    private long mChunkDurationUsec = -1;
+    private Mp4Interleaver mInterleaver;
+    private final Mp4Interleaver.Chunk mChunk = new Mp4Interleaver.Chunk();
+    private int mScanned;           // packets from the cursor on that are in mInterleaver or written
+    private NalCache mNalCache;
+    private int[] mNalUnits = new int[32];
+
+    // The gathering write being put together, and the NAL unit lengths some of it points to.
+    private final ByteBuffer[] mRanges = new ByteBuffer[MAX_RANGES];
+    private int mRangeCount;
+    private ByteBuffer mLastSource;
+    private final ByteBuffer mLengths = ByteBuffer.allocate(MAX_RANGES * 4);
+
+    public RingMp4Writer(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * Sets the rotation to play the video with, in degrees: 0, 90, 180 or 270.  Call before
+     * start().
+     */
+    public void setOrientationHint(int degrees) {
+        mIndex.setOrientation(degrees);
+    }
+
+    /**
+     * Puts the moov in front of the mdat, with room for the index of about "samples" samples
+     * reserved by start().  Call before start().
+     */
+    public void setFaststart(int samples) {
+        if (mStarted) {
+            throw new IllegalStateException("Can't set faststart after start()");
+        }
+        mIndexStart = 0;
+        mIndexRoom = INDEX_BYTES + samples * INDEX_BYTES_PER_SAMPLE;
+    }
+
+    /**
+     * Writes each track's samples in chunks of up to "usec", in PTS order, instead of in
+     * the order they are in the buffer.  Call before start().
+     */
+    public void setChunkDuration(long usec) {
+        if (mStarted) {
+            throw new IllegalStateException("Can't set the chunk duration after start()");
+        }
+        mChunkDurationUsec = usec;
+    }
+
+    /**
+     * Keeps a journal of the samples in "journal" while writing.  Call before start().
+     */
+    public void setJournal(File journal) {
+        if (mStarted) {
+            throw new IllegalStateException("Can't set a journal after start()");
+        }
+        mJournalFile = journal;
+    }
+
+    /**
+     * Shares where the video packets' NAL units are with the other writers using "cache".
+     * Call before start().
+     */
+    public void setNalCache(NalCache cache) {
+        if (mStarted) {
+            throw new IllegalStateException("Can't set a NAL cache after start()");
+        }
+        mNalCache = cache;
+    }
+
+    /**
+     * Adds a track with the format the encoder reported.  Call before start().
+     *
+     * @return The track index to pass to writeFromBuffer().
+     */
+    public int addTrack(MediaFormat format) {
+        Mp4Track track = newTrack();
+        track.setFormat(format);
+        return addedTrack(track);
+    }
+
+    /**
+     * Adds an H.264 track, see {@link Mp4Track#setVideoFormat}.
+     */
+    public int addVideoTrack(int width, int height, ByteBuffer csd0, ByteBuffer csd1) {
+        Mp4Track track = newTrack();
+        track.setVideoFormat(width, height, csd0, csd1);
+        return addedTrack(track);
+    }
+
+    /**
+     * Adds an AAC track, see {@link Mp4Track#setAudioFormat}.
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, int bitRate, ByteBuffer audioConfig) {
+        Mp4Track track = newTrack();
+        track.setAudioFormat(sampleRate, channelCount, bitRate, audioConfig);
+        return addedTrack(track);
+    }
+
+    /**
+     * Adds a track with the format of "format".
+     */
+    int addTrack(Mp4Track format) {
+        Mp4Track track = newTrack();
+        track.copyFormat(format);
+        return addedTrack(track);
+    }
+
+    private Mp4Track newTrack() {
+        if (mStarted) {
+            throw new IllegalStateException("Can't add tracks after start()");
+        }
+        return mIndex.addTrack();
+    }
+
+    private int addedTrack(Mp4Track track) {
+        return track.id - 1;
+    }
+
+    /**
+     * Writes the file header and starts the mdat.
+     */
+    public void start() throws IOException {
+        if (mIndex.getTrackCount() == 0) {
+            throw new IllegalStateException("No tracks");
+        }
+        mStarted = true;
+        if (mChunkDurationUsec >= 0) {
+            mInterleaver = new Mp4Interleaver(mIndex.getTrackCount(), mChunkDurationUsec);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(64);
+        Mp4Boxes.writeFtyp(buf);
+
+        if (mIndexStart >= 0) {
+            // A free box over the room for now; what isn't written stays a hole in the file.
+            mIndexStart = buf.position();
+            buf.putInt(mIndexRoom);
+            buf.put(fourCc("free"));
+        }
+        buf.flip();
+        writeFully(buf, 0);
+
+        // A 64-bit size, filled in by stop().
+        mMdatStart = mIndexStart >= 0 ? mIndexStart + mIndexRoom : buf.limit();
+        buf.clear();
+        buf.putInt(1);
+        buf.put(fourCc("mdat"));
+        buf.putLong(0);
+        buf.flip();
+        writeFully(buf, mMdatStart);
+        mDataEnd = mMdatStart + 16;
+        mChannel.position(mDataEnd);
+
+        if (mJournalFile != null) {
+            mJournal = new Mp4Journal(mJournalFile, mChannel, mIndex, mMdatStart, mIndexStart,
+                    mIndexRoom);
+        }
+    }
+
+    /**
+     * Writes the packets from the cursor up to where it ends, or until about maxBytes
+     * are written, and moves the cursor past them.  The packets stay in the buffer until
+     * they're on their way to the file, so the producer may have to wait for them.
+     * <p>
+     * Write errors don't throw here; the first one is kept and reported by stop(), the cursor
+     * still moves on.
+     *
+     * @param videoTrack The track index for the buffer's TRACK_VIDEO packets.
+     * @param audioTrack The track index for its TRACK_AUDIO packets.
+     * @return How many packets the cursor moved past; 0 if it had caught up with the head,
+     *     or with setChunkDuration(), if none of the chunks since are complete yet.
+     */
+    public int writeFromBuffer(CircularEncoderBuffer buffer, CircularEncoderBuffer.Cursor cursor,
+            int videoTrack, int audioTrack, long maxBytes) {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started");
+        }
+        if (mInterleaver != null) {
+            return interleaveFromBuffer(buffer, cursor, videoTrack, audioTrack, maxBytes, false);
+        }
+        int packets = 0;
+        try {
+            long startPos = mDataEnd;
+            for (int index = cursor.getIndex(); index >= 0 && mDataEnd - startPos < maxBytes;
+                    index = cursor.getNextIndex(index)) {
+                addPacket(buffer, index, buffer.getTrack(index) == CircularEncoderBuffer.TRACK_VIDEO
+                        ? videoTrack : audioTrack);
+                packets++;
+            }
+            writeBatch();
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed writing samples", ioe);
+            mError = ioe;
+        }
+        mRangeCount = 0;
+        mLastSource = null;
+
+        // Only now can the producer have the pages back.
+        for (int i = 0; i < packets; i++) {
+            cursor.advance();
+        }
+        return packets;
+    }
+
+    /**
+     * Writes everything from the cursor up to where it ends, including the chunks
+     * setChunkDuration() would hold back for more samples.  Call before stop(), with what
+     * writeFromBuffer() had.
+     */
+    public void flush(CircularEncoderBuffer buffer, CircularEncoderBuffer.Cursor cursor,
+            int videoTrack, int audioTrack) {
+        if (mInterleaver != null) {
+            interleaveFromBuffer(buffer, cursor, videoTrack, audioTrack, Long.MAX_VALUE, true);
+        } else {
+            writeFromBuffer(buffer, cursor, videoTrack, audioTrack, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * writeFromBuffer() with setChunkDuration(): hands the packets after the ones already seen
+     * to the interleaver, writes the chunks it has ready, and moves the cursor up to the first
+     * packet that isn't written yet.
+     */
+    private int interleaveFromBuffer(CircularEncoderBuffer buffer,
+            CircularEncoderBuffer.Cursor cursor, int videoTrack, int audioTrack, long maxBytes,
+            boolean flush) {
+        MediaCodec.BufferInfo info = mInfo;
+        int index = cursor.getIndex();
+        for (int i = 0; i < mScanned && index >= 0; i++) {
+            index = cursor.getNextIndex(index);
+        }
+        for (long bytes = 0; index >= 0 && bytes < maxBytes; index = cursor.getNextIndex(index)) {
+            buffer.getInfo(index, info);
+            mInterleaver.add(buffer.getTrack(index) == CircularEncoderBuffer.TRACK_VIDEO
+                    ? videoTrack : audioTrack, info.presentationTimeUs, index);
+            bytes += info.size;
+            mScanned++;
+        }
+
+        try {
+            while (mInterleaver.takeChunk(mChunk, flush)) {
+                for (int i = 0; i < mChunk.count; i++) {
+                    addPacket(buffer, mChunk.samples[i], mChunk.track);
+                }
+            }
+            writeBatch();
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed writing samples", ioe);
+            mError = ioe;
+        }
+        mRangeCount = 0;
+        mLastSource = null;
+
+        int packets = 0;
+        for (index = cursor.getIndex(); packets < mScanned && !mInterleaver.isHead(index);
+                index = cursor.getNextIndex(index)) {
+            cursor.advance();
+            packets++;
+        }
+        mScanned -= packets;
+        return packets;
+    }
+
+    /**
+     * Adds the packet at "index" to the write, and to the index and the journal.
+     */
+    private void addPacket(CircularEncoderBuffer buffer, int index, int trackIndex)
+            throws IOException {
+        MediaCodec.BufferInfo info = mInfo;
+        ByteBuffer buf = buffer.getChunk(index, info);
+        Mp4Index.Track track = mIndex.getTrack(trackIndex);
+        long offset = mDataEnd;
+        if (mError == null) {
+            if (track.isVideo) {
+                addAccessUnit(index, buf, info.offset, info.size);
+            } else {
+                addRange(buf, info.offset, info.offset + info.size);
+            }
+        }
+        int size = (int) (mDataEnd - offset);
+        boolean sync = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        mIndex.addSample(track, info.presentationTimeUs, offset, size, sync);
+        if (mJournal != null && mError == null) {
+            mJournal.add(trackIndex, offset, size, info.presentationTimeUs, sync);
+        }
+    }
+
+    /**
+     * Writes the ranges collected, and has the journal catch up now and then.
+     */
+    private void writeBatch() throws IOException {
+        if (mError == null) {
+            writeRanges();
+            if (mJournal != null && mJournal.getPendingCount() >= JOURNAL_FLUSH_RECORDS) {
+                mJournal.flush();
+            }
+        }
+    }
+
+    /**
+     * Adds the NAL units of the Annex B access unit at "index", each with a length in front.
+     */
+    private void addAccessUnit(int index, ByteBuffer buf, int offset, int size)
+            throws IOException {
+        int[] units = mNalCache != null ? mNalCache.get(index) : null;
+        int count;
+        if (units != null) {
+            count = units.length;
+        } else {
+            count = findNalUnits(buf, offset, size);
+            units = mNalUnits;
+            if (mNalCache != null) {
+                mNalCache.put(index, Arrays.copyOf(units, count));
+            }
+        }
+        for (int i = 0; i < count; i += 2) {
+            addLength(units[i + 1] - units[i]);
+            addRange(buf, offset + units[i], offset + units[i + 1]);
+        }
+    }
+
+    /**
+     * Puts where the NAL units of an access unit start and end, relative to "offset", in
+     * mNalUnits, in pairs.
+     *
+     * @return How many ints that took.
+     */
+    private int findNalUnits(ByteBuffer buf, int offset, int size) {
+        int end = offset + size;
+        int nalStart = Mp4Boxes.skipStartCode(buf, offset, end);
+        if (nalStart == offset) {
+            // No start code; take it as a single NAL unit.
+            mNalUnits[0] = 0;
+            mNalUnits[1] = size;
+            return 2;
+        }
+        int count = 0;
+        while (nalStart < end) {
+            int next = Mp4Boxes.findStartCode(buf, nalStart, end);
+            int nalEnd = Mp4Boxes.findNalEnd(buf, nalStart, next);
+            if (nalEnd > nalStart) {
+                if (count == mNalUnits.length) {
+                    mNalUnits = Arrays.copyOf(mNalUnits, count * 2);
+                }
+                mNalUnits[count++] = nalStart - offset;
+                mNalUnits[count++] = nalEnd - offset;
+            }
+            nalStart = Mp4Boxes.skipStartCode(buf, next, end);
+        }
+        return count;
+    }
+
+    private void addLength(int length) throws IOException {
+        if (mRangeCount == MAX_RANGES) {
+            writeRanges();
+        }
+        int position = mLengths.position();
+        mLengths.putInt(length);
+        addRange(mLengths, position, position + 4);
+    }
+
+    /**
+     * Adds bytes [start, end) of "source" to the write, as part of the last range if they
+     * follow right on from it.
+     */
+    private void addRange(ByteBuffer source, int start, int end) throws IOException {
+        mDataEnd += end - start;
+        if (source == mLastSource && mRanges[mRangeCount - 1].limit() == start) {
+            mRanges[mRangeCount - 1].limit(end);
+            return;
+        }
+        if (mRangeCount == MAX_RANGES) {
+            writeRanges();
+        }
+        ByteBuffer range = source.duplicate();
+        range.limit(end);
+        range.position(start);
+        mRanges[mRangeCount++] = range;
+        mLastSource = source;
+    }
+
+    private void writeRanges() throws IOException {
+        if (mRangeCount > 0) {
+            while (mRanges[mRangeCount - 1].hasRemaining()) {
+                mChannel.write(mRanges, 0, mRangeCount);
+                mWriteCount++;
+            }
+        }
+        Arrays.fill(mRanges, 0, mRangeCount, null);
+        mRangeCount = 0;
+        mLastSource = null;
+        mLengths.clear();
+    }
+
+    /**
+     * How many write() calls the samples took so far.
+     */
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * How many chunks the samples make so far, over all tracks.
+     */
+    public int getChunkCount() {
+        int count = 0;
+        for (int i = 0; i < mIndex.getTrackCount(); i++) {
+            count += mIndex.getTrack(i).chunkCount;
+        }
+        return count;
+    }
+
+    /**
+     * Finishes the mdat, writes the moov and closes the file.
+     *
+     * @throws IOException If this or any earlier write failed.
+     */
+    public void stop() throws IOException {
+        try {
+            if (mError == null && mStarted) {
+                closeJournal();
+                if (!mIndex.writeTo(mChannel, mMdatStart, mDataEnd, mIndexStart, mIndexRoom)) {
+                    Log.w(TAG, "index didn't fit in the " + mIndexRoom + " bytes reserved for"
+                            + " it, wrote it at the end");
+                }
+                mChannel.force(false);
+                // A complete file, the journal has done its job.
+                if (mJournalFile != null && !mJournalFile.delete()) {
+                    Log.w(TAG, "failed deleting " + mJournalFile);
+                }
+            }
+        } catch (IOException ioe) {
+            mError = ioe;
+        } finally {
+            release();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Closes the file without writing anything more.
+     */
+    public void release() {
+        closeJournal();
+        try {
+            mFile.close();
+        } catch (IOException ioe) {
+            Log.w(TAG, "failed closing file", ioe);
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            mJournal.close();
+            mJournal = null;
+        }
+    }
+
+    private void writeFully(ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += mChannel.write(buf, position);
+        }
+    }
+
+    /**
+     * Where the NAL units of a buffer's video packets are, for writers reading the same
+     * packets at the same time.  Packets are known by their index in the buffer, so a cache
+     * is only good while cursors keep what it has seen in the buffer.  Thread safe.
+     */
+    static class NalCache {
+        private final ConcurrentHashMap<Integer, int[]> mUnits =
+                new ConcurrentHashMap<Integer, int[]>();
+
+        int[] get(int index) {
+            return mUnits.get(index);
+        }
+
+        void put(int index, int[] units) {
+            // If two writers get there at the same time, they found the same.
+            mUnits.put(index, units);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.twinfishlabs.precamera;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Where encoded samples go one at a time, the way MediaMuxer takes them: addTrack() for each
+ * track, start(), writeSampleData(), stop().  {@link MediaMuxerSink} puts MediaMuxer behind
+ * it, {@link FragmentedMp4Writer} is one, and the tests' FakeSampleSink only counts.
+ * <p>
+ * Not thread safe; the caller has to serialize the calls.
+ */
+interface SampleSink {
+    /**
+     * Sets the rotation to play the video with, in degrees.  Call before start().
+     */
+    void setOrientationHint(int degrees);
+
+    /**
+     * @return The track index to pass to writeSampleData().
+     */
+    int addTrack(MediaFormat format);
+
+    void start() throws IOException;
+
+    void writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info);
+
+    /**
+     * Finishes the file and frees the sink.
+     */
+    void stop() throws IOException;
+
+    /**
+     * Frees the sink without finishing anything.
+     */
+    void release();
+}
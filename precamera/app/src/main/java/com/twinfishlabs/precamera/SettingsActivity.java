@@ -2,6 +2,7 @@ package com.twinfishlabs.precamera;
 
 import android.app.ActionBar;
 import android.os.Bundle;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceActivity;
@@ -41,6 +42,16 @@ public class SettingsActivity extends PreferenceActivity implements OnPreference
 	@Override
 	public boolean onPreferenceChange(Preference preference, Object newValue) {
 		PrefUtils.notifyChanged();
+		if (PrefUtils.KEY_PRE_RECORD_TIME.equals(preference.getKey())) {
+			// PrefUtils saves it, clamped; the encoder made in MainActivity.onResume() picks
+			// it up.  The list only has to show it, without saving it again.
+			PrefUtils.setPreRecordTime(Integer.parseInt(newValue.toString()));
+			ListPreference list = (ListPreference) preference;
+			list.setPersistent(false);
+			list.setValue(String.valueOf(PrefUtils.getPreRecordTime()));
+			list.setPersistent(true);
+			return false;
+		}
 		return true;
 	}
 }
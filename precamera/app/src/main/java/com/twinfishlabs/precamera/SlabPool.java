@@ -0,0 +1,192 @@
+package com.twinfishlabs.precamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+/**
+ * Fixed-size slabs of memory for {@link CircularEncoderBuffer}s.  The size is the pool's,
+ * SLAB_SIZE unless it's made bigger for the biggest packet the encoders may put out, see
+ * computeSlabSize().
+ * <p>
+ * Slabs are only allocated when somebody asks for one, and are kept for reuse once they're
+ * recycled, so the pool grows to whatever the encoders actually produce, up to a limit.
+ * Each buffer using the pool adds what it may need to that limit, and can change its share
+ * at any time.  Heap slabs wrap a byte[].  If there's a spill file, file slabs are slices of
+ * it, mapped in as they're needed.  The file can be preallocated: it's then grown to the
+ * whole limit as soon as that's raised, not slab by slab while the encoders are running.
+ * <p>
+ * Shared by the encoder threads, so everything is synchronized.
+ */
+class SlabPool {
+    private static final String TAG = Utilities.TAG + ":SlabPool";
+
+    // The smallest slab size, and the default.
+    public static final int SLAB_SIZE = 256 * 1024;
+
+    private final int mSlabSize;
+
+    private int mMaxHeapSlabs;
+    private int mMaxFileSlabs;
+    private int mHeapSlabCount;
+    private int mFileSlabCount;
+    private final ArrayList<ByteBuffer> mFreeHeapSlabs = new ArrayList<ByteBuffer>();
+    private final ArrayList<ByteBuffer> mFreeFileSlabs = new ArrayList<ByteBuffer>();
+
+    private File mSpillFile;
+    private RandomAccessFile mSpillRaf;
+    private long mSpillLength;
+    private boolean mPreallocate;
+
+    /**
+     * @param spillFile Backs the file slabs, or null to have only heap slabs.
+     * @param preallocate Size the spill file for all the file slabs up front.
+     */
+    public SlabPool(File spillFile, boolean preallocate) throws IOException {
+        this(spillFile, preallocate, SLAB_SIZE);
+    }
+
+    /**
+     * @param slabSize How big each slab is; a multiple of SLAB_SIZE.
+     */
+    public SlabPool(File spillFile, boolean preallocate, int slabSize) throws IOException {
+        mSlabSize = slabSize;
+        if (spillFile != null) {
+            mSpillFile = spillFile;
+            mSpillRaf = new RandomAccessFile(spillFile, "rw");
+            mSpillRaf.setLength(0);
+            mPreallocate = preallocate;
+        }
+    }
+
+    /**
+     * Raises (or lowers, with negative numbers) how many slabs of each kind can be in use.
+     * Without a spill file, file slabs are counted as heap slabs.
+     * <p>
+     * Lowering the limit doesn't take slabs away from anybody; heap slabs are let go as they
+     * come back.  File slabs are kept for reuse, they only cost disk space.
+     */
+    public synchronized void changeMaxSlabCounts(int heapSlabs, int fileSlabs) {
+        if (mSpillRaf == null) {
+            heapSlabs += fileSlabs;
+            fileSlabs = 0;
+        }
+        mMaxHeapSlabs += heapSlabs;
+        mMaxFileSlabs += fileSlabs;
+        while (mHeapSlabCount > mMaxHeapSlabs && !mFreeHeapSlabs.isEmpty()) {
+            mFreeHeapSlabs.remove(mFreeHeapSlabs.size() - 1);
+            mHeapSlabCount--;
+        }
+        if (mPreallocate) {
+            try {
+                // Without fallocate() (API 21) this may only reserve the size, not the blocks,
+                // but the file doesn't change size under the mapped slabs any more.
+                growSpillFile((long) mMaxFileSlabs * mSlabSize);
+            } catch (IOException ioe) {
+                // obtainFileSlab() tries again, slab by slab.
+                Log.w(TAG, "failed preallocating spill file, " + mMaxFileSlabs + " slabs", ioe);
+            }
+        }
+    }
+
+    /**
+     * The slab size that holds a packet of "maxPacketSize" bytes in one piece: SLAB_SIZE, or
+     * the smallest power of two above it that's big enough.
+     */
+    public static int computeSlabSize(int maxPacketSize) {
+        int size = SLAB_SIZE;
+        while (size < maxPacketSize) {
+            size *= 2;
+        }
+        return size;
+    }
+
+    public int getSlabSize() {
+        return mSlabSize;
+    }
+
+    private void growSpillFile(long length) throws IOException {
+        if (length > mSpillLength) {
+            mSpillRaf.setLength(length);
+            mSpillLength = length;
+        }
+    }
+
+    /**
+     * Returns a heap slab, or null if all of them are in use.
+     */
+    public synchronized ByteBuffer obtainHeapSlab() {
+        if (!mFreeHeapSlabs.isEmpty()) {
+            return mFreeHeapSlabs.remove(mFreeHeapSlabs.size() - 1);
+        }
+        if (mHeapSlabCount >= mMaxHeapSlabs) {
+            return null;
+        }
+        mHeapSlabCount++;
+        return ByteBuffer.wrap(new byte[mSlabSize]);
+    }
+
+    /**
+     * Returns a file slab, or null if all of them are in use (or there's no spill file).
+     */
+    public synchronized ByteBuffer obtainFileSlab() {
+        if (!mFreeFileSlabs.isEmpty()) {
+            return mFreeFileSlabs.remove(mFreeFileSlabs.size() - 1);
+        }
+        if (mFileSlabCount >= mMaxFileSlabs) {
+            return null;
+        }
+        long position = (long) mFileSlabCount * mSlabSize;
+        try {
+            growSpillFile(position + mSlabSize);
+            ByteBuffer slab = mSpillRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, position,
+                    mSlabSize);
+            mFileSlabCount++;
+            return slab;
+        } catch (IOException ioe) {
+            // Out of disk space, probably.  Make do with what we've got.
+            Log.w(TAG, "failed mapping spill file, " + mFileSlabCount + " slabs", ioe);
+            mMaxFileSlabs = mFileSlabCount;
+            return null;
+        }
+    }
+
+    public synchronized void recycle(ByteBuffer slab) {
+        slab.clear();
+        if (isInHeap(slab)) {
+            if (mHeapSlabCount > mMaxHeapSlabs) {
+                mHeapSlabCount--;
+            } else {
+                mFreeHeapSlabs.add(slab);
+            }
+        } else {
+            mFreeFileSlabs.add(slab);
+        }
+    }
+
+    public static boolean isInHeap(ByteBuffer slab) {
+        return slab.hasArray();
+    }
+
+    /**
+     * Closes and deletes the spill file, if there is one.  The pool can't be used after this.
+     */
+    public synchronized void release() {
+        mFreeHeapSlabs.clear();
+        mFreeFileSlabs.clear();
+        if (mSpillRaf != null) {
+            try {
+                mSpillRaf.close();
+            } catch (IOException ioe) {
+                Log.w(TAG, "failed closing spill file", ioe);
+            }
+            mSpillRaf = null;
+            mSpillFile.delete();
+        }
+    }
+}
@@ -3,6 +3,7 @@ package com.twinfishlabs.precamera;
 import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.umeng.analytics.MobclickAgent;
 
@@ -36,6 +37,7 @@ public class Utilities {
 
 	static private SimpleDateFormat sDateFormat = new SimpleDateFormat("yyyyMMdd_HHmmssSSS");
 	static private ViewConfiguration sViewConfig;
+	static private final AtomicInteger sSpillFileCount = new AtomicInteger();
 	private static int sScreenWidth;
 	private static int sScreenHeight;
 
@@ -52,12 +54,28 @@ public class Utilities {
 		return folder;
 	}
 
+	// Where RingMp4Writer keeps the journals of the clips it's saving, see Mp4Journal.
+	static public File getJournalFolder() {
+		File folder = new File(MyApplication.Instance.getFilesDir(), "journal");
+		if (!folder.exists()) folder.mkdirs();
+		return folder;
+	}
+
 	static public File getVideoThumbnailFolder() {
 		File folder = new File(MyApplication.Instance.getFilesDir(), "video_thumbnail");
 		if (!folder.exists()) folder.mkdirs();
 		return folder;
 	}
 
+	/**
+	 * A new name each time: the last encoder's muxer may still be reading its spill file when
+	 * the next encoder makes one.
+	 */
+	static public File getBufferSpillFile() {
+		return new File(MyApplication.Instance.getCacheDir(),
+				"video_buffer-" + sSpillFileCount.incrementAndGet() + ".spill");
+	}
+
 	static public ViewConfiguration getViewConfig() {
 		if (sViewConfig == null) {
 			sViewConfig = ViewConfiguration.get(MyApplication.Instance);
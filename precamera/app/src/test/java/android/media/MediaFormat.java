@@ -0,0 +1,77 @@
+package android.media;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for the framework's MediaFormat in JVM tests and benchmarks, which make up the
+ * formats a real encoder would report: a map of the same keys.
+ */
+public final class MediaFormat {
+    public static final String KEY_MIME = "mime";
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+    public static final String KEY_BIT_RATE = "bitrate";
+    public static final String KEY_COLOR_FORMAT = "color-format";
+    public static final String KEY_FRAME_RATE = "frame-rate";
+    public static final String KEY_I_FRAME_INTERVAL = "i-frame-interval";
+    public static final String KEY_SAMPLE_RATE = "sample-rate";
+    public static final String KEY_CHANNEL_COUNT = "channel-count";
+    public static final String KEY_AAC_PROFILE = "aac-profile";
+    public static final String KEY_MAX_INPUT_SIZE = "max-input-size";
+
+    private final Map<String, Object> mMap = new HashMap<String, Object>();
+
+    public static MediaFormat createVideoFormat(String mime, int width, int height) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_WIDTH, width);
+        format.setInteger(KEY_HEIGHT, height);
+        return format;
+    }
+
+    public static MediaFormat createAudioFormat(String mime, int sampleRate, int channelCount) {
+        MediaFormat format = new MediaFormat();
+        format.setString(KEY_MIME, mime);
+        format.setInteger(KEY_SAMPLE_RATE, sampleRate);
+        format.setInteger(KEY_CHANNEL_COUNT, channelCount);
+        return format;
+    }
+
+    public boolean containsKey(String name) {
+        return mMap.containsKey(name);
+    }
+
+    /**
+     * @throws NullPointerException If there's no such key, as the framework's does.
+     */
+    public int getInteger(String name) {
+        return (Integer) mMap.get(name);
+    }
+
+    public String getString(String name) {
+        return (String) mMap.get(name);
+    }
+
+    public ByteBuffer getByteBuffer(String name) {
+        return (ByteBuffer) mMap.get(name);
+    }
+
+    public void setInteger(String name, int value) {
+        mMap.put(name, value);
+    }
+
+    public void setString(String name, String value) {
+        mMap.put(name, value);
+    }
+
+    public void setByteBuffer(String name, ByteBuffer bytes) {
+        mMap.put(name, bytes);
+    }
+
+    @Override
+    public String toString() {
+        return mMap.toString();
+    }
+}
@@ -0,0 +1,44 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Stands in for the framework's Debug in JVM tests and benchmarks, with what the JVM knows
+ * about the calling thread: its CPU time and, on HotSpot, what it has allocated.
+ */
+public final class Debug {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final ThreadLocal<long[]> sAllocStart = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private Debug() {
+    }
+
+    public static long threadCpuTimeNanos() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+    }
+
+    public static void startAllocCounting() {
+        sAllocStart.get()[0] = allocatedBytes();
+    }
+
+    public static void stopAllocCounting() {
+    }
+
+    public static int getThreadAllocSize() {
+        return (int) (allocatedBytes() - sAllocStart.get()[0]);
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return 0;
+    }
+}
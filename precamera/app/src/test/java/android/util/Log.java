@@ -0,0 +1,71 @@
+package android.util;
+
+/**
+ * Stands in for the framework's Log in JVM tests, ahead of android.jar on the classpath:
+ * warnings and errors go to stderr, info to stdout, the rest nowhere.
+ */
+public final class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private Log() {
+    }
+
+    public static int v(String tag, String msg) {
+        return 0;
+    }
+
+    public static int v(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int i(String tag, String msg) {
+        System.out.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int i(String tag, String msg, Throwable tr) {
+        System.out.println(tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println("W " + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        System.err.println("W " + tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+
+    public static int w(String tag, Throwable tr) {
+        System.err.println("W " + tag + ": " + tr);
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println("E " + tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        System.err.println("E " + tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= WARN;
+    }
+}
@@ -0,0 +1,135 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Debug;
+
+/**
+ * Measures the CPU time recording audio takes, per minute of audio: once with the loop the
+ * audio encoder thread used to run, which polls the encoder with short timeouts between
+ * reads, once with {@link AudioCapture}, and once with a lazy AudioCapture that only keeps
+ * the PCM, as while caching with Configs.LAZY_AUDIO_ENCODING.  All run in real time on a
+ * FakePcmSource and a fake AAC encoder that waits out its timeouts as MediaCodec does, so
+ * what's measured is the loops' own wakeups and copying; the encoding itself, which the lazy
+ * one saves on top, isn't in it.
+ * <p>
+ * BufferBenchmark runs it; it also runs on its own, like SaveBenchmark:
+ * <pre>
+ * java -cp [unit test class path] com.twinfishlabs.precamera.AudioCaptureBenchmark [sec]
+ * </pre>
+ */
+class AudioCaptureBenchmark {
+    private final int mSeconds;
+
+    /**
+     * @param seconds How long to record for, each way.
+     */
+    AudioCaptureBenchmark(int seconds) {
+        mSeconds = seconds;
+    }
+
+    /**
+     * The polling loop, on the calling thread.
+     *
+     * @return CPU time per minute of audio, in nanoseconds.
+     */
+    long runPolling() {
+        FakeClock clock = new FakeClock(1);
+        PcmSource pcmSource = new FakePcmSource(clock, Configs.SAMPLE_RATE, 1);
+        EncoderSource encoder = newEncoder();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long endUsec = clock.nowUsec() + mSeconds * 1000000L;
+        long cpuStartNsec = Debug.threadCpuTimeNanos();
+
+        pcmSource.startRecording();
+        while (clock.nowUsec() < endUsec) {
+            int index = encoder.dequeueInputBuffer(100000);
+            if (index >= 0) {
+                ByteBuffer input = encoder.getInputBuffer(index);
+                input.clear();
+                long ptsUsec = System.nanoTime() / 1000;
+                int size = pcmSource.read(input, Configs.SAMPLES_PER_FRAME);
+                if (size > 0) {
+                    encoder.queueInputBuffer(index, 0, size, ptsUsec, 0);
+                }
+            }
+            while ((index = encoder.dequeueOutputBuffer(info, 1000))
+                    != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (index >= 0) {
+                    encoder.releaseOutputBuffer(index);
+                }
+            }
+        }
+        return perMinute(Debug.threadCpuTimeNanos() - cpuStartNsec);
+    }
+
+    /**
+     * AudioCapture's two stages.
+     *
+     * @return CPU time per minute of audio, in nanoseconds.
+     */
+    long runCapture() throws InterruptedException {
+        return runCapture(false);
+    }
+
+    /**
+     * A lazy AudioCapture, keeping the PCM and not encoding it.
+     *
+     * @return CPU time per minute of audio, in nanoseconds.
+     */
+    long runLazy() throws InterruptedException {
+        return runCapture(true);
+    }
+
+    private long runCapture(boolean lazy) throws InterruptedException {
+        FakeClock clock = new FakeClock(1);
+        AudioCapture capture = new AudioCapture(new FakePcmSource(clock, Configs.SAMPLE_RATE, 1),
+                new AudioClock(Configs.SAMPLE_RATE, 2), newEncoder(), Configs.SAMPLES_PER_FRAME * 2,
+                new AudioCapture.Listener() {
+                    @Override
+                    public void onFormatChanged(MediaFormat format) {
+                    }
+
+                    @Override
+                    public void onEncodedData(ByteBuffer buf, MediaCodec.BufferInfo info) {
+                    }
+                });
+        if (lazy) {
+            capture.setPcmRing(new PcmRing(Configs.SAMPLES_PER_FRAME * 2,
+                    mSeconds * Configs.SAMPLE_RATE / Configs.SAMPLES_PER_FRAME));
+        }
+        capture.start();
+        Thread.sleep(mSeconds * 1000L);
+        capture.stop();
+        return perMinute(capture.getCpuTimeNsec());
+    }
+
+    /**
+     * Runs both for a second, so neither is measured while it's still being compiled.
+     */
+    void warmUp() throws InterruptedException {
+        AudioCaptureBenchmark warmUp = new AudioCaptureBenchmark(1);
+        warmUp.runPolling();
+        warmUp.runCapture();
+        warmUp.runLazy();
+    }
+
+    private static EncoderSource newEncoder() {
+        return FakeEncoderSource.newAudio(Configs.SAMPLE_RATE, 1, Configs.AUDIO_BIT_RATE, 2);
+    }
+
+    private long perMinute(long nsec) {
+        return nsec * 60 / mSeconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        AudioCaptureBenchmark benchmark = new AudioCaptureBenchmark(seconds);
+        benchmark.warmUp();
+        System.out.println(String.format("audio CPU per minute: polling %.1f ms, AudioCapture %.1f ms,"
+                + " lazy %.1f ms", benchmark.runPolling() / 1e6, benchmark.runCapture() / 1e6,
+                benchmark.runLazy() / 1e6));
+    }
+}
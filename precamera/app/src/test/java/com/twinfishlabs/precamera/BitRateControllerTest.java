@@ -0,0 +1,158 @@
+package com.twinfishlabs.precamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.media.MediaCodec;
+
+/**
+ * Runs a BitRateController in a loop with a FakeEncoderSource, as the video encoder thread
+ * does, with setComplexity() playing the scene.
+ */
+public class BitRateControllerTest {
+    private static final int FRAME_RATE = 30;
+    private static final int HOLD_SEC = 10;
+    // The budget the controller aims at 80% of: what makes that VIDEO_BIT_RATE.
+    private static final long CAPACITY_BYTES = (long) (Configs.VIDEO_BIT_RATE / 0.8 / 8 * HOLD_SEC);
+    private static final int TARGET = Configs.VIDEO_BIT_RATE;
+    private static final int MIN_BIT_RATE = Configs.VIDEO_BIT_RATE / 4;
+    private static final long WINDOW_USEC = 2000000;
+
+    private FakeEncoderSource mSource;
+    private BitRateController mController;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mStartUsec = -1;
+    private long mNowUsec;
+    // The PTS of each change, from the start, and the rate it changed to.
+    private final List<long[]> mChanges = new ArrayList<long[]>();
+    // What each window delivered.
+    private final List<Integer> mWindows = new ArrayList<Integer>();
+
+    @Before
+    public void setUp() {
+        mSource = FakeEncoderSource.newVideo(new FakeClock(1000), Configs.VIDEO_WIDTH,
+                Configs.VIDEO_HEIGHT, Configs.VIDEO_BIT_RATE, FRAME_RATE, FRAME_RATE, 1);
+        mController = new BitRateController(Configs.VIDEO_BIT_RATE, MIN_BIT_RATE, 0);
+        mController.setBudget(CAPACITY_BYTES, HOLD_SEC);
+    }
+
+    /**
+     * A scene twice as busy as the bit rate allows has it halved, which brings what's
+     * delivered back to the target, and there it stays; once it calms down, it goes back up.
+     */
+    @Test
+    public void busySceneConverges() {
+        run(6);
+        assertEquals(0, mChanges.size());
+
+        mSource.setComplexity(2);
+        run(20);
+        assertInRange("bit rate", mController.getBitRate(), TARGET / 2);
+        assertInRange("delivered", mController.getDeliveredBitRate(), TARGET);
+        assertTrue("still changing", lastChangeUsec() < mNowUsec - 10000000);
+
+        // Back up, to within the deadband of where it started.
+        mSource.setComplexity(1);
+        run(20);
+        assertInRange("bit rate", mController.getBitRate(), Configs.VIDEO_BIT_RATE);
+        assertInRange("delivered", mController.getDeliveredBitRate(), TARGET);
+    }
+
+    /**
+     * The windows miss the target by a few percent either way, as a real encoder's do, but
+     * by less than the deadband, so the bit rate stays put.
+     */
+    @Test
+    public void smallMissesAreIgnored() {
+        run(60);
+        assertEquals(0, mChanges.size());
+        int low = Integer.MAX_VALUE, high = 0;
+        for (int delivered : mWindows) {
+            low = Math.min(low, delivered);
+            high = Math.max(high, delivered);
+        }
+        assertTrue(mWindows.toString(), mWindows.size() >= 20);
+        assertTrue("low " + low, low < TARGET * 0.96);
+        assertTrue("high " + high, high > TARGET * 1.04);
+        assertTrue(low > TARGET * 0.9 && high < TARGET / 0.9);
+    }
+
+    /**
+     * The window after a change isn't judged: with the scene still too busy after the first
+     * step, the second comes a window later than it could.
+     */
+    @Test
+    public void windowAfterChangeIsSkipped() {
+        mSource.setComplexity(4);
+        run(20);
+        assertTrue(mChanges.size() >= 2);
+        for (int i = 1; i < mChanges.size(); i++) {
+            long gapUsec = mChanges.get(i)[0] - mChanges.get(i - 1)[0];
+            assertTrue("changes " + gapUsec + " us apart", gapUsec >= 2 * WINDOW_USEC - 50000);
+        }
+        // Each step at most halves the rate.
+        assertEquals(Configs.VIDEO_BIT_RATE / 2, mChanges.get(0)[1]);
+    }
+
+    /**
+     * However busy the scene, the bit rate goes no lower than a quarter: halving it twice
+     * leaves five times the scene still above the target, but there it stays.
+     */
+    @Test
+    public void bitRateStopsAtTheFloor() {
+        mSource.setComplexity(5);
+        run(30);
+        assertTrue(mController.getDeliveredBitRate() > TARGET * 1.1);
+        assertEquals(MIN_BIT_RATE, mController.getBitRate());
+        for (long[] change : mChanges) {
+            assertTrue(change[1] >= MIN_BIT_RATE);
+        }
+        assertEquals(MIN_BIT_RATE, mChanges.get(mChanges.size() - 1)[1]);
+    }
+
+    /**
+     * Feeds the controller "sec" more of the encoder's packets, and sets the encoder to what
+     * it asks for.
+     */
+    private void run(int sec) {
+        long endUsec = mNowUsec + sec * 1000000L;
+        while (mNowUsec < endUsec) {
+            int index = mSource.dequeueOutputBuffer(mInfo, 100000);
+            if (index < 0) {
+                continue;
+            }
+            if (mStartUsec < 0) {
+                mStartUsec = mInfo.presentationTimeUs;
+            }
+            mNowUsec = mInfo.presentationTimeUs - mStartUsec;
+            int delivered = mController.getDeliveredBitRate();
+            int bitRate = mController.onPacket(mInfo.size, mInfo.flags, mInfo.presentationTimeUs);
+            mSource.releaseOutputBuffer(index);
+            if (mController.getDeliveredBitRate() != delivered) {
+                mWindows.add(mController.getDeliveredBitRate());
+            }
+            if (bitRate > 0) {
+                assertTrue(mSource.setBitRate(bitRate));
+                mChanges.add(new long[] { mNowUsec, bitRate });
+            }
+        }
+    }
+
+    private long lastChangeUsec() {
+        return mChanges.isEmpty() ? -1 : mChanges.get(mChanges.size() - 1)[0];
+    }
+
+    /**
+     * Within the deadband of "expected".
+     */
+    private static void assertInRange(String what, int actual, int expected) {
+        assertTrue(what + " " + actual + ", expected " + expected,
+                Math.abs(actual - expected) < expected / 10);
+    }
+}
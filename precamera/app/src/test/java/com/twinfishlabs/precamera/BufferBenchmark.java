@@ -0,0 +1,580 @@
+package com.twinfishlabs.precamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import android.media.MediaCodec;
+import android.os.Debug;
+
+/**
+ * Measures {@link CircularEncoderBuffer} with synthetic packet streams, so buffer changes can
+ * be compared before and after.  Runs on the desktop JVM, with the unit tests' class path, and
+ * prints the results:
+ * <pre>
+ * ./gradlew :app:benchmark
+ * </pre>
+ * For each video profile (bit rate and frame rate) it fills a buffer until it's evicting, then
+ * measures add() under eviction, getFirstSyncIndex(), getChunk(), and draining the full buffer
+ * through a cursor, minus the muxer.  The AAC stream is measured once.
+ * <p>
+ * Then it measures the encoders' drain latency, how long add() takes them, with a 60 s
+ * interleaved 720p + AAC backlog in the buffer: first with nothing reading it, then while it's
+ * written out to a FragmentedMp4Writer over and over.  It should be the same both ways.
+ * <p>
+ * Then it measures how long a save takes to catch up with a 30 s interleaved 720p + AAC
+ * pre-roll, written to a FragmentedMp4Writer in the muxer thread's batches while the
+ * encoders keep adding packets in real time.
+ * <p>
+ * Then it writes out the same pre-roll, with nothing being added, once packet by packet and
+ * once through RingMp4Writer's gathering writes.
+ * <p>
+ * Then it cuts a batch of overlapping clips out of that pre-roll with a ClipExporter, on one
+ * thread and then on more, up to one per core.
+ * <p>
+ * Then a {@link SaveBenchmark} per profile up to 1080p, with synthetic H.264 and AAC.
+ * <p>
+ * Last, the CPU time recording audio takes, with an {@link AudioCaptureBenchmark}.
+ */
+public class BufferBenchmark {
+    private static final int SPAN_SEC = 10;
+    private static final int MEASURE_SEC = 60;
+    private static final int CATCH_UP_SEC = 30;
+    // The backlog runDrainLatency() writes, and how long it measures add() for, each way.
+    private static final int BACKLOG_SEC = 60;
+    private static final int DRAIN_SEC = 5;
+    private static final int BATCH_PACKETS = 64;
+    // The clips exportClips() writes: this long, starting this far apart.
+    private static final int CLIP_SEC = 6;
+    private static final int CLIP_STEP_SEC = 3;
+    // How long runAudio() records for, each way.
+    private static final int AUDIO_SEC = 10;
+
+    private static final String[] PROFILE_NAMES = { "720p", "1080p", "4K" };
+    private static final int[] PROFILE_BIT_RATES = { 6000000, 12000000, 40000000 };
+    private static final int[] FRAME_RATES = { 25, 30, 60 };
+
+    // A sync frame is this many times the size of the frames in between.
+    private static final int SYNC_FRAME_WEIGHT = 5;
+
+    private final Random mRandom = new Random(0);
+    private final ByteBuffer mPacket = ByteBuffer.allocateDirect(4 * 1024 * 1024);
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private int mChecksum;      // so drain() really has to read the data
+
+    public static void main(String[] args) throws Exception {
+        new BufferBenchmark().runAll();
+    }
+
+    public void runAll() throws Exception {
+        System.out.println("profile   fps  add/s     MB/s   add p50/p99/max us  alloc B/add  firstSync us  getChunk ns  drain ms");
+        for (int i = 0; i < PROFILE_NAMES.length; i++) {
+            for (int frameRate : FRAME_RATES) {
+                run(PROFILE_NAMES[i], PROFILE_BIT_RATES[i], frameRate, true);
+            }
+        }
+        run("AAC", Configs.AUDIO_BIT_RATE, Configs.SAMPLE_RATE / Configs.SAMPLES_PER_FRAME, false);
+        runDrainLatency();
+        runCatchUp();
+        runExport();
+        runSave();
+        runAudio();
+        System.out.println("done, checksum " + mChecksum);
+    }
+
+    private void run(String name, int bitRate, int frameRate, boolean isVideo) throws Exception {
+        SlabPool pool = new SlabPool(null, false,
+                SlabPool.computeSlabSize(CircularEncoderBuffer.getMaxPacketSize(bitRate, frameRate)));
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool, bitRate, frameRate, SPAN_SEC,
+                SPAN_SEC, isVideo, SPAN_SEC);
+        try {
+            long frameUsec = 1000000L / frameRate;
+            int frame = 0;
+
+            // Fill up until the span is reached, so every add() below is evicting.
+            for (; frame < frameRate * (SPAN_SEC + 2); frame++) {
+                addPacket(buffer, bitRate, frameRate, isVideo, frame, frame * frameUsec);
+            }
+
+            int count = frameRate * MEASURE_SEC;
+            long[] latencyNsec = new long[count];
+            long bytes = 0;
+            Debug.startAllocCounting();
+            long allocStart = Debug.getThreadAllocSize();
+            long startNsec = System.nanoTime();
+            for (int i = 0; i < count; i++, frame++) {
+                long t0 = System.nanoTime();
+                bytes += addPacket(buffer, bitRate, frameRate, isVideo, frame, frame * frameUsec);
+                latencyNsec[i] = System.nanoTime() - t0;
+            }
+            long elapsedNsec = System.nanoTime() - startNsec;
+            long allocBytes = Debug.getThreadAllocSize() - allocStart;
+            Debug.stopAllocCounting();
+            Arrays.sort(latencyNsec);
+
+            final int lookups = 10000;
+            startNsec = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                buffer.getFirstSyncIndex();
+            }
+            long firstSyncNsec = (System.nanoTime() - startNsec) / lookups;
+
+            int chunks = 0;
+            startNsec = System.nanoTime();
+            for (int index = buffer.getCurrentIndex(); index >= 0; index = buffer.getNextIndex(index)) {
+                buffer.getChunk(index, mInfo);
+                chunks++;
+            }
+            long getChunkNsec = (System.nanoTime() - startNsec) / Math.max(chunks, 1);
+
+            long drainNsec = drain(buffer);
+
+            System.out.printf("%-8s %4d %7.0f %8.2f   %6.1f/%6.1f/%7.1f %12.1f %13.2f %12d %9.2f%n",
+                    name, frameRate, count * 1e9 / elapsedNsec, bytes * 1e3 / elapsedNsec / 1.048576,
+                    latencyNsec[count / 2] / 1e3, latencyNsec[count * 99 / 100] / 1e3,
+                    latencyNsec[count - 1] / 1e3, (double) allocBytes / count,
+                    firstSyncNsec / 1e3, getChunkNsec, drainNsec / 1e6);
+        } finally {
+            buffer.release();
+            pool.release();
+        }
+    }
+
+    /**
+     * Fills an interleaved buffer with BACKLOG_SEC of 720p video and AAC, then has a producer
+     * thread add to it in real time for DRAIN_SEC, timing each add(), twice: once on its own,
+     * and once while this thread writes the backlog to a file, again and again.
+     */
+    private void runDrainLatency() throws Exception {
+        final int bitRate = PROFILE_BIT_RATES[0];
+        final int frameRate = 30;
+        final int audioFrameRate = Configs.SAMPLE_RATE / Configs.SAMPLES_PER_FRAME + 1;
+        SlabPool pool = new SlabPool(null, false);
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool,
+                bitRate + Configs.AUDIO_BIT_RATE, frameRate + audioFrameRate, BACKLOG_SEC,
+                BACKLOG_SEC, true, BACKLOG_SEC);
+        File file = File.createTempFile("backlog", ".mp4");
+        try {
+            long frameUsec = 1000000L / frameRate;
+            long audioFrameUsec = 1000000L * Configs.SAMPLES_PER_FRAME / Configs.SAMPLE_RATE;
+            int[] frames = new int[2];
+            while (frames[0] < frameRate * (BACKLOG_SEC + 1)) {
+                addInterleaved(buffer, bitRate, frameRate, frames, frameUsec, audioFrameUsec);
+            }
+
+            System.out.println("drain latency   adds   p50/p99/max us  backlog writes");
+            for (int pass = 0; pass < 2; pass++) {
+                boolean write = pass == 1;
+                DrainProducer producer = new DrainProducer(buffer, bitRate, frameRate, frames,
+                        frameUsec, audioFrameUsec);
+                producer.start();
+                int writes = 0;
+                if (write) {
+                    while (producer.isAlive()) {
+                        writeBacklog(buffer, file);
+                        writes++;
+                    }
+                }
+                producer.join();
+                long[] latencyNsec = producer.getLatencies();
+                int count = latencyNsec.length;
+                System.out.printf("%-13s %6d  %5.1f/%5.1f/%6.1f  %14d%n",
+                        write ? "writing" : "idle", count, latencyNsec[count / 2] / 1e3,
+                        latencyNsec[count * 99 / 100] / 1e3, latencyNsec[count - 1] / 1e3,
+                        writes);
+            }
+        } finally {
+            file.delete();
+            buffer.release();
+            pool.release();
+        }
+    }
+
+    /**
+     * Adds interleaved 720p video and AAC in real time for DRAIN_SEC, as the encoder threads
+     * would, and keeps how long each add() took.
+     */
+    private class DrainProducer extends Thread {
+        private final CircularEncoderBuffer mBuffer;
+        private final int mBitRate;
+        private final int mFrameRate;
+        private final int[] mFrames;
+        private final long mFrameUsec;
+        private final long mAudioFrameUsec;
+        private long[] mLatencyNsec = new long[1024];
+        private int mCount;
+
+        DrainProducer(CircularEncoderBuffer buffer, int bitRate, int frameRate, int[] frames,
+                long frameUsec, long audioFrameUsec) {
+            super("DrainProducer");
+            mBuffer = buffer;
+            mBitRate = bitRate;
+            mFrameRate = frameRate;
+            mFrames = frames;
+            mFrameUsec = frameUsec;
+            mAudioFrameUsec = audioFrameUsec;
+        }
+
+        @Override
+        public void run() {
+            long startNsec = System.nanoTime();
+            long startUsec = mFrames[0] * mFrameUsec;
+            long elapsedNsec;
+            while ((elapsedNsec = System.nanoTime() - startNsec) < DRAIN_SEC * 1000000000L) {
+                long dueUsec = startUsec + elapsedNsec / 1000;
+                while (mFrames[0] * mFrameUsec < dueUsec) {
+                    long t0 = System.nanoTime();
+                    addInterleaved(mBuffer, mBitRate, mFrameRate, mFrames, mFrameUsec,
+                            mAudioFrameUsec);
+                    if (mCount == mLatencyNsec.length) {
+                        mLatencyNsec = Arrays.copyOf(mLatencyNsec, mCount * 2);
+                    }
+                    mLatencyNsec[mCount++] = System.nanoTime() - t0;
+                }
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * How long each add() took, sorted.  Call after join().
+         */
+        long[] getLatencies() {
+            long[] latencyNsec = Arrays.copyOf(mLatencyNsec, mCount);
+            Arrays.sort(latencyNsec);
+            return latencyNsec;
+        }
+    }
+
+    /**
+     * Writes everything in the buffer to "file", up to the packet that was newest when it
+     * started.
+     */
+    private void writeBacklog(CircularEncoderBuffer buffer, File file) throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        writer.addVideoTrack(Configs.VIDEO_WIDTH, Configs.VIDEO_HEIGHT, newSps(), newPps());
+        writer.addAudioTrack(Configs.SAMPLE_RATE, 1, Configs.AUDIO_BIT_RATE, newAudioConfig());
+        writer.start();
+        CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+        cursor.stopAtHead();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int index = cursor.getIndex(); index >= 0; index = cursor.getIndex()) {
+            ByteBuffer buf = buffer.getChunk(index, info);
+            writer.writeSampleData(buffer.getTrack(index), buf, info);
+            cursor.advance();
+        }
+        cursor.close();
+        writer.stop();
+    }
+
+    /**
+     * Fills an interleaved buffer with CATCH_UP_SEC of 720p video and AAC, then writes it out
+     * while a producer thread keeps adding packets in real time, until the writer has caught
+     * up with the producer.
+     */
+    private void runCatchUp() throws Exception {
+        final int bitRate = PROFILE_BIT_RATES[0];
+        final int frameRate = 30;
+        final int audioFrameRate = Configs.SAMPLE_RATE / Configs.SAMPLES_PER_FRAME + 1;
+        SlabPool pool = new SlabPool(null, false);
+        final CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool,
+                bitRate + Configs.AUDIO_BIT_RATE, frameRate + audioFrameRate, CATCH_UP_SEC,
+                CATCH_UP_SEC, true, CATCH_UP_SEC);
+        File file = File.createTempFile("catchup", ".mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+        Thread producer = null;
+        try {
+            // Video and audio of the same stretch of time, in time stamp order.
+            final long frameUsec = 1000000L / frameRate;
+            final long audioFrameUsec = 1000000L * Configs.SAMPLES_PER_FRAME / Configs.SAMPLE_RATE;
+            final int[] frames = new int[2];
+            int prerollFrames = frameRate * (CATCH_UP_SEC + 1);
+            while (frames[0] < prerollFrames) {
+                addInterleaved(buffer, bitRate, frameRate, frames, frameUsec, audioFrameUsec);
+            }
+
+            writer.addVideoTrack(Configs.VIDEO_WIDTH, Configs.VIDEO_HEIGHT, newSps(), newPps());
+            writer.addAudioTrack(Configs.SAMPLE_RATE, 1, Configs.AUDIO_BIT_RATE, newAudioConfig());
+            writer.start();
+
+            final long startNsec = System.nanoTime();
+            producer = new Thread("CatchUpProducer") {
+                @Override
+                public void run() {
+                    long startUsec = frames[0] * frameUsec;
+                    while (!isInterrupted()) {
+                        long dueUsec = startUsec + (System.nanoTime() - startNsec) / 1000;
+                        while (frames[0] * frameUsec < dueUsec) {
+                            addInterleaved(buffer, bitRate, frameRate, frames, frameUsec,
+                                    audioFrameUsec);
+                        }
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException ie) {
+                            break;
+                        }
+                    }
+                }
+            };
+
+            CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            producer.start();
+            int packets = 0, batches = 0;
+            while (true) {
+                int count = 0;
+                for (int index = cursor.getIndex(); count < BATCH_PACKETS && index >= 0;
+                        index = cursor.getIndex()) {
+                    ByteBuffer buf = buffer.getChunk(index, info);
+                    writer.writeSampleData(buffer.getTrack(index), buf, info);
+                    cursor.advance();
+                    count++;
+                }
+                if (count == 0) {
+                    break;
+                }
+                packets += count;
+                batches++;
+            }
+            long elapsedNsec = System.nanoTime() - startNsec;
+            cursor.close();
+
+            System.out.printf("catch-up %d s pre-roll: %.0f ms, %.1fx real time, %d packets"
+                    + " in %d batches, %.1f MB%n", CATCH_UP_SEC, elapsedNsec / 1e6,
+                    CATCH_UP_SEC * 1e9 / elapsedNsec, packets, batches, file.length() / 1048576.0);
+        } finally {
+            if (producer != null) {
+                producer.interrupt();
+                producer.join();
+            }
+            writer.release();
+            file.delete();
+            buffer.release();
+            pool.release();
+        }
+    }
+
+    /**
+     * Fills an interleaved buffer with CATCH_UP_SEC of 720p video and AAC and writes all of it
+     * to a file, first one packet at a time to a FragmentedMp4Writer, then with RingMp4Writer,
+     * in the buffer's order and in chunks.
+     */
+    private void runExport() throws Exception {
+        final int bitRate = PROFILE_BIT_RATES[0];
+        final int frameRate = 30;
+        final int audioFrameRate = Configs.SAMPLE_RATE / Configs.SAMPLES_PER_FRAME + 1;
+        SlabPool pool = new SlabPool(null, false);
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool,
+                bitRate + Configs.AUDIO_BIT_RATE, frameRate + audioFrameRate, CATCH_UP_SEC,
+                CATCH_UP_SEC, true, CATCH_UP_SEC);
+        File file = File.createTempFile("export", ".mp4");
+        try {
+            long frameUsec = 1000000L / frameRate;
+            long audioFrameUsec = 1000000L * Configs.SAMPLES_PER_FRAME / Configs.SAMPLE_RATE;
+            int[] frames = new int[2];
+            while (frames[0] < frameRate * (CATCH_UP_SEC + 1)) {
+                addInterleaved(buffer, bitRate, frameRate, frames, frameUsec, audioFrameUsec);
+            }
+
+            FragmentedMp4Writer writer = new FragmentedMp4Writer(file);
+            writer.addVideoTrack(Configs.VIDEO_WIDTH, Configs.VIDEO_HEIGHT, newSps(), newPps());
+            writer.addAudioTrack(Configs.SAMPLE_RATE, 1, Configs.AUDIO_BIT_RATE, newAudioConfig());
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            long startNsec = System.nanoTime();
+            writer.start();
+            CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+            int packets = 0;
+            for (int index = cursor.getIndex(); index >= 0; index = cursor.getIndex()) {
+                ByteBuffer buf = buffer.getChunk(index, info);
+                writer.writeSampleData(buffer.getTrack(index), buf, info);
+                cursor.advance();
+                packets++;
+            }
+            cursor.close();
+            writer.stop();
+            long elapsedNsec = System.nanoTime() - startNsec;
+            System.out.printf("export %d s, per packet: %.0f ms, %d packets, %.1f MB%n",
+                    CATCH_UP_SEC, elapsedNsec / 1e6, packets, file.length() / 1048576.0);
+
+            exportRing(buffer, file, "gathered", -1);
+            exportRing(buffer, file, "chunked", Configs.MUXER_CHUNK_MS * 1000L);
+            int cores = Runtime.getRuntime().availableProcessors();
+            for (int threads = 1; threads < cores; threads *= 2) {
+                exportClips(buffer, threads);
+            }
+            exportClips(buffer, cores);
+        } finally {
+            file.delete();
+            buffer.release();
+            pool.release();
+        }
+    }
+
+    /**
+     * Runs a SaveBenchmark with a CATCH_UP_SEC pre-roll for the 720p and 1080p profiles.
+     */
+    private void runSave() throws Exception {
+        File file = File.createTempFile("save", ".mp4");
+        try {
+            for (int i = 0; i < 2; i++) {
+                SaveBenchmark benchmark = new SaveBenchmark(PROFILE_BIT_RATES[i], 30, 30,
+                        CATCH_UP_SEC);
+                System.out.println("save " + PROFILE_NAMES[i] + " 30 fps: " + benchmark.run(file));
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void runAudio() throws Exception {
+        AudioCaptureBenchmark benchmark = new AudioCaptureBenchmark(AUDIO_SEC);
+        benchmark.warmUp();
+        System.out.printf("audio CPU per minute: polling %.1f ms, AudioCapture %.1f ms,"
+                + " lazy %.1f ms%n", benchmark.runPolling() / 1e6, benchmark.runCapture() / 1e6,
+                benchmark.runLazy() / 1e6);
+    }
+
+    /**
+     * Writes what's in the buffer with a RingMp4Writer.
+     *
+     * @param chunkUsec For setChunkDuration(), or -1 to keep the buffer's order.
+     */
+    private void exportRing(CircularEncoderBuffer buffer, File file, String name, long chunkUsec)
+            throws IOException {
+        RingMp4Writer ringWriter = new RingMp4Writer(file);
+        int videoTrack = ringWriter.addVideoTrack(Configs.VIDEO_WIDTH, Configs.VIDEO_HEIGHT,
+                newSps(), newPps());
+        int audioTrack = ringWriter.addAudioTrack(Configs.SAMPLE_RATE, 1,
+                Configs.AUDIO_BIT_RATE, newAudioConfig());
+        if (chunkUsec >= 0) {
+            ringWriter.setChunkDuration(chunkUsec);
+        }
+        long startNsec = System.nanoTime();
+        ringWriter.start();
+        CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+        while (ringWriter.writeFromBuffer(buffer, cursor, videoTrack, audioTrack,
+                Long.MAX_VALUE) > 0) { }
+        ringWriter.flush(buffer, cursor, videoTrack, audioTrack);
+        cursor.close();
+        ringWriter.stop();
+        long elapsedNsec = System.nanoTime() - startNsec;
+        System.out.printf("export %d s, %s: %.0f ms, %d chunks in %d writes, %.1f MB%n",
+                CATCH_UP_SEC, name, elapsedNsec / 1e6, ringWriter.getChunkCount(),
+                ringWriter.getWriteCount(), file.length() / 1048576.0);
+    }
+
+    /**
+     * Writes overlapping clips of CLIP_SEC, one starting every CLIP_STEP_SEC, out of what's in
+     * the buffer with a ClipExporter on "threads" threads.
+     */
+    private void exportClips(CircularEncoderBuffer buffer, int threads) throws Exception {
+        Mp4Track videoFormat = new Mp4Track();
+        videoFormat.setVideoFormat(Configs.VIDEO_WIDTH, Configs.VIDEO_HEIGHT, newSps(), newPps());
+        Mp4Track audioFormat = new Mp4Track();
+        audioFormat.setAudioFormat(Configs.SAMPLE_RATE, 1, Configs.AUDIO_BIT_RATE,
+                newAudioConfig());
+        ClipExporter exporter = new ClipExporter(buffer, videoFormat, audioFormat);
+        exporter.setChunkDuration(Configs.MUXER_CHUNK_MS * 1000L);
+        exporter.setThreadCount(threads);
+
+        List<ClipExporter.Clip> clips = new ArrayList<ClipExporter.Clip>();
+        for (int sec = 0; sec + CLIP_SEC <= CATCH_UP_SEC; sec += CLIP_STEP_SEC) {
+            clips.add(new ClipExporter.Clip(sec * 1000000L, (sec + CLIP_SEC) * 1000000L,
+                    File.createTempFile("clip", ".mp4")));
+        }
+        long bytes = 0;
+        long startNsec = System.nanoTime();
+        try {
+            for (Future<File> future : exporter.export(clips)) {
+                bytes += future.get().length();
+            }
+            long elapsedNsec = System.nanoTime() - startNsec;
+            System.out.printf("export %d clips of %d s, %d threads: %.0f ms, %.1f MB/s%n",
+                    clips.size(), CLIP_SEC, threads, elapsedNsec / 1e6,
+                    bytes * 1e3 / elapsedNsec / 1.048576);
+        } finally {
+            exporter.release();
+            for (ClipExporter.Clip clip : clips) {
+                clip.file.delete();
+            }
+        }
+    }
+
+    private static ByteBuffer newSps() {
+        return ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f });
+    }
+
+    private static ByteBuffer newPps() {
+        return ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80 });
+    }
+
+    private static ByteBuffer newAudioConfig() {
+        return ByteBuffer.wrap(new byte[] { 0x12, 0x08 });
+    }
+
+    /**
+     * Adds the next video frame or audio packet, whichever comes first.  frames[0] counts the
+     * video frames, frames[1] the audio ones.
+     */
+    private void addInterleaved(CircularEncoderBuffer buffer, int bitRate, int frameRate,
+            int[] frames, long frameUsec, long audioFrameUsec) {
+        if (frames[1] * audioFrameUsec < frames[0] * frameUsec) {
+            mPacket.clear();
+            mPacket.limit(Configs.AUDIO_BIT_RATE / 8 * Configs.SAMPLES_PER_FRAME / Configs.SAMPLE_RATE);
+            buffer.add(mPacket, 0, frames[1] * audioFrameUsec, CircularEncoderBuffer.TRACK_AUDIO);
+            frames[1]++;
+        } else {
+            addPacket(buffer, bitRate, frameRate, true, frames[0], frames[0] * frameUsec);
+            frames[0]++;
+        }
+    }
+
+    /**
+     * Adds one packet, sized so the stream averages bitRate with some jitter.
+     *
+     * @return The packet size.
+     */
+    private int addPacket(CircularEncoderBuffer buffer, int bitRate, int frameRate,
+            boolean isVideo, int frame, long ptsUsec) {
+        int averageSize = bitRate / 8 / frameRate;
+        boolean sync = isVideo && frame % frameRate == 0;
+        int size = averageSize;
+        if (isVideo) {
+            // Per second: one sync frame plus (frameRate - 1) others.
+            int otherSize = averageSize * frameRate / (frameRate - 1 + SYNC_FRAME_WEIGHT);
+            size = sync ? otherSize * SYNC_FRAME_WEIGHT : otherSize;
+        }
+        size = Math.max(16, size * 3 / 4 + mRandom.nextInt(size / 2 + 1));
+        mPacket.clear();
+        mPacket.putInt(0, frame);
+        mPacket.limit(size);
+        buffer.add(mPacket, sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0, ptsUsec);
+        return size;
+    }
+
+    /**
+     * Reads the buffer through a cursor from the first sync frame on, like the save path does,
+     * touching every packet instead of handing it to a muxer.
+     *
+     * @return How long it took, in nanoseconds.
+     */
+    private long drain(CircularEncoderBuffer buffer) {
+        long startNsec = System.nanoTime();
+        CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+        for (int index = cursor.getIndex(); index >= 0; index = cursor.getIndex()) {
+            ByteBuffer buf = buffer.getChunk(index, mInfo);
+            mChecksum += buf.get(mInfo.offset) + buf.get(mInfo.offset + mInfo.size - 1);
+            cursor.advance();
+        }
+        cursor.close();
+        return System.nanoTime() - startNsec;
+    }
+}
@@ -0,0 +1,175 @@
+package com.twinfishlabs.precamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import android.media.MediaCodec;
+
+public class CircularEncoderBufferTest {
+    private static final int FRAME_RATE = 30;
+    private static final long FRAME_USEC = 1000000 / FRAME_RATE;
+    private static final int MAX_PACKET = 1024 * 1024;
+    // How many packets the random stress test adds.  20000 wraps the ring of a 4 s buffer
+    // some 80 times in a couple of seconds; -Dprecamera.stressPackets=2000000 is the full
+    // run, about five minutes.
+    private static final int STRESS_PACKETS = Integer.getInteger("precamera.stressPackets", 20000);
+
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+
+    /**
+     * Random packet sizes up to a megabyte, on slabs sized for that: every packet must come
+     * back in one piece, straight out of its page, and the buffer must never hold more than
+     * it said it could.
+     */
+    @Test
+    public void randomSizesAreReadWithoutCopying() throws Exception {
+        SlabPool pool = new SlabPool(null, false, SlabPool.computeSlabSize(MAX_PACKET));
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool, 40000000, FRAME_RATE, 4, 4,
+                true, 4);
+        CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+        BufferMetrics metrics = new BufferMetrics();
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+        Random random = new Random(1);
+        long seed = 0;
+        for (int frame = 0; frame < STRESS_PACKETS; frame++) {
+            // Log-uniform from 16 bytes to MAX_PACKET, so there are lots of both small packets
+            // and ones that won't fit in what's left of a page.
+            int size = (int) Math.exp(Math.log(16) + random.nextDouble()
+                    * (Math.log(MAX_PACKET) - Math.log(16)));
+            fill(packet, size, frame);
+            int flags = frame % FRAME_RATE == 0 ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+            buffer.add(packet, flags, frame * FRAME_USEC);
+
+            buffer.getMetrics(metrics);
+            assertTrue("used " + metrics.bytesUsed + " of " + metrics.bytesCapacity,
+                    metrics.bytesUsed <= metrics.bytesCapacity);
+
+            int index;
+            while ((index = cursor.getIndex()) >= 0) {
+                ByteBuffer buf = buffer.getChunk(index, mInfo);
+                assertFalse("packet " + seed + " was copied", buf.isDirect());
+                assertTrue(mInfo.offset + mInfo.size <= buf.capacity());
+                check(buf, mInfo, seed);
+                cursor.advance();
+                seed++;
+            }
+        }
+        assertEquals(STRESS_PACKETS, seed);
+        cursor.close();
+        buffer.release();
+    }
+
+    /**
+     * What the slabs aren't sized for still gets split, and put back together on the way out.
+     */
+    @Test
+    public void oversizedPacketIsJoined() throws Exception {
+        SlabPool pool = new SlabPool(null, false);
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool, 40000000, FRAME_RATE, 4, 4,
+                true, 4);
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+        fill(packet, 1000, 0);
+        buffer.add(packet, MediaCodec.BUFFER_FLAG_SYNC_FRAME, 0);
+        fill(packet, SlabPool.SLAB_SIZE * 2 + 1, 1);
+        buffer.add(packet, 0, FRAME_USEC);
+
+        CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+        check(buffer.getChunk(cursor.getIndex(), mInfo), mInfo, 0);
+        cursor.advance();
+        check(buffer.getChunk(cursor.getIndex(), mInfo), mInfo, 1);
+        cursor.close();
+        buffer.release();
+    }
+
+    /**
+     * With the pool out of slabs for good, as when the spill file fails, packets are dropped
+     * rather than waited on forever.
+     */
+    @Test(timeout = 10000)
+    public void packetsAreDroppedWhenThePoolRunsDry() throws Exception {
+        SlabPool pool = new SlabPool(null, false);
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool, 4000000, FRAME_RATE, 4, 4,
+                true, 4);
+        pool.changeMaxSlabCounts(-1000, 0);
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+        for (int frame = 0; frame < 10; frame++) {
+            fill(packet, 10000, frame);
+            buffer.add(packet, MediaCodec.BUFFER_FLAG_SYNC_FRAME, frame * FRAME_USEC);
+        }
+        BufferMetrics metrics = new BufferMetrics();
+        buffer.getMetrics(metrics);
+        assertEquals(10, metrics.evictedPackets);
+        assertTrue(buffer.isEmpty());
+    }
+
+    /**
+     * A producer waiting on a cursor gives up on the packet when interrupted, and keeps the
+     * interrupt.
+     */
+    @Test(timeout = 10000)
+    public void interruptEndsTheWait() throws Exception {
+        SlabPool pool = new SlabPool(null, false);
+        final CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool, 4000000, FRAME_RATE,
+                4, 4, true, 4);
+        CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+                for (int frame = 0; !isInterrupted(); frame++) {
+                    fill(packet, 100000, frame);
+                    buffer.add(packet, MediaCodec.BUFFER_FLAG_SYNC_FRAME, frame * FRAME_USEC);
+                }
+            }
+        };
+        producer.start();
+
+        // The cursor pins everything, so the producer ends up waiting for it.
+        BufferMetrics metrics = new BufferMetrics();
+        do {
+            Thread.sleep(20);
+            buffer.getMetrics(metrics);
+        } while (metrics.waitUsec == 0);
+        producer.interrupt();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+        buffer.getMetrics(metrics);
+        assertTrue(metrics.bytesUsed <= metrics.bytesCapacity);
+        cursor.close();
+        buffer.release();
+    }
+
+    @Test
+    public void slabsHoldTheBiggestPacket() {
+        int maxPacket = CircularEncoderBuffer.getMaxPacketSize(40000000, 30);
+        int slabSize = SlabPool.computeSlabSize(maxPacket);
+        assertTrue(slabSize >= maxPacket);
+        assertEquals(0, slabSize % SlabPool.SLAB_SIZE);
+        assertEquals(SlabPool.SLAB_SIZE, SlabPool.computeSlabSize(1000));
+    }
+
+    /**
+     * Puts "size" bytes into "buf", numbered by "seed", and flips it over them.
+     */
+    private static void fill(ByteBuffer buf, int size, long seed) {
+        buf.clear();
+        for (int i = 0; i < size; i++) {
+            buf.put((byte) (seed * 31 + i));
+        }
+        buf.flip();
+    }
+
+    private static void check(ByteBuffer buf, MediaCodec.BufferInfo info, long seed) {
+        for (int i = 0; i < info.size; i++) {
+            if (buf.get(info.offset + i) != (byte) (seed * 31 + i)) {
+                throw new AssertionError("packet " + seed + " differs at byte " + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.twinfishlabs.precamera;
+
+/**
+ * The time the fake encoders and PCM source go by, in microseconds: it runs "speed" times as
+ * fast as the wall clock, from when it's created.  The speed can be changed on the way without
+ * the time jumping, so a buffer can be filled quickly and then fed at real time.  Thread safe.
+ */
+class FakeClock {
+    private long mBaseUsec;
+    private long mBaseNsec;
+    private double mSpeed;
+
+    FakeClock(double speed) {
+        mBaseNsec = System.nanoTime();
+        mBaseUsec = mBaseNsec / 1000;
+        mSpeed = speed;
+    }
+
+    synchronized long nowUsec() {
+        return mBaseUsec + (long) ((System.nanoTime() - mBaseNsec) / 1000 * mSpeed);
+    }
+
+    synchronized void setSpeed(double speed) {
+        mBaseUsec = nowUsec();
+        mBaseNsec = System.nanoTime();
+        mSpeed = speed;
+    }
+
+    /**
+     * Sleeps until it's "usec", or for "maxWaitUsec" of wall time at most.
+     *
+     * @return False if it isn't "usec" yet.
+     */
+    boolean waitUntil(long usec, long maxWaitUsec) throws InterruptedException {
+        long waitUsec;
+        synchronized (this) {
+            waitUsec = (long) ((usec - nowUsec()) / mSpeed);
+        }
+        if (waitUsec <= 0) {
+            return true;
+        }
+        long sleepUsec = Math.min(waitUsec, maxWaitUsec);
+        Thread.sleep(sleepUsec / 1000, (int) (sleepUsec % 1000) * 1000);
+        return nowUsec() >= usec;
+    }
+}
@@ -0,0 +1,236 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+/**
+ * An {@link EncoderSource} that doesn't encode anything: what comes out is a
+ * {@link SyntheticStream}'s, timed by a {@link FakeClock}, so the encoder threads' drain loops
+ * and everything after them run on a JVM, at real time or faster.  Same seed, same packets.
+ * <p>
+ * The first dequeueOutputBuffer() reports the format, with csd-0 (and csd-1 for video), as
+ * INFO_OUTPUT_FORMAT_CHANGED.  A video source then hands out a frame once the clock has got
+ * to its PTS; it has no input.  An audio source takes PCM through its input buffers, like
+ * MediaCodec, and puts out an AAC frame for every 1024 samples, stamped with the PTS the
+ * samples came with; with nothing to hand out, it waits out the timeout, as MediaCodec would
+ * with nothing coming.  Either way, a packet stays in its output buffer until it's released,
+ * and nothing more comes out while they're all in use.
+ * <p>
+ * setBitRate() and setComplexity() change the packet sizes from the next one on, so a bit
+ * rate controller can be run against it.
+ */
+class FakeEncoderSource implements EncoderSource {
+    private static final int BUFFER_COUNT = 4;
+    private static final int INPUT_BUFFER_BYTES = 16384;
+
+    private final SyntheticStream mStream;
+    private final FakeClock mClock;
+    private final MediaFormat mFormat;
+    private final int mBytesPerFrame;       // audio: PCM bytes per sample frame
+    private final int mSampleRate;
+    private boolean mFormatReported;
+    private long mStartUsec = -1;
+    private volatile int mBitRate;
+    private volatile double mComplexity = 1;
+    private int mStreamBitRate;
+    private double mStreamComplexity = 1;
+
+    private final ByteBuffer[] mOutputBuffers = new ByteBuffer[BUFFER_COUNT];
+    private final boolean[] mOutputInUse = new boolean[BUFFER_COUNT];
+    // The PTS of the audio frames made from the input, waiting for an output buffer.
+    private final long[] mReadyPtsUsec = new long[BUFFER_COUNT];
+    private int mReadyHead;
+    private int mReadyCount;
+    private final ByteBuffer[] mInputBuffers = new ByteBuffer[BUFFER_COUNT];
+    private int mPendingSamples;
+    private long mPendingPtsUsec;
+
+    /**
+     * A video encoder putting out a SyntheticStream, stamped from the clock's time at the
+     * first dequeueOutputBuffer() on.
+     */
+    static FakeEncoderSource newVideo(FakeClock clock, int width, int height, int bitRate,
+            int frameRate, int gopFrames, long seed) {
+        SyntheticStream stream = SyntheticStream.newVideo(bitRate, frameRate, gopFrames, seed);
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", width, height);
+        format.setByteBuffer("csd-0", stream.getCsd0());
+        format.setByteBuffer("csd-1", stream.getCsd1());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        return new FakeEncoderSource(stream, clock, format, 0, 0,
+                Math.max(bitRate / 8, 1024 * 1024));
+    }
+
+    /**
+     * An AAC encoder, taking 16-bit PCM.
+     */
+    static FakeEncoderSource newAudio(int sampleRate, int channelCount, int bitRate, long seed) {
+        SyntheticStream stream = SyntheticStream.newAudio(bitRate, sampleRate, seed);
+        MediaFormat format = MediaFormat.createAudioFormat("audio/mp4a-latm", sampleRate,
+                channelCount);
+        format.setByteBuffer("csd-0", stream.getCsd0());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        return new FakeEncoderSource(stream, null, format, 2 * channelCount, sampleRate, 8192);
+    }
+
+    private FakeEncoderSource(SyntheticStream stream, FakeClock clock, MediaFormat format,
+            int bytesPerFrame, int sampleRate, int outputBufferBytes) {
+        mStream = stream;
+        mClock = clock;
+        mFormat = format;
+        mBytesPerFrame = bytesPerFrame;
+        mSampleRate = sampleRate;
+        mBitRate = mStreamBitRate = format.getInteger(MediaFormat.KEY_BIT_RATE);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(outputBufferBytes);
+            if (!stream.isVideo()) {
+                mInputBuffers[i] = ByteBuffer.allocateDirect(INPUT_BUFFER_BYTES);
+            }
+        }
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return null;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        if (mStream.isVideo()) {
+            throw new IllegalStateException("Video takes no input");
+        }
+        // The input is used up by queueInputBuffer(), so a buffer is free unless the frames
+        // made from it can't go anywhere.
+        if (mReadyCount == BUFFER_COUNT) {
+            sleepUsec(timeoutUs);
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        mInputBuffers[0].clear();
+        return 0;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mInputBuffers[index];
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+            int flags) {
+        if (mPendingSamples == 0) {
+            mPendingPtsUsec = presentationTimeUs;
+        }
+        mPendingSamples += size / mBytesPerFrame;
+        while (mPendingSamples >= SyntheticStream.AAC_SAMPLES_PER_FRAME
+                && mReadyCount < BUFFER_COUNT) {
+            mReadyPtsUsec[(mReadyHead + mReadyCount) % BUFFER_COUNT] = mPendingPtsUsec;
+            mReadyCount++;
+            mPendingSamples -= SyntheticStream.AAC_SAMPLES_PER_FRAME;
+            mPendingPtsUsec += SyntheticStream.AAC_SAMPLES_PER_FRAME * 1000000L / mSampleRate;
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        int index = 0;
+        while (index < BUFFER_COUNT && mOutputInUse[index]) {
+            index++;
+        }
+        if (index == BUFFER_COUNT) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+
+        long ptsUsec;
+        if (mStream.isVideo()) {
+            if (mStartUsec < 0) {
+                mStartUsec = mClock.nowUsec();
+            }
+            ptsUsec = mStartUsec + mStream.getNextPtsUsec();
+            try {
+                if (!mClock.waitUntil(ptsUsec, timeoutUs)) {
+                    return MediaCodec.INFO_TRY_AGAIN_LATER;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+        } else {
+            if (mReadyCount == 0) {
+                sleepUsec(timeoutUs);
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            ptsUsec = mReadyPtsUsec[mReadyHead];
+            mReadyHead = (mReadyHead + 1) % BUFFER_COUNT;
+            mReadyCount--;
+        }
+
+        if (mBitRate != mStreamBitRate || mComplexity != mStreamComplexity) {
+            mStreamBitRate = mBitRate;
+            mStreamComplexity = mComplexity;
+            mStream.setBitRate(mStreamBitRate);
+            mStream.setComplexity(mStreamComplexity);
+        }
+        ByteBuffer buf = mOutputBuffers[index];
+        buf.clear();
+        info.flags = mStream.next(buf);
+        info.offset = 0;
+        info.size = buf.remaining();
+        info.presentationTimeUs = ptsUsec;
+        mOutputInUse[index] = true;
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mOutputInUse[index] = false;
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Takes effect from the next packet on, the way MediaCodec's rate control follows it
+     * within a frame or two.
+     */
+    @Override
+    public boolean setBitRate(int bitRate) {
+        mBitRate = bitRate;
+        return true;
+    }
+
+    /**
+     * Has the video come out "complexity" times the bit rate, from the next packet on.  Can
+     * be called from any thread, to play a scene changing.
+     */
+    void setComplexity(double complexity) {
+        mComplexity = complexity;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    private static void sleepUsec(long usec) {
+        if (usec <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(usec / 1000, (int) (usec % 1000) * 1000);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
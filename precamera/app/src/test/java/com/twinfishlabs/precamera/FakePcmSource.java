@@ -0,0 +1,60 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A {@link PcmSource} recording a 440 Hz tone, 16-bit, at the pace of a {@link FakeClock}:
+ * read() blocks until the clock has got past the samples it hands out, as AudioRecord's does.
+ */
+class FakePcmSource implements PcmSource {
+    private static final int TONE_HZ = 440;
+
+    private final FakeClock mClock;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final short[] mTone;    // a second of it, a whole number of periods
+    private long mStartUsec;
+    private long mFrames;           // sample frames read so far
+
+    FakePcmSource(FakeClock clock, int sampleRate, int channelCount) {
+        mClock = clock;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mTone = new short[sampleRate];
+        for (int i = 0; i < sampleRate; i++) {
+            mTone[i] = (short) (8192 * Math.sin(2 * Math.PI * TONE_HZ * i / sampleRate));
+        }
+    }
+
+    @Override
+    public void startRecording() {
+        mStartUsec = mClock.nowUsec();
+        mFrames = 0;
+    }
+
+    @Override
+    public int read(ByteBuffer buf, int sizeInBytes) {
+        int frames = Math.min(sizeInBytes, buf.remaining()) / 2 / mChannelCount;
+        long endUsec = mStartUsec + (mFrames + frames) * 1000000 / mSampleRate;
+        try {
+            while (!mClock.waitUntil(endUsec, 100000)) { }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        // From the position on, which stays where it is, as with AudioRecord.
+        ByteOrder order = buf.order();
+        buf.order(ByteOrder.nativeOrder());
+        int offset = buf.position();
+        for (int i = 0; i < frames; i++, mFrames++) {
+            short sample = mTone[(int) (mFrames % mSampleRate)];
+            for (int c = 0; c < mChannelCount; c++) {
+                buf.putShort(offset, sample);
+                offset += 2;
+            }
+        }
+        buf.order(order);
+        return frames * 2 * mChannelCount;
+    }
+}
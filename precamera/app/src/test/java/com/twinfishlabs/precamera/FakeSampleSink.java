@@ -0,0 +1,73 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * A {@link SampleSink} that keeps nothing, only counts: samples and bytes, and how often a
+ * track's time stamps went backwards.  For running the save paths without a file.
+ */
+class FakeSampleSink implements SampleSink {
+    private final ArrayList<long[]> mLastPtsUsec = new ArrayList<long[]>();
+    private boolean mStarted;
+    private int mSampleCount;
+    private long mByteCount;
+    private int mOutOfOrderCount;
+
+    @Override
+    public void setOrientationHint(int degrees) {
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mStarted) {
+            throw new IllegalStateException("Can't add tracks after start()");
+        }
+        mLastPtsUsec.add(new long[] { Long.MIN_VALUE });
+        return mLastPtsUsec.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer buf, MediaCodec.BufferInfo info) {
+        if (!mStarted) {
+            throw new IllegalStateException("Not started");
+        }
+        long[] lastPtsUsec = mLastPtsUsec.get(trackIndex);
+        if (info.presentationTimeUs < lastPtsUsec[0]) {
+            mOutOfOrderCount++;
+        }
+        lastPtsUsec[0] = info.presentationTimeUs;
+        mSampleCount++;
+        mByteCount += info.size;
+    }
+
+    @Override
+    public void stop() {
+        mStarted = false;
+    }
+
+    @Override
+    public void release() {
+        mStarted = false;
+    }
+
+    int getSampleCount() {
+        return mSampleCount;
+    }
+
+    long getByteCount() {
+        return mByteCount;
+    }
+
+    int getOutOfOrderCount() {
+        return mOutOfOrderCount;
+    }
+}
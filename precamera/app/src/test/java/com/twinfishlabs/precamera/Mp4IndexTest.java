@@ -0,0 +1,126 @@
+package com.twinfishlabs.precamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.Test;
+
+public class Mp4IndexTest {
+    private static final int SAMPLES = 300;
+    private static final int SAMPLE_SIZE = 1000;
+    private static final long FRAME_USEC = 33333;
+
+    /**
+     * A moov that fits goes in the room in front, with a free box after it.
+     */
+    @Test
+    public void indexGoesInTheRoom() throws Exception {
+        File file = File.createTempFile("index", ".mp4");
+        try {
+            assertTrue(writeFile(file, 64 * 1024));
+            assertEquals("moov", readType(file, 32));
+            assertEquals(SAMPLES, trimmedSampleCount(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * A moov too big for the room goes after the mdat; the room stays a free box, and none
+     * of the samples move.
+     */
+    @Test
+    public void indexTooBigGoesAtTheEnd() throws Exception {
+        File file = File.createTempFile("index", ".mp4");
+        try {
+            assertFalse(writeFile(file, 256));
+            assertEquals("free", readType(file, 32));
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(32 + 256 + 16 + (SAMPLES - 1) * SAMPLE_SIZE);
+                assertEquals((byte) (SAMPLES - 1), raf.readByte());
+            } finally {
+                raf.close();
+            }
+            assertEquals(SAMPLES, trimmedSampleCount(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes an ftyp, "room" bytes for the moov, and an mdat of SAMPLES video samples, each
+     * one filled with its number, then has Mp4Index finish it.
+     */
+    private static boolean writeFile(File file, int room) throws Exception {
+        Mp4Index index = new Mp4Index();
+        Mp4Index.Track track = index.addTrack();
+        track.setVideoFormat(1280, 720,
+                ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f }),
+                ByteBuffer.wrap(new byte[] { 0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2 }));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(64);
+            Mp4Boxes.writeFtyp(buf);
+            long indexStart = buf.position();
+            assertEquals(32, indexStart);
+            buf.putInt(room);
+            buf.put(Mp4Boxes.fourCc("free"));
+            buf.flip();
+            channel.write(buf, 0);
+
+            long mdatStart = indexStart + room;
+            buf.clear();
+            buf.putInt(1);
+            buf.put(Mp4Boxes.fourCc("mdat"));
+            buf.putLong(0);
+            buf.flip();
+            channel.write(buf, mdatStart);
+
+            long offset = mdatStart + 16;
+            ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+            for (int i = 0; i < SAMPLES; i++) {
+                sample.clear();
+                while (sample.hasRemaining()) {
+                    sample.put((byte) i);
+                }
+                sample.flip();
+                channel.write(sample, offset);
+                index.addSample(track, i * FRAME_USEC, offset, SAMPLE_SIZE, i % 30 == 0);
+                offset += SAMPLE_SIZE;
+            }
+            return index.writeTo(channel, mdatStart, offset, indexStart, room);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String readType(File file, long position) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] type = new byte[4];
+            raf.seek(position + 4);
+            raf.readFully(type);
+            return new String(type, "US-ASCII");
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int trimmedSampleCount(File file) throws Exception {
+        File trimmed = File.createTempFile("trimmed", ".mp4");
+        try {
+            return new Mp4Trimmer(file).trim(0, Long.MAX_VALUE, trimmed).sampleCount;
+        } finally {
+            trimmed.delete();
+        }
+    }
+}
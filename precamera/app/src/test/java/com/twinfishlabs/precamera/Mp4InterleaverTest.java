@@ -0,0 +1,192 @@
+package com.twinfishlabs.precamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class Mp4InterleaverTest {
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+    private static final long CHUNK_USEC = 500000;
+    private static final long FRAME_USEC = 33333;
+    private static final long AUDIO_FRAME_USEC = 1000000L * 1024 / 44100;
+
+    private final Mp4Interleaver.Chunk mChunk = new Mp4Interleaver.Chunk();
+
+    /**
+     * Video and audio as the buffer has them, audio a little behind: chunks come out in the
+     * order they start, each track's samples in the order they went in, none lost.
+     */
+    @Test
+    public void chunksAreInPtsOrderAcrossTracks() {
+        Mp4Interleaver interleaver = new Mp4Interleaver(2, CHUNK_USEC);
+        List<long[]> chunks = new ArrayList<long[]>();
+        long[] pts = addStreams(interleaver, 10000000, 100000, chunks);
+        while (interleaver.takeChunk(mChunk, true)) {
+            chunks.add(toPts(mChunk, pts));
+        }
+
+        long lastStartUsec = Long.MIN_VALUE;
+        long[] lastUsec = { -1, -1 };
+        int samples = 0;
+        for (long[] chunk : chunks) {
+            int track = (int) chunk[0];
+            assertTrue("chunk at " + chunk[1] + " after one at " + lastStartUsec,
+                    chunk[1] >= lastStartUsec);
+            lastStartUsec = chunk[1];
+            for (int i = 1; i < chunk.length; i++) {
+                assertTrue(chunk[i] > lastUsec[track]);
+                lastUsec[track] = chunk[i];
+                samples++;
+            }
+        }
+        assertEquals(pts.length, samples);
+    }
+
+    /**
+     * No chunk is longer than the duration asked for, and with 0 every sample is a chunk.
+     */
+    @Test
+    public void chunksAreCappedAtTheirDuration() {
+        Mp4Interleaver interleaver = new Mp4Interleaver(2, CHUNK_USEC);
+        List<long[]> chunks = new ArrayList<long[]>();
+        long[] pts = addStreams(interleaver, 10000000, 100000, chunks);
+        while (interleaver.takeChunk(mChunk, true)) {
+            chunks.add(toPts(mChunk, pts));
+        }
+        int full = 0;
+        for (long[] chunk : chunks) {
+            long durationUsec = chunk[chunk.length - 1] - chunk[1];
+            assertTrue("chunk of " + durationUsec + " us", durationUsec < CHUNK_USEC);
+            if (durationUsec + 2 * FRAME_USEC >= CHUNK_USEC) {
+                full++;
+            }
+        }
+        // Not one sample per chunk either: the chunks are mostly as long as they may be.
+        assertTrue(full > chunks.size() / 2);
+
+        interleaver = new Mp4Interleaver(2, 0);
+        chunks.clear();
+        pts = addStreams(interleaver, 2000000, 100000, chunks);
+        while (interleaver.takeChunk(mChunk, true)) {
+            chunks.add(toPts(mChunk, pts));
+        }
+        for (long[] chunk : chunks) {
+            assertEquals(2, chunk.length);
+        }
+    }
+
+    /**
+     * A track with nothing to add holds the others back only until they have MAX_WAIT_CHUNKS
+     * chunks' worth queued.
+     */
+    @Test
+    public void quietTrackIsWaitedForFourChunks() {
+        final long sampleUsec = 10000;
+        final long chunkUsec = 100000;
+        Mp4Interleaver interleaver = new Mp4Interleaver(2, chunkUsec);
+
+        // Video's first chunk is complete once it has a sample past it, but audio could still
+        // come up with something before it...
+        int sample = 0;
+        long ptsUsec = 0;
+        for (; ptsUsec < 4 * chunkUsec; ptsUsec += sampleUsec) {
+            interleaver.add(VIDEO, ptsUsec, sample++);
+            assertFalse("taken at " + ptsUsec, interleaver.takeChunk(mChunk, false));
+        }
+        // ...until four chunks' worth are waiting.
+        interleaver.add(VIDEO, ptsUsec, sample++);
+        assertTrue(interleaver.takeChunk(mChunk, false));
+        assertEquals(VIDEO, mChunk.track);
+        assertEquals(chunkUsec / sampleUsec, mChunk.count);
+        assertEquals(0, mChunk.samples[0]);
+        assertFalse(interleaver.takeChunk(mChunk, false));
+
+        // Once audio is past them, the video chunks before it go without waiting.
+        interleaver.add(AUDIO, ptsUsec, sample++);
+        for (long startUsec = chunkUsec; startUsec < ptsUsec; startUsec += chunkUsec) {
+            assertTrue(interleaver.takeChunk(mChunk, false));
+            assertEquals(VIDEO, mChunk.track);
+        }
+        assertFalse(interleaver.takeChunk(mChunk, false));
+    }
+
+    /**
+     * What's left at the end, less than a chunk per track, comes out with flush, in order.
+     */
+    @Test
+    public void partialChunksAreFlushed() {
+        Mp4Interleaver interleaver = new Mp4Interleaver(2, CHUNK_USEC);
+        interleaver.add(VIDEO, 0, 0);
+        interleaver.add(VIDEO, FRAME_USEC, 1);
+        interleaver.add(AUDIO, 10000, 2);
+        interleaver.add(AUDIO, 10000 + AUDIO_FRAME_USEC, 3);
+        interleaver.add(VIDEO, 2 * FRAME_USEC, 4);
+        assertFalse(interleaver.takeChunk(mChunk, false));
+
+        assertTrue(interleaver.takeChunk(mChunk, true));
+        assertEquals(VIDEO, mChunk.track);
+        assertEquals(3, mChunk.count);
+        assertEquals(4, mChunk.samples[2]);
+        assertTrue(interleaver.takeChunk(mChunk, true));
+        assertEquals(AUDIO, mChunk.track);
+        assertEquals(2, mChunk.count);
+        assertEquals(2, mChunk.samples[0]);
+        assertFalse(interleaver.takeChunk(mChunk, true));
+        assertFalse(interleaver.isHead(0));
+    }
+
+    /**
+     * Adds "durationUsec" of 30 fps video and 44.1 kHz AAC, the audio "audioDelayUsec" behind
+     * in the order they're added, taking what chunks are ready along the way.  The samples are
+     * numbered in the order they're added.
+     *
+     * @return The PTS of each sample.
+     */
+    private long[] addStreams(Mp4Interleaver interleaver, long durationUsec,
+            long audioDelayUsec, List<long[]> chunks) {
+        long[] pts = new long[(int) (durationUsec / FRAME_USEC + durationUsec / AUDIO_FRAME_USEC
+                + 2)];
+        int sample = 0;
+        int frame = 0, audioFrame = 0;
+        while (true) {
+            long videoUsec = frame * FRAME_USEC;
+            long audioUsec = audioFrame * AUDIO_FRAME_USEC;
+            if (videoUsec >= durationUsec && audioUsec >= durationUsec) {
+                break;
+            }
+            if (videoUsec < durationUsec
+                    && (audioUsec >= durationUsec || videoUsec <= audioUsec + audioDelayUsec)) {
+                interleaver.add(VIDEO, videoUsec, sample);
+                pts[sample++] = videoUsec;
+                frame++;
+            } else {
+                interleaver.add(AUDIO, audioUsec, sample);
+                pts[sample++] = audioUsec;
+                audioFrame++;
+            }
+            while (interleaver.takeChunk(mChunk, false)) {
+                chunks.add(toPts(mChunk, pts));
+            }
+        }
+        return Arrays.copyOf(pts, sample);
+    }
+
+    /**
+     * Returns the chunk's track followed by its samples' PTS.
+     */
+    private static long[] toPts(Mp4Interleaver.Chunk chunk, long[] pts) {
+        long[] result = new long[chunk.count + 1];
+        result[0] = chunk.track;
+        for (int i = 0; i < chunk.count; i++) {
+            result[i + 1] = pts[chunk.samples[i]];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,45 @@
+package com.twinfishlabs.precamera;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class Mp4RecoveryTest {
+
+    /**
+     * Journals are found in their own folder and matched to clips by name; the ones without a
+     * clip are cleaned up.
+     */
+    @Test
+    public void journalsAreMatchedToClipsByName() throws IOException {
+        File clipFolder = newFolder("clips");
+        File journalFolder = newFolder("journals");
+        File clip = new File(clipFolder, "VID_1.mp4");
+        assertTrue(clip.createNewFile());
+        File journal = Mp4Journal.getFile(journalFolder, clip);
+        assertTrue(journal.createNewFile());
+        File orphan = Mp4Journal.getFile(journalFolder, new File(clipFolder, "VID_2.mp4"));
+        assertTrue(orphan.createNewFile());
+
+        assertArrayEquals(new File[] { clip },
+                Mp4Recovery.findUnfinished(journalFolder, clipFolder));
+        assertTrue(journal.exists());
+        assertFalse(orphan.exists());
+
+        journal.delete();
+        clip.delete();
+        journalFolder.delete();
+        clipFolder.delete();
+    }
+
+    private static File newFolder(String prefix) throws IOException {
+        File folder = File.createTempFile(prefix, "");
+        assertTrue(folder.delete() && folder.mkdir());
+        return folder;
+    }
+}
@@ -0,0 +1,51 @@
+package com.twinfishlabs.precamera;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class Mp4TrackTest {
+    private static final byte[] SPS = { 0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x01, 0x40 };
+    private static final byte[] PPS = { 0x68, (byte) 0xce, 0x06, (byte) 0xe2 };
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    /**
+     * Both parameter sets in csd-0, each behind a four-byte start code: the zero in front of
+     * the PPS's start code doesn't end up on the SPS.
+     */
+    @Test
+    public void parameterSetsTogetherInCsd0() {
+        Mp4Track track = new Mp4Track();
+        track.setVideoFormat(1280, 720, join(START_CODE, SPS, START_CODE, PPS), null);
+        assertArrayEquals(SPS, track.sps);
+        assertArrayEquals(PPS, track.pps);
+    }
+
+    /**
+     * One in csd-0 and one in csd-1, as most encoders have them, with three-byte start codes
+     * too.
+     */
+    @Test
+    public void parameterSetsSplitOverCsd0AndCsd1() {
+        Mp4Track track = new Mp4Track();
+        track.setVideoFormat(1280, 720, join(START_CODE, SPS),
+                join(new byte[] { 0, 0, 1 }, PPS));
+        assertArrayEquals(SPS, track.sps);
+        assertArrayEquals(PPS, track.pps);
+    }
+
+    private static ByteBuffer join(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            buf.put(part);
+        }
+        buf.flip();
+        return buf;
+    }
+}
@@ -0,0 +1,149 @@
+package com.twinfishlabs.precamera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import android.media.MediaCodec;
+
+public class RingMp4WriterTest {
+    private static final int BIT_RATE = 6000000;
+    private static final int FRAME_RATE = 30;
+    private static final int SPAN_SEC = 10;
+    private static final int CHANNELS = 1;
+
+    /**
+     * Fake encoders fill an interleaved buffer, as CircularEncoder's encoder threads do, past
+     * its span; then the pre-roll goes out packet by packet to a sink, and into a file with a
+     * RingMp4Writer.  The sink must get every packet in order, and the file must have every
+     * one of them in its moov.
+     */
+    @Test(timeout = 60000)
+    public void preRollIsWrittenWhole() throws Exception {
+        FakeClock clock = new FakeClock(1000);
+        FakeEncoderSource video = FakeEncoderSource.newVideo(clock, Configs.VIDEO_WIDTH,
+                Configs.VIDEO_HEIGHT, BIT_RATE, FRAME_RATE, FRAME_RATE, 1);
+        FakeEncoderSource audio = FakeEncoderSource.newAudio(Configs.SAMPLE_RATE, CHANNELS,
+                Configs.AUDIO_BIT_RATE, 2);
+        FakePcmSource pcm = new FakePcmSource(clock, Configs.SAMPLE_RATE, CHANNELS);
+        int audioFrameRate = Configs.SAMPLE_RATE / SyntheticStream.AAC_SAMPLES_PER_FRAME + 1;
+        SlabPool pool = new SlabPool(null, false, SlabPool.computeSlabSize(
+                CircularEncoderBuffer.getMaxPacketSize(BIT_RATE, FRAME_RATE)));
+        CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool,
+                BIT_RATE + Configs.AUDIO_BIT_RATE, FRAME_RATE + audioFrameRate, SPAN_SEC,
+                SPAN_SEC, true, SPAN_SEC);
+        File file = File.createTempFile("ring", ".mp4");
+        File trimmed = File.createTempFile("trimmed", ".mp4");
+        try {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            pcm.startRecording();
+            long startUsec = clock.nowUsec();
+            long samples = 0;
+            long lastVideoUsec = 0;
+            while (lastVideoUsec - startUsec < (SPAN_SEC + 3) * 1000000L) {
+                long ptsUsec = drain(video, info, 10000, buffer, CircularEncoderBuffer.TRACK_VIDEO);
+                if (ptsUsec == 0) {
+                    continue;
+                }
+                lastVideoUsec = ptsUsec;
+                // The audio up to the same time, a frame's worth of PCM at a time.
+                while (startUsec + samples * 1000000 / Configs.SAMPLE_RATE < lastVideoUsec) {
+                    int index = audio.dequeueInputBuffer(0);
+                    if (index >= 0) {
+                        ByteBuffer input = audio.getInputBuffer(index);
+                        input.clear();
+                        int size = pcm.read(input,
+                                2 * CHANNELS * SyntheticStream.AAC_SAMPLES_PER_FRAME);
+                        audio.queueInputBuffer(index, 0, size,
+                                startUsec + samples * 1000000 / Configs.SAMPLE_RATE, 0);
+                        samples += size / (2 * CHANNELS);
+                    }
+                    drain(audio, info, 0, buffer, CircularEncoderBuffer.TRACK_AUDIO);
+                }
+            }
+            BufferMetrics metrics = new BufferMetrics();
+            buffer.getMetrics(metrics);
+            assertTrue("nothing was evicted", metrics.evictedPackets > 0);
+            long spanUsec = buffer.computeTimeSpanUsec();
+            assertTrue("span " + spanUsec, spanUsec >= SPAN_SEC * 1000000L);
+
+            // Packet by packet, as to MediaMuxer.
+            FakeSampleSink sink = new FakeSampleSink();
+            int videoTrack = sink.addTrack(video.getOutputFormat());
+            int audioTrack = sink.addTrack(audio.getOutputFormat());
+            sink.start();
+            CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+            long firstUsec = -1;
+            int early = 0;          // audio stamped before the first video frame
+            for (int index = cursor.getIndex(); index >= 0; index = cursor.getIndex()) {
+                ByteBuffer buf = buffer.getChunk(index, info);
+                boolean isVideo = buffer.getTrack(index) == CircularEncoderBuffer.TRACK_VIDEO;
+                if (firstUsec < 0) {
+                    assertTrue(isVideo);
+                    firstUsec = info.presentationTimeUs;
+                } else if (info.presentationTimeUs < firstUsec) {
+                    early++;
+                }
+                sink.writeSampleData(isVideo ? videoTrack : audioTrack, buf, info);
+                cursor.advance();
+            }
+            cursor.close();
+            sink.stop();
+            int packets = sink.getSampleCount();
+            assertTrue(packets > (FRAME_RATE + audioFrameRate - 1) * SPAN_SEC);
+            assertEquals(0, sink.getOutOfOrderCount());
+
+            // In chunks, with the index in front.
+            RingMp4Writer writer = new RingMp4Writer(file);
+            videoTrack = writer.addTrack(video.getOutputFormat());
+            audioTrack = writer.addTrack(audio.getOutputFormat());
+            writer.setChunkDuration(Configs.MUXER_CHUNK_MS * 1000L);
+            writer.setFaststart(packets);
+            writer.start();
+            cursor = buffer.openCursor();
+            while (writer.writeFromBuffer(buffer, cursor, videoTrack, audioTrack,
+                    Long.MAX_VALUE) > 0) { }
+            writer.flush(buffer, cursor, videoTrack, audioTrack);
+            cursor.close();
+            writer.stop();
+            assertTrue(writer.getChunkCount() < packets / 4);
+            assertTrue(file.length() > sink.getByteCount());
+
+            // The trimmer starts at the first video frame, so the early audio isn't counted.
+            Mp4Trimmer.Result result = new Mp4Trimmer(file).trim(0, Long.MAX_VALUE, trimmed);
+            assertEquals(packets - early, result.sampleCount);
+            assertTrue(result.endUsec - result.startUsec >= SPAN_SEC * 1000000L - 100000);
+        } finally {
+            file.delete();
+            trimmed.delete();
+            buffer.release();
+            pool.release();
+        }
+    }
+
+    /**
+     * Adds the encoder's next packet to the buffer, if it has one within the timeout.
+     *
+     * @return The packet's PTS, or 0 for none.
+     */
+    private static long drain(EncoderSource source, MediaCodec.BufferInfo info, long timeoutUs,
+            CircularEncoderBuffer buffer, int track) {
+        int index = source.dequeueOutputBuffer(info, timeoutUs);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            index = source.dequeueOutputBuffer(info, timeoutUs);
+        }
+        if (index < 0) {
+            return 0;
+        }
+        ByteBuffer buf = source.getOutputBuffer(index);
+        buf.position(info.offset);
+        buf.limit(info.offset + info.size);
+        buffer.add(buf, info.flags, info.presentationTimeUs, track);
+        source.releaseOutputBuffer(index);
+        return info.presentationTimeUs;
+    }
+}
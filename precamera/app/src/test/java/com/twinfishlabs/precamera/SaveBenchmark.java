@@ -0,0 +1,415 @@
+package com.twinfishlabs.precamera;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+
+/**
+ * Measures a whole save the way the app does one, on made-up encoder output from
+ * {@link SyntheticStream}s: fills an interleaved {@link CircularEncoderBuffer} with the
+ * pre-roll, then has a RingMp4Writer take it out in the muxer thread's batches while a
+ * producer thread keeps adding video and audio in real time.  Once the writer has caught up
+ * with the producer, the file is finished.
+ * <p>
+ * With setEncoderSpeed(), the producer is a FakeEncoderSource for video and a FakePcmSource
+ * feeding one for audio instead, on threads of their own as CircularEncoder's encoder threads,
+ * timed by a FakeClock that fills the pre-roll in a hurry and then runs at the speed asked for.
+ * With setPacketSink(), the save goes packet by packet into a FakeSampleSink, as it does with
+ * MediaMuxer, rather than through a RingMp4Writer.
+ * <p>
+ * Reports how long catching up took, how fast the writer went meanwhile, and the longest
+ * the producer was held up in add(), which is what an encoder would have seen.  BufferBenchmark
+ * runs it; it also runs on its own, with the unit tests' class path:
+ * <pre>
+ * java -cp [unit test class path] com.twinfishlabs.precamera.SaveBenchmark \
+ *     [video bit rate] [fps] [GOP frames] [pre-roll sec] [encoder speed] [sink] [spill file]
+ * </pre>
+ * An encoder speed of 0 adds the streams straight from one thread; "sink" is 1 for the
+ * FakeSampleSink.
+ */
+class SaveBenchmark {
+    // How much the writer takes per batch, as CircularEncoder's muxer thread.
+    private static final int BATCH_BYTES = 4 * 1024 * 1024;
+    // Or packets, packet by packet.
+    private static final int BATCH_PACKETS = 64;
+    // How fast the fake encoders fill the pre-roll.
+    private static final double PRE_ROLL_SPEED = 100;
+    // How much PCM the audio thread reads at a time, as CircularEncoder's.
+    private static final int PCM_READ_BYTES = 2 * Configs.SAMPLES_PER_FRAME;
+
+    private final int mVideoBitRate;
+    private final int mFrameRate;
+    private final int mGopFrames;
+    private final int mPreRollSec;
+    private File mSpillFile;
+    private double mEncoderSpeed;
+    private boolean mPacketSink;
+
+    /**
+     * What run() measured.
+     */
+    static class Result {
+        long catchUpNsec;
+        long catchUpBytes;
+        int packets;
+        long maxStallNsec;
+        long waitUsec;
+        long fileBytes;
+        int outOfOrder = -1;        // packets the sink got out of order, -1 without one
+
+        @Override
+        public String toString() {
+            return String.format("catch-up %.0f ms, %.1f MB/s, %d packets, max stall %.2f ms,"
+                    + " waited %d ms, %.1f MB", catchUpNsec / 1e6,
+                    catchUpBytes * 1e3 / catchUpNsec / 1.048576, packets, maxStallNsec / 1e6,
+                    waitUsec / 1000, fileBytes / 1048576.0)
+                    + (outOfOrder >= 0 ? ", " + outOfOrder + " out of order" : "");
+        }
+    }
+
+    SaveBenchmark(int videoBitRate, int frameRate, int gopFrames, int preRollSec) {
+        mVideoBitRate = videoBitRate;
+        mFrameRate = frameRate;
+        mGopFrames = gopFrames;
+        mPreRollSec = preRollSec;
+    }
+
+    /**
+     * Keeps the whole buffer in "spill", preallocated, as with Configs.INSTANT_SAVE.
+     */
+    void setSpillFile(File spill) {
+        mSpillFile = spill;
+    }
+
+    /**
+     * Has fake encoders produce the packets, going "speed" times as fast as real time while
+     * the save catches up.  0, the default, adds SyntheticStream packets straight away.
+     */
+    void setEncoderSpeed(double speed) {
+        mEncoderSpeed = speed;
+    }
+
+    /**
+     * Saves packet by packet into a FakeSampleSink; "file" isn't written.
+     */
+    void setPacketSink(boolean packetSink) {
+        mPacketSink = packetSink;
+    }
+
+    /**
+     * Runs a save into "file".
+     */
+    Result run(File file) throws Exception {
+        final SyntheticStream video = SyntheticStream.newVideo(mVideoBitRate, mFrameRate,
+                mGopFrames, 1);
+        final SyntheticStream audio = SyntheticStream.newAudio(Configs.AUDIO_BIT_RATE,
+                Configs.SAMPLE_RATE, 2);
+        int audioFrameRate = Configs.SAMPLE_RATE / SyntheticStream.AAC_SAMPLES_PER_FRAME + 1;
+        SlabPool pool = new SlabPool(mSpillFile, mSpillFile != null, SlabPool.computeSlabSize(
+                CircularEncoderBuffer.getMaxPacketSize(mVideoBitRate, mFrameRate)));
+        final CircularEncoderBuffer buffer = new CircularEncoderBuffer(pool,
+                mVideoBitRate + Configs.AUDIO_BIT_RATE, mFrameRate + audioFrameRate, mPreRollSec,
+                mPreRollSec, true, mSpillFile != null ? 0 : mPreRollSec);
+        final ByteBuffer packet = ByteBuffer.allocateDirect(
+                Math.max(mVideoBitRate / 8, 1024 * 1024));
+        final long[] maxStallNsec = new long[1];
+        Thread producer = null;
+        FakeEncoders fakes = null;
+        RingMp4Writer writer = null;
+        FakeSampleSink sink = null;
+        Result result = new Result();
+        try {
+            if (mEncoderSpeed > 0) {
+                fakes = new FakeEncoders(buffer, maxStallNsec);
+                fakes.fillPreRoll((mPreRollSec + 1) * 1000000L);
+            } else {
+                while (video.getNextPtsUsec() < (mPreRollSec + 1) * 1000000L) {
+                    addNext(buffer, video, audio, packet);
+                }
+            }
+
+            int videoTrack;
+            int audioTrack;
+            if (mPacketSink) {
+                sink = new FakeSampleSink();
+                videoTrack = sink.addTrack(null);
+                audioTrack = sink.addTrack(null);
+                sink.start();
+            } else {
+                writer = new RingMp4Writer(file);
+                videoTrack = writer.addVideoTrack(Configs.VIDEO_WIDTH, Configs.VIDEO_HEIGHT,
+                        video.getCsd0(), video.getCsd1());
+                audioTrack = writer.addAudioTrack(Configs.SAMPLE_RATE, 1, Configs.AUDIO_BIT_RATE,
+                        audio.getCsd0());
+                if (Configs.MUXER_CHUNK_MS > 0) {
+                    writer.setChunkDuration(Configs.MUXER_CHUNK_MS * 1000L);
+                }
+            }
+            BufferMetrics metrics = new BufferMetrics();
+            buffer.getMetrics(metrics);
+            long waitStartUsec = metrics.waitUsec;
+            if (writer != null) {
+                writer.setFaststart(metrics.metaSlotsUsed
+                        + Configs.FASTSTART_LIVE_SEC * (mFrameRate + audioFrameRate));
+            }
+
+            final long startNsec = System.nanoTime();
+            if (writer != null) {
+                writer.start();
+            }
+            CircularEncoderBuffer.Cursor cursor = buffer.openCursor();
+            if (fakes != null) {
+                fakes.setSpeed(mEncoderSpeed);
+            } else {
+                producer = new Thread("SaveProducer") {
+                    @Override
+                    public void run() {
+                        long startUsec = video.getNextPtsUsec();
+                        while (!isInterrupted()) {
+                            long dueUsec = startUsec + (System.nanoTime() - startNsec) / 1000;
+                            while (video.getNextPtsUsec() < dueUsec) {
+                                long t0 = System.nanoTime();
+                                addNext(buffer, video, audio, packet);
+                                maxStallNsec[0] = Math.max(maxStallNsec[0],
+                                        System.nanoTime() - t0);
+                            }
+                            try {
+                                Thread.sleep(2);
+                            } catch (InterruptedException ie) {
+                                break;
+                            }
+                        }
+                    }
+                };
+                producer.start();
+            }
+
+            long bytesStart = sink != null ? 0 : file.length();
+            int count;
+            while ((count = writeBatch(buffer, cursor, writer, sink, videoTrack,
+                    audioTrack)) > 0) {
+                result.packets += count;
+            }
+            result.catchUpNsec = System.nanoTime() - startNsec;
+            result.catchUpBytes = (sink != null ? sink.getByteCount() : file.length())
+                    - bytesStart;
+
+            if (fakes != null) {
+                fakes.stop();
+                fakes = null;
+            } else {
+                producer.interrupt();
+                producer.join();
+                producer = null;
+            }
+            cursor.stopAtHead();
+            if (writer != null) {
+                writer.flush(buffer, cursor, videoTrack, audioTrack);
+            } else {
+                while (writeBatch(buffer, cursor, null, sink, videoTrack, audioTrack) > 0) { }
+            }
+            cursor.close();
+            if (writer != null) {
+                writer.stop();
+                writer = null;
+                result.fileBytes = file.length();
+            } else {
+                sink.stop();
+                result.fileBytes = sink.getByteCount();
+                result.outOfOrder = sink.getOutOfOrderCount();
+            }
+
+            buffer.getMetrics(metrics);
+            result.waitUsec = metrics.waitUsec - waitStartUsec;
+            result.maxStallNsec = maxStallNsec[0];
+            return result;
+        } finally {
+            if (producer != null) {
+                producer.interrupt();
+                producer.join();
+            }
+            if (fakes != null) {
+                fakes.stop();
+            }
+            if (writer != null) {
+                writer.release();
+            }
+            buffer.release();
+            pool.release();
+        }
+    }
+
+    /**
+     * Writes what the cursor hasn't got to yet, a batch of it, with the writer or else
+     * packet by packet into the sink.
+     *
+     * @return How many packets were written; 0 once it has caught up.
+     */
+    private static int writeBatch(CircularEncoderBuffer buffer, CircularEncoderBuffer.Cursor cursor,
+            RingMp4Writer writer, FakeSampleSink sink, int videoTrack, int audioTrack) {
+        if (writer != null) {
+            return writer.writeFromBuffer(buffer, cursor, videoTrack, audioTrack, BATCH_BYTES);
+        }
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int count = 0;
+        int index;
+        while (count < BATCH_PACKETS && (index = cursor.getIndex()) >= 0) {
+            ByteBuffer buf = buffer.getChunk(index, info);
+            sink.writeSampleData(buffer.getTrack(index) == CircularEncoderBuffer.TRACK_VIDEO
+                    ? videoTrack : audioTrack, buf, info);
+            cursor.advance();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Adds whichever of the streams' next packets comes first.
+     */
+    private static void addNext(CircularEncoderBuffer buffer, SyntheticStream video,
+            SyntheticStream audio, ByteBuffer packet) {
+        SyntheticStream stream = audio.getNextPtsUsec() < video.getNextPtsUsec() ? audio : video;
+        long ptsUsec = stream.getNextPtsUsec();
+        packet.clear();
+        int flags = stream.next(packet);
+        buffer.add(packet, flags, ptsUsec, stream.isVideo() ? CircularEncoderBuffer.TRACK_VIDEO
+                : CircularEncoderBuffer.TRACK_AUDIO);
+    }
+
+    /**
+     * The fake encoders, each drained on a thread of its own into the buffer, the way
+     * CircularEncoder's encoder threads do it, on one FakeClock.
+     */
+    private class FakeEncoders {
+        private final FakeClock mClock = new FakeClock(PRE_ROLL_SPEED);
+        private final CircularEncoderBuffer mBuffer;
+        private final long[] mMaxStallNsec;
+        private final Thread mVideoThread;
+        private final Thread mAudioThread;
+
+        FakeEncoders(CircularEncoderBuffer buffer, long[] maxStallNsec) {
+            mBuffer = buffer;
+            mMaxStallNsec = maxStallNsec;
+            final EncoderSource videoSource = FakeEncoderSource.newVideo(mClock,
+                    Configs.VIDEO_WIDTH, Configs.VIDEO_HEIGHT, mVideoBitRate, mFrameRate,
+                    mGopFrames, 1);
+            final EncoderSource audioSource = FakeEncoderSource.newAudio(Configs.SAMPLE_RATE, 1,
+                    Configs.AUDIO_BIT_RATE, 2);
+            final PcmSource pcmSource = new FakePcmSource(mClock, Configs.SAMPLE_RATE, 1);
+
+            mVideoThread = new Thread("FakeVideoEncoder") {
+                @Override
+                public void run() {
+                    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                    while (!isInterrupted()) {
+                        drain(videoSource, info, 10000, CircularEncoderBuffer.TRACK_VIDEO);
+                    }
+                }
+            };
+            mAudioThread = new Thread("FakeAudioEncoder") {
+                @Override
+                public void run() {
+                    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                    pcmSource.startRecording();
+                    long startUsec = mClock.nowUsec();
+                    long samples = 0;
+                    while (!isInterrupted()) {
+                        int index = audioSource.dequeueInputBuffer(10000);
+                        if (index >= 0) {
+                            ByteBuffer input = audioSource.getInputBuffer(index);
+                            input.clear();
+                            int size = pcmSource.read(input, PCM_READ_BYTES);
+                            if (size > 0) {
+                                audioSource.queueInputBuffer(index, 0, size,
+                                        startUsec + samples * 1000000 / Configs.SAMPLE_RATE, 0);
+                                samples += size / 2;
+                            }
+                        }
+                        drain(audioSource, info, 0, CircularEncoderBuffer.TRACK_AUDIO);
+                    }
+                }
+            };
+            mVideoThread.start();
+            mAudioThread.start();
+        }
+
+        /**
+         * Waits until the encoders have put out "usec" of packets.
+         */
+        void fillPreRoll(long usec) throws InterruptedException {
+            long endUsec = mClock.nowUsec() + usec;
+            while (!mClock.waitUntil(endUsec, 100000)) { }
+        }
+
+        /**
+         * Goes on at "speed", and starts measuring the stalls from here.
+         */
+        void setSpeed(double speed) {
+            synchronized (mMaxStallNsec) {
+                mMaxStallNsec[0] = 0;
+            }
+            mClock.setSpeed(speed);
+        }
+
+        void stop() throws InterruptedException {
+            mVideoThread.interrupt();
+            mAudioThread.interrupt();
+            mVideoThread.join();
+            mAudioThread.join();
+        }
+
+        /**
+         * Adds what the encoder has to the buffer.
+         */
+        private void drain(EncoderSource source, MediaCodec.BufferInfo info, long timeoutUs,
+                int track) {
+            int index;
+            while ((index = source.dequeueOutputBuffer(info, timeoutUs))
+                    != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (index < 0) {
+                    continue;           // the format; the writer has its own
+                }
+                ByteBuffer buf = source.getOutputBuffer(index);
+                buf.position(info.offset);
+                buf.limit(info.offset + info.size);
+                long t0 = System.nanoTime();
+                mBuffer.add(buf, info.flags, info.presentationTimeUs, track);
+                long stallNsec = System.nanoTime() - t0;
+                synchronized (mMaxStallNsec) {
+                    mMaxStallNsec[0] = Math.max(mMaxStallNsec[0], stallNsec);
+                }
+                source.releaseOutputBuffer(index);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int bitRate = args.length > 0 ? Integer.parseInt(args[0]) : Configs.VIDEO_BIT_RATE;
+        int frameRate = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int gopFrames = args.length > 2 ? Integer.parseInt(args[2]) : frameRate;
+        int preRollSec = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+        SaveBenchmark benchmark = new SaveBenchmark(bitRate, frameRate, gopFrames, preRollSec);
+        if (args.length > 4) {
+            benchmark.setEncoderSpeed(Double.parseDouble(args[4]));
+        }
+        if (args.length > 5) {
+            benchmark.setPacketSink(Integer.parseInt(args[5]) != 0);
+        }
+        File spill = null;
+        if (args.length > 6) {
+            spill = new File(args[6]);
+            benchmark.setSpillFile(spill);
+        }
+        File file = File.createTempFile("save", ".mp4");
+        try {
+            System.out.println(bitRate / 1000 + " kbit/s " + frameRate + " fps, GOP " + gopFrames
+                    + ", " + preRollSec + " s pre-roll: " + benchmark.run(file));
+        } finally {
+            file.delete();
+            if (spill != null) {
+                spill.delete();
+            }
+        }
+    }
+}
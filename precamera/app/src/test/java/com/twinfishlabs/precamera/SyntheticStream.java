@@ -0,0 +1,224 @@
+package com.twinfishlabs.precamera;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import android.media.MediaCodec;
+
+/**
+ * Makes up encoder output, for measuring the buffers and writers without a camera: H.264
+ * access units the way MediaCodec hands them out, or AAC frames, with flags and time stamps.
+ * <p>
+ * Video comes as one sync frame (an IDR slice) per GOP and P slices in between, each a single
+ * NAL unit behind a start code, or behind a 4-byte length with setAvcc().  A sync frame is
+ * about SYNC_FRAME_WEIGHT times the size of the others, and all frame sizes scatter
+ * log-normally around their mean, scaled so the stream averages the bit rate asked for.  The
+ * time stamps are a camera's: a frame period apart, give or take some jitter, never out of
+ * order.  The parameter sets are the csd-0 and csd-1 an encoder would report.
+ * <p>
+ * Audio is 1024-sample frames at the sample rate, stamped by the samples they start at, each
+ * within a few percent of the size the bit rate makes for a frame.  Every one is a sync frame.
+ * <p>
+ * The payload never has two zero bytes in a row, so the start codes are the only ones in the
+ * stream.  Same seed, same stream.  Plain Java apart from the flag constants, so it runs off
+ * the device as well.  Not thread safe.
+ */
+class SyntheticStream {
+    static final int AAC_SAMPLES_PER_FRAME = 1024;
+
+    // A sync frame is this many times the size of the frames in between, on average.
+    private static final int SYNC_FRAME_WEIGHT = 5;
+    // The spread of the frame sizes, as the standard deviation of their logarithm.
+    private static final double SIZE_SIGMA = 0.3;
+    private static final double AUDIO_SIZE_SPREAD = 0.05;
+    // How far a video time stamp may be off its frame period, as a fraction of it.
+    private static final double PTS_JITTER = 0.1;
+
+    // Random bytes, without zeros, that packets are cut from.
+    private static final int PAYLOAD_BYTES = 1024 * 1024;
+
+    private static final byte[] SPS = { 0, 0, 0, 1, 0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda,
+            0x01, 0x40, 0x16, (byte) 0xe8, 0x06, (byte) 0xd0, (byte) 0xa1, 0x35 };
+    private static final byte[] PPS = { 0, 0, 0, 1, 0x68, (byte) 0xce, 0x06, (byte) 0xe2 };
+
+    private final boolean mIsVideo;
+    private final Random mRandom;
+    private final byte[] mPayload = new byte[PAYLOAD_BYTES];
+    private final int mFrameRate;          // video only
+    private final int mGopFrames;
+    private final int mSampleRate;
+    private int mBitRate;
+    private double mComplexity = 1;
+    private double mSyncSize;
+    private double mOtherSize;
+    private boolean mAvcc;
+    private long mFrame;
+    private long mNextPtsUsec = -1;         // -1 until getNextPtsUsec() has drawn it
+    private long mLastPtsUsec = -1;
+
+    /**
+     * A video stream.
+     *
+     * @param gopFrames Frames from one sync frame to the next.
+     */
+    static SyntheticStream newVideo(int bitRate, int frameRate, int gopFrames, long seed) {
+        return new SyntheticStream(true, bitRate, frameRate, gopFrames, 0, seed);
+    }
+
+    /**
+     * An AAC stream.
+     */
+    static SyntheticStream newAudio(int bitRate, int sampleRate, long seed) {
+        return new SyntheticStream(false, bitRate, 0, 0, sampleRate, seed);
+    }
+
+    private SyntheticStream(boolean isVideo, int bitRate, int frameRate, int gopFrames,
+            int sampleRate, long seed) {
+        mIsVideo = isVideo;
+        mRandom = new Random(seed);
+        mFrameRate = frameRate;
+        mGopFrames = Math.max(1, gopFrames);
+        mSampleRate = sampleRate;
+        for (int i = 0; i < mPayload.length; i++) {
+            mPayload[i] = (byte) (1 + mRandom.nextInt(255));
+        }
+
+        mBitRate = bitRate;
+        computeSizes();
+    }
+
+    /**
+     * Changes the bit rate from the next packet on, as an encoder's rate control would.
+     */
+    void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+        computeSizes();
+    }
+
+    /**
+     * Makes the video come out this many times the bit rate, as a busy scene (above 1) or a
+     * still one (below) makes a real encoder miss it.
+     */
+    void setComplexity(double complexity) {
+        mComplexity = complexity;
+        computeSizes();
+    }
+
+    private void computeSizes() {
+        if (mIsVideo) {
+            // Per GOP: one sync frame plus (gopFrames - 1) others, making bitRate.  The mean of a
+            // log-normal is exp(sigma^2 / 2) times its median, which is what we draw around.
+            double gopBytes = mBitRate * mComplexity / 8 * mGopFrames / mFrameRate;
+            double median = gopBytes / (mGopFrames - 1 + SYNC_FRAME_WEIGHT)
+                    / Math.exp(SIZE_SIGMA * SIZE_SIGMA / 2);
+            mSyncSize = median * SYNC_FRAME_WEIGHT;
+            mOtherSize = median;
+        } else {
+            mSyncSize = mOtherSize = (double) mBitRate / 8 * AAC_SAMPLES_PER_FRAME / mSampleRate;
+        }
+    }
+
+    /**
+     * Puts 4-byte lengths in front of the NAL units instead of start codes, as MP4 has them.
+     */
+    void setAvcc(boolean avcc) {
+        mAvcc = avcc;
+    }
+
+    boolean isVideo() {
+        return mIsVideo;
+    }
+
+    /**
+     * The time stamp of the packet next() puts out next, in microseconds.
+     */
+    long getNextPtsUsec() {
+        if (mNextPtsUsec < 0) {
+            mNextPtsUsec = computePtsUsec();
+        }
+        return mNextPtsUsec;
+    }
+
+    /**
+     * Puts the next packet into "buf" from its position on, and leaves buf flipped over it.
+     *
+     * @return The packet's flags: BUFFER_FLAG_SYNC_FRAME or 0.
+     */
+    int next(ByteBuffer buf) {
+        mLastPtsUsec = getNextPtsUsec();
+        mNextPtsUsec = -1;
+        boolean sync = !mIsVideo || mFrame % mGopFrames == 0;
+        int start = buf.position();
+        if (mIsVideo) {
+            int size = drawSize(sync ? mSyncSize : mOtherSize, SIZE_SIGMA);
+            if (mAvcc) {
+                buf.putInt(size);
+            } else {
+                buf.putInt(1);
+            }
+            buf.put((byte) (sync ? 0x65 : 0x41));
+            putPayload(buf, size - 1);
+        } else {
+            double spread = 1 + AUDIO_SIZE_SPREAD * (2 * mRandom.nextDouble() - 1);
+            putPayload(buf, Math.max(1, (int) (mOtherSize * spread)));
+        }
+        buf.limit(buf.position());
+        buf.position(start);
+        mFrame++;
+        return sync ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
+    }
+
+    /**
+     * What an encoder reports as csd-0: the SPS for video, the AudioSpecificConfig for AAC.
+     */
+    ByteBuffer getCsd0() {
+        if (mIsVideo) {
+            return ByteBuffer.wrap(SPS);
+        }
+        // AAC LC, the sample rate's index, mono.
+        int rateIndex = getSampleRateIndex(mSampleRate);
+        return ByteBuffer.wrap(new byte[] { (byte) (0x10 | rateIndex >> 1),
+                (byte) ((rateIndex & 1) << 7 | 1 << 3) });
+    }
+
+    /**
+     * What an encoder reports as csd-1: the PPS for video, null for AAC.
+     */
+    ByteBuffer getCsd1() {
+        return mIsVideo ? ByteBuffer.wrap(PPS) : null;
+    }
+
+    private long computePtsUsec() {
+        if (!mIsVideo) {
+            return mFrame * AAC_SAMPLES_PER_FRAME * 1000000 / mSampleRate;
+        }
+        long ptsUsec = mFrame * 1000000 / mFrameRate;
+        long jitterUsec = (long) (PTS_JITTER * 1000000 / mFrameRate
+                * (2 * mRandom.nextDouble() - 1));
+        return Math.max(mLastPtsUsec + 1, ptsUsec + jitterUsec);
+    }
+
+    private int drawSize(double median, double sigma) {
+        return Math.max(16, (int) (median * Math.exp(sigma * mRandom.nextGaussian())));
+    }
+
+    private void putPayload(ByteBuffer buf, int size) {
+        while (size > 0) {
+            int offset = mRandom.nextInt(PAYLOAD_BYTES / 2);
+            int length = Math.min(size, PAYLOAD_BYTES - offset);
+            buf.put(mPayload, offset, length);
+            size -= length;
+        }
+    }
+
+    private static int getSampleRateIndex(int sampleRate) {
+        int[] rates = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000,
+                11025, 8000 };
+        for (int i = 0; i < rates.length; i++) {
+            if (rates[i] <= sampleRate) {
+                return i;
+            }
+        }
+        return rates.length - 1;
+    }
+}